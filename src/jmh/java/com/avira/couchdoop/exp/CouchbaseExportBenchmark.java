@@ -0,0 +1,80 @@
+package com.avira.couchdoop.exp;
+
+import com.avira.couchdoop.FakeCouchbaseServer;
+import com.avira.couchdoop.MapContexts;
+import com.avira.couchdoop.exp.CouchbaseOutputFormat.CouchbaseRecordWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link CouchbaseRecordWriter} storing documents in a {@link FakeCouchbaseServer}, which
+ * answers after the given latency and fails the given percentage of the stores temporarily.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CouchbaseExportBenchmark {
+
+  @Param({"1", "64"})
+  public int writeWindow;
+
+  @Param({"0", "500"})
+  public int latencyMicros;
+
+  @Param({"0", "1"})
+  public int temporaryFailurePercent;
+
+  private FakeCouchbaseServer server;
+  private CouchbaseRecordWriter writer;
+  private CouchbaseAction action = CouchbaseAction.createSetAction("{\"id\":12345,\"name\":\"document\"}");
+  private long count = 0;
+
+  @Setup
+  public void setup() throws IOException {
+    server = new FakeCouchbaseServer();
+    server.start();
+    server.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+    server.setMutationFailureRate(temporaryFailurePercent / 100.0);
+  }
+
+  @Setup(Level.Iteration)
+  public void openWriter() throws IOException {
+    writer = new CouchbaseRecordWriter(server.getUrls(), server.getBucket(), server.getPassword(), writeWindow);
+  }
+
+  /**
+   * Waits for the writes in flight, so that each iteration accounts for all of its writes.
+   */
+  @TearDown(Level.Iteration)
+  public void closeWriter() throws IOException, InterruptedException {
+    writer.close(MapContexts.create(new Configuration(), null, null));
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Benchmark
+  public void write() throws IOException, InterruptedException {
+    writer.write("document::" + (count++ % 100000), action);
+  }
+}
@@ -0,0 +1,109 @@
+package com.avira.couchdoop.exp;
+
+import com.avira.couchdoop.exp.CouchbaseOutputFormat.CouchbaseRecordWriter;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the bookkeeping of {@link CouchbaseRecordWriter#write} for each store operation, without the network:
+ * stores complete immediately with success.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CouchbaseRecordWriterBenchmark {
+
+  @Param({"1", "64"})
+  public int writeWindow;
+
+  private CouchbaseRecordWriter writer;
+  private CouchbaseAction action = CouchbaseAction.createSetAction("{\"id\":12345,\"name\":\"document\"}");
+
+  /** Distinct keys, since writes of the same key wait for each other. */
+  private String[] keys = new String[1024];
+  private int count = 0;
+
+  /**
+   * Stores nothing and returns a future which is already done.
+   */
+  private static class CompletedStoreWriter extends CouchbaseRecordWriter {
+
+    private static final OperationFuture<Boolean> SUCCESS = new CompletedFuture();
+
+    public CompletedStoreWriter(int writeWindow) {
+      super(writeWindow);
+    }
+
+    @Override
+    protected OperationFuture<Boolean> store(CouchbaseOperation operation, String key, Object value, int expiry) {
+      return SUCCESS;
+    }
+  }
+
+  /**
+   * Successful future without an operation behind it.
+   */
+  private static class CompletedFuture extends OperationFuture<Boolean> {
+
+    public CompletedFuture() {
+      super(null, new CountDownLatch(0), 0, null);
+      set(true, new OperationStatus(true, "OK", StatusCode.SUCCESS));
+    }
+
+    @Override
+    public Boolean get() {
+      return true;
+    }
+
+    @Override
+    public boolean isDone() {
+      return true;
+    }
+
+    /**
+     * Notifies the listener right away, since there is no executor to notify it with.
+     */
+    @Override
+    public OperationFuture<Boolean> addListener(OperationCompletionListener listener) {
+      try {
+        listener.onComplete(this);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      return this;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    writer = new CompletedStoreWriter(writeWindow);
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = String.format("document::%010d", i);
+    }
+  }
+
+  @Benchmark
+  public void write() throws IOException, InterruptedException {
+    writer.write(keys[count++ & (keys.length - 1)], action);
+  }
+}
@@ -0,0 +1,102 @@
+package com.avira.couchdoop.exp;
+
+import com.avira.couchdoop.MapContexts;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link CsvToCouchbaseMapper} with {@link FastCsvToCouchbaseMapper} on lines with a JSON document of about
+ * the given size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CsvToCouchbaseMapperBenchmark {
+
+  @Param({"csv", "fast"})
+  public String mapper;
+
+  @Param({"1024", "65536"})
+  public int lineSize;
+
+  @Param({"false", "true"})
+  public boolean rawDocuments;
+
+  private CsvToCouchbaseMapper csvMapper;
+  private FastCsvToCouchbaseMapper fastMapper;
+  private Mapper<LongWritable, Text, String, CouchbaseAction>.Context context;
+
+  private LongWritable key = new LongWritable();
+  private Text line = new Text();
+
+  private LastRecordWriter writer = new LastRecordWriter();
+
+  /**
+   * Keeps the last output, which is returned by the benchmark so that it's not optimized away.
+   */
+  private static class LastRecordWriter extends RecordWriter<String, CouchbaseAction> {
+    private Object value;
+
+    @Override
+    public void write(String key, CouchbaseAction action) {
+      value = action.getValue();
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException, InterruptedException {
+    StringBuilder doc = new StringBuilder("{\"id\":12345,\"items\":[");
+    while (doc.length() < lineSize - 64) {
+      doc.append("{\"name\":\"item\",\"count\":42},");
+    }
+    doc.append("{}]}");
+    line.set("document::0000000001\t" + doc);
+
+    Configuration conf = new Configuration(false);
+    conf.setBoolean(ExportArgs.ARG_COUCHBASE_DOCUMENTS_RAW.getPropertyName(), rawDocuments);
+    context = MapContexts.create(conf, null, writer);
+
+    if (mapper.equals("csv")) {
+      csvMapper = new CsvToCouchbaseMapper();
+      csvMapper.setup(context);
+    } else {
+      fastMapper = new FastCsvToCouchbaseMapper();
+      fastMapper.setup(context);
+    }
+  }
+
+  @Benchmark
+  public Object map() throws IOException, InterruptedException {
+    if (csvMapper != null) {
+      csvMapper.map(key, line, context);
+    } else {
+      fastMapper.map(key, line, context);
+    }
+    return writer.value;
+  }
+}
@@ -0,0 +1,102 @@
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.CouchbaseArgs;
+import com.avira.couchdoop.CouchbaseClientPool;
+import com.avira.couchdoop.FakeCouchbaseServer;
+import com.avira.couchdoop.MapContexts;
+import com.couchbase.client.protocol.views.ViewRow;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time {@link CouchbaseViewInputFormat.CouchbaseViewRecordReader} takes to read a view key with
+ * {@value #ROWS} rows and their documents from a {@link FakeCouchbaseServer}, which answers after the given latency.
+ * Documents are either included in view responses or fetched with bulk gets, with or without reading ahead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CouchbaseViewImportBenchmark {
+
+  private static final int ROWS = 10000;
+
+  @Param({"0", "2"})
+  public int bulkGetPages;
+
+  @Param({"0", "2"})
+  public int prefetchPages;
+
+  @Param({"0", "1000"})
+  public int latencyMicros;
+
+  private FakeCouchbaseServer server;
+  private TaskAttemptContext context;
+  private CouchbaseViewInputFormat.CouchbaseViewInputSplit split;
+
+  @Setup
+  public void setup() throws IOException {
+    server = new FakeCouchbaseServer();
+    server.start();
+    server.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+
+    server.createView("docs", "byType", false);
+    for (int i = 0; i < ROWS; i++) {
+      String id = String.format("document::%08d", i);
+      server.put(id, "{\"id\":" + i + ",\"type\":\"item\",\"name\":\"document\"}");
+      server.addViewRow("docs", "byType", id, "\"item\"", "null");
+    }
+
+    Configuration conf = new Configuration();
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_URLS.getPropertyName(), server.getUrl().toString());
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_BUCKET.getPropertyName(), server.getBucket());
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_PASSWORD.getPropertyName(), server.getPassword());
+    conf.set(ImportViewArgs.ARG_DESIGNDOC_NAME.getPropertyName(), "docs");
+    conf.set(ImportViewArgs.ARG_VIEW_NAME.getPropertyName(), "byType");
+    conf.set(ImportViewArgs.ARG_VIEW_KEYS.getPropertyName(), "\"item\"");
+    conf.setInt(ImportViewArgs.ARG_BULK_GET_PAGES.getPropertyName(), bulkGetPages);
+    conf.setInt(ImportViewArgs.ARG_PREFETCH_PAGES.getPropertyName(), prefetchPages);
+    // Bootstrap the client only once instead of for each read.
+    conf.setLong(CouchbaseClientPool.PROPERTY_IDLE_TIMEOUT, TimeUnit.MINUTES.toMillis(10));
+    context = MapContexts.create(conf, null, null);
+
+    split = new CouchbaseViewInputFormat.CouchbaseViewInputSplit();
+    split.addKey("\"item\"");
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Benchmark
+  public long read() throws IOException, InterruptedException {
+    RecordReader<Text, ViewRow> reader = new CouchbaseViewInputFormat().createRecordReader(split, context);
+    reader.initialize(split, context);
+    long rows = 0;
+    while (reader.nextKeyValue()) {
+      rows++;
+    }
+    reader.close();
+    return rows;
+  }
+}
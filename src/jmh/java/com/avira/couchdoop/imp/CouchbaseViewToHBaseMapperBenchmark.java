@@ -0,0 +1,96 @@
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.MapContexts;
+import com.couchbase.client.protocol.views.ViewRow;
+import com.couchbase.client.protocol.views.ViewRowWithDocs;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CouchbaseViewToHBaseMapper#map} on documents of about the given size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CouchbaseViewToHBaseMapperBenchmark {
+
+  @Param({"1024", "65536"})
+  public int documentSize;
+
+  @Param({"false", "true"})
+  public boolean rawDocuments;
+
+  private CouchbaseViewToHBaseMapper mapper;
+  private Mapper<Text, ViewRow, ImmutableBytesWritable, Put>.Context context;
+
+  private Text key = new Text("document::0000000001");
+  private ViewRow row;
+
+  private LastRecordWriter writer = new LastRecordWriter();
+
+  /**
+   * Keeps the last output, which is returned by the benchmark so that it's not optimized away.
+   */
+  private static class LastRecordWriter extends RecordWriter<ImmutableBytesWritable, Put> {
+    private Put value;
+
+    @Override
+    public void write(ImmutableBytesWritable key, Put put) {
+      value = put;
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException, InterruptedException {
+    StringBuilder doc = new StringBuilder("{\"id\":12345,\"items\":[");
+    while (doc.length() < documentSize - 32) {
+      doc.append("{\"name\":\"item\",\"count\":42},");
+    }
+    doc.append("{}]}");
+    Object document = rawDocuments ? doc.toString().getBytes(StandardCharsets.UTF_8) : doc.toString();
+    row = new ViewRowWithDocs(key.toString(), "[\"20140401\",0]", null, document);
+
+    Configuration conf = new Configuration(false);
+    conf.set(ImportViewArgs.ARG_DESIGNDOC_NAME.getPropertyName(), "tracking");
+    conf.set(ImportViewArgs.ARG_VIEW_NAME.getPropertyName(), "clicks");
+    conf.set(ImportViewArgs.ARG_VIEW_KEYS.getPropertyName(), "[\"20140401\",0]");
+    conf.set(ImportViewToHBaseArgs.ARG_OUTPUT.getPropertyName(), "clicks,d,json");
+    context = MapContexts.create(conf, null, writer);
+
+    mapper = new CouchbaseViewToHBaseMapper();
+    mapper.setup(context);
+  }
+
+  @Benchmark
+  public Object map() throws IOException, InterruptedException {
+    mapper.map(key, row, context);
+    return writer.value;
+  }
+}
@@ -0,0 +1,59 @@
+package com.avira.couchdoop.imp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of 100000 view keys, given either as a key range expression or as a list.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ImportViewArgsBenchmark {
+
+  private static final int KEYS = 100000;
+
+  private String keyRange = "[\"20140401\",((00000-99999))]";
+  private String keyList;
+
+  @Setup
+  public void setup() {
+    StringBuilder keys = new StringBuilder();
+    for (int i = 0; i < KEYS; i++) {
+      if (i > 0) {
+        keys.append(';');
+      }
+      keys.append("[\"20140401\",").append(i).append(']');
+    }
+    keyList = keys.toString();
+  }
+
+  @Benchmark
+  public String[] parseKeyRange() {
+    return ImportViewArgs.parseViewKeys(keyRange);
+  }
+
+  @Benchmark
+  public String[] parseKeyList() {
+    return ImportViewArgs.parseViewKeys(keyList);
+  }
+
+  @Benchmark
+  public List<String> splitKeyList() {
+    return ImportViewArgs.splitViewKeys(keyList);
+  }
+}
@@ -0,0 +1,88 @@
+package com.avira.couchdoop.imp;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link PageFileWriter#write} to a local file on documents of about the given size. Each iteration writes a
+ * new file, which is deleted afterwards.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PageFileWriterBenchmark {
+
+  @Param({"1024", "65536"})
+  public int documentSize;
+
+  @Param({"none", "deflate"})
+  public String codec;
+
+  private Configuration conf = new Configuration();
+  private File dir;
+  private int page = 0;
+  private PageFileWriter writer;
+
+  private String document;
+
+  @Setup
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("page-file-writer-benchmark").toFile();
+
+    StringBuilder doc = new StringBuilder("{\"id\":12345,\"items\":[");
+    while (doc.length() < documentSize - 32) {
+      doc.append("{\"name\":\"item\",\"count\":42},");
+    }
+    doc.append("{}]}");
+    document = doc.toString();
+  }
+
+  @Setup(Level.Iteration)
+  public void openFile() throws IOException {
+    CompressionCodec compressionCodec =
+        codec.equals("none") ? null : ReflectionUtils.newInstance(DefaultCodec.class, conf);
+    writer = new PageFileWriter(conf, dir.toURI().toString(), "part", page++, compressionCodec,
+        PageFileWriter.DEFAULT_BUFFER_SIZE);
+  }
+
+  @TearDown(Level.Iteration)
+  public void deleteFile() throws IOException {
+    writer.close();
+    FileSystem.getLocal(conf).delete(writer.getPath(), false);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    FileSystem.getLocal(conf).delete(new Path(dir.toURI()), true);
+  }
+
+  @Benchmark
+  public void write() throws IOException {
+    writer.write("document::0000000001", document);
+  }
+}
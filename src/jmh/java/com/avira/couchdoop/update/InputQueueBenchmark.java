@@ -0,0 +1,93 @@
+package com.avira.couchdoop.update;
+
+import com.avira.couchdoop.update.CouchbaseUpdateMapper.HadoopInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the hand-off of inputs from {@link CouchbaseUpdateMapper#map} to the fetcher thread through a
+ * {@link BlockingInputQueue}, which receives a new input for each record, with a {@link RingBufferInputQueue}, which
+ * copies a single reused input into its slots.
+ *
+ * <p>The throughput of the "offer" method is the number of inputs passed on per second. Neither side blocks for long,
+ * so that the iterations can end while the other side is idle.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class InputQueueBenchmark {
+
+  private static final int CAPACITY = 4096;
+  private static final int BULK_SIZE = 1024;
+
+  @Param({"blocking", "ring-spin", "ring-yield", "ring-park"})
+  public String queueType;
+
+  private InputQueue<Long> queue;
+  private boolean reuseInputs;
+
+  private HadoopInput<Long> reusedInput = new HadoopInput<>(null, null);
+  private List<HadoopInput<Long>> bulk = new ArrayList<>(BULK_SIZE);
+  private long sequence = 0;
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    if (queueType.equals("blocking")) {
+      queue = new BlockingInputQueue<>(CAPACITY);
+      reuseInputs = false;
+    } else {
+      RingBufferInputQueue.WaitStrategy waitStrategy =
+          RingBufferInputQueue.WaitStrategy.valueOf(queueType.substring("ring-".length()).toUpperCase());
+      queue = new RingBufferInputQueue<>(CAPACITY, waitStrategy);
+      reuseInputs = true;
+    }
+  }
+
+  @Benchmark
+  @Group("handOff")
+  @GroupThreads(1)
+  public boolean offer() throws InterruptedException {
+    HadoopInput<Long> input;
+    if (reuseInputs) {
+      input = reusedInput;
+      input.set("key", sequence);
+    } else {
+      input = new HadoopInput<>("key", sequence);
+    }
+    sequence++;
+
+    return queue.offer(input, 1, TimeUnit.MILLISECONDS);
+  }
+
+  @Benchmark
+  @Group("handOff")
+  @GroupThreads(1)
+  public int drain() {
+    // Like the fetcher, which drains a bulk and releases it after it was merged.
+    int count = queue.drainTo(bulk, BULK_SIZE);
+    for (HadoopInput<Long> input : bulk) {
+      queue.release(input);
+    }
+    bulk.clear();
+    return count;
+  }
+}
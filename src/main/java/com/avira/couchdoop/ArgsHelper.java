@@ -19,6 +19,14 @@ public class ArgsHelper {
   }
 
   public static void setPropertyFromCliArg(Configuration hadoopConf, CommandLine cl, Args.ArgDef arg) {
+    // Options without a value are flags which set their property to true when present.
+    if (!arg.hasArg()) {
+      if (cl.hasOption(arg.getShortName())) {
+        hadoopConf.setBoolean(arg.getPropertyName(), true);
+      }
+      return;
+    }
+
     String argValue = cl.getOptionValue(arg.getShortName());
 
     if (argValue != null) {
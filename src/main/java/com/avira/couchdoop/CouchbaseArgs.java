@@ -38,6 +38,8 @@ public class CouchbaseArgs extends Args {
   private List<URI> urls;
   private String bucket;
   private String password;
+  private long clientIdleTimeout;
+  private boolean rawDocuments;
 
   public static final ArgDef ARG_COUCHBASE_URLS = new ArgDef('h', "couchbase.urls", true, true,
       "(required) comma separated URL list of one or more Couchbase nodes from the cluster");
@@ -45,12 +47,15 @@ public class CouchbaseArgs extends Args {
       "(required) bucket name in the cluster you wish to use");
   public static final ArgDef ARG_COUCHBASE_PASSWORD = new ArgDef('p', "couchbase.password", true, false,
       "(required) password for the bucket");
+  public static final ArgDef ARG_COUCHBASE_DOCUMENTS_RAW = new ArgDef('r', "couchbase.documents.raw", true, false,
+      "if true, documents are passed as raw UTF-8 bytes instead of strings; defaults to false");
 
-  public static final List<ArgDef> ARGS_LIST = new ArrayList<>(3);
+  public static final List<ArgDef> ARGS_LIST = new ArrayList<>(4);
   static {
     ARGS_LIST.add(ARG_COUCHBASE_URLS);
     ARGS_LIST.add(ARG_COUCHBASE_BUCKET);
     ARGS_LIST.add(ARG_COUCHBASE_PASSWORD);
+    ARGS_LIST.add(ARG_COUCHBASE_DOCUMENTS_RAW);
   }
 
   public CouchbaseArgs(Configuration conf) throws ArgsException {
@@ -70,6 +75,8 @@ public class CouchbaseArgs extends Args {
 
     bucket = conf.get(ARG_COUCHBASE_BUCKET.getPropertyName());
     password = conf.get(ARG_COUCHBASE_PASSWORD.getPropertyName(), "");
+    clientIdleTimeout = conf.getLong(CouchbaseClientPool.PROPERTY_IDLE_TIMEOUT, 0);
+    rawDocuments = conf.getBoolean(ARG_COUCHBASE_DOCUMENTS_RAW.getPropertyName(), false);
   }
 
   @Override
@@ -88,4 +95,19 @@ public class CouchbaseArgs extends Args {
   public String getPassword() {
     return password;
   }
+
+  /**
+   * @return time in milliseconds to keep a client in {@link CouchbaseClientPool} after it is not used anymore
+   */
+  public long getClientIdleTimeout() {
+    return clientIdleTimeout;
+  }
+
+  /**
+   * @return whether documents are read as {@code byte[]} and {@code byte[]} values are written as JSON documents, by
+   * using {@link RawJsonTranscoder}
+   */
+  public boolean isRawDocuments() {
+    return rawDocuments;
+  }
 }
@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop;
+
+import com.couchbase.client.CouchbaseClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-JVM cache of Couchbase clients, shared by all readers and writers which connect to the same bucket.
+ *
+ * <p>Bootstrapping a client fetches the cluster configuration and opens connections to all nodes, which is expensive
+ * when done for each task or, in Spark, for each partition. A client is created by the first {@link #acquire} call
+ * for a combination of URLs, bucket and password and counts the references to it. When the last reference is
+ * {@link #release released}, the client is shut down after an idle timeout, unless it is acquired again meanwhile.</p>
+ *
+ * <p>Clients are created without holding the lock of the pool, so connecting to a bucket doesn't delay the callers
+ * which use other buckets. Concurrent callers for the same bucket wait for the same client.</p>
+ *
+ * <p>The idle timeout is configured with {@value #PROPERTY_IDLE_TIMEOUT} and is 0 by default, which shuts down the
+ * client as soon as it is not used anymore. The threads of a client keep the JVM alive, so a positive idle timeout is
+ * meant for long running JVMs such as Spark executors.</p>
+ */
+public class CouchbaseClientPool {
+
+  /** Time in milliseconds after which a client which is not used anymore is shut down. */
+  public static final String PROPERTY_IDLE_TIMEOUT = "couchbase.client.idle.timeout";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CouchbaseClientPool.class);
+
+  private static final Map<Key, Entry> ENTRIES = new HashMap<>();
+  private static final Map<CouchbaseClient, Entry> ENTRIES_BY_CLIENT = new IdentityHashMap<>();
+
+  /** Shuts down idle clients, created when first needed. */
+  private static ScheduledExecutorService closer;
+
+  private static class Key {
+    private final List<URI> urls;
+    private final String bucket;
+    private final String password;
+
+    public Key(List<URI> urls, String bucket, String password) {
+      this.urls = urls;
+      this.bucket = bucket;
+      this.password = password;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return urls.equals(other.urls) && bucket.equals(other.bucket) && password.equals(other.password);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * urls.hashCode() + bucket.hashCode()) + password.hashCode();
+    }
+  }
+
+  private static class Entry {
+    private final Key key;
+    // Counted down when the client is created or failed to connect.
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private CouchbaseClient client;
+    private Throwable failure;
+    private int references = 0;
+    private long idleTimeout;
+    private ScheduledFuture<?> scheduledShutdown;
+
+    public Entry(Key key) {
+      this.key = key;
+    }
+  }
+
+  private CouchbaseClientPool() {
+  }
+
+  /**
+   * Returns the shared client for a bucket, creating it if necessary. Each call must be followed by a call to
+   * {@link #release} after the client is not used anymore.
+   *
+   * @param idleTimeout time in milliseconds to keep the client open after its last release
+   */
+  public static CouchbaseClient acquire(List<URI> urls, String bucket, String password, long idleTimeout)
+      throws IOException {
+    Key key = new Key(urls, bucket, password == null ? "" : password);
+    Entry entry;
+    boolean connect;
+    synchronized (CouchbaseClientPool.class) {
+      entry = ENTRIES.get(key);
+      connect = entry == null;
+      if (connect) {
+        entry = new Entry(key);
+        ENTRIES.put(key, entry);
+      } else {
+        LOGGER.info("Reusing the Couchbase client for bucket {}, which has {} other users.", bucket, entry.references);
+      }
+
+      if (entry.scheduledShutdown != null) {
+        entry.scheduledShutdown.cancel(false);
+        entry.scheduledShutdown = null;
+      }
+      entry.references++;
+      entry.idleTimeout = idleTimeout;
+    }
+
+    if (connect) {
+      connect(entry, urls, bucket, password);
+    } else {
+      awaitConnected(entry);
+    }
+    if (entry.client == null) {
+      throw new IOException("Could not connect to Couchbase bucket " + bucket + ".", entry.failure);
+    }
+    return entry.client;
+  }
+
+  /**
+   * Waits for the client of an entry created by another caller. Interrupts are deferred, because the caller holds a
+   * reference to the client, which it must release.
+   */
+  private static void awaitConnected(Entry entry) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        entry.connected.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Creates the client of a new entry, which is removed from the pool if the client can't connect.
+   */
+  private static void connect(Entry entry, List<URI> urls, String bucket, String password) {
+    LOGGER.info("Connecting to Couchbase bucket {} by using URLs {}...", bucket, urls);
+    try {
+      CouchbaseClient client = new CouchbaseClient(urls, bucket, password);
+      LOGGER.info("Connected to Couchbase.");
+      synchronized (CouchbaseClientPool.class) {
+        entry.client = client;
+        ENTRIES_BY_CLIENT.put(client, entry);
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      synchronized (CouchbaseClientPool.class) {
+        entry.failure = e;
+        ENTRIES.remove(entry.key);
+      }
+    } finally {
+      entry.connected.countDown();
+    }
+  }
+
+  /**
+   * Releases a client returned by {@link #acquire}. Clients which don't belong to the pool are shut down.
+   */
+  public static void release(CouchbaseClient client) {
+    boolean shutdown;
+    synchronized (CouchbaseClientPool.class) {
+      Entry entry = ENTRIES_BY_CLIENT.get(client);
+      if (entry == null) {
+        LOGGER.warn("Releasing a Couchbase client which does not belong to the pool.");
+        shutdown = true;
+      } else if (--entry.references > 0) {
+        shutdown = false;
+      } else if (entry.idleTimeout > 0) {
+        scheduleShutdown(entry);
+        shutdown = false;
+      } else {
+        remove(entry);
+        shutdown = true;
+      }
+    }
+
+    // Shutting down waits for the pending operations, so it's done without holding the lock.
+    if (shutdown) {
+      shutdown(client);
+    }
+  }
+
+  /**
+   * @return number of clients in the pool, including idle ones
+   */
+  public static synchronized int size() {
+    return ENTRIES.size();
+  }
+
+  private static void scheduleShutdown(final Entry entry) {
+    if (closer == null) {
+      closer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "couchbase-client-pool-closer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    entry.scheduledShutdown = closer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (CouchbaseClientPool.class) {
+          // The client might have been acquired again before the task was cancelled.
+          if (entry.references > 0 || ENTRIES.get(entry.key) != entry) {
+            return;
+          }
+          remove(entry);
+        }
+        LOGGER.info("Couchbase client for bucket {} was idle for {} ms.", entry.key.bucket, entry.idleTimeout);
+        shutdown(entry.client);
+      }
+    }, entry.idleTimeout, TimeUnit.MILLISECONDS);
+  }
+
+  private static void remove(Entry entry) {
+    ENTRIES.remove(entry.key);
+    ENTRIES_BY_CLIENT.remove(entry.client);
+  }
+
+  private static void shutdown(CouchbaseClient client) {
+    LOGGER.info("Disconnecting from Couchbase...");
+    client.shutdown();
+  }
+}
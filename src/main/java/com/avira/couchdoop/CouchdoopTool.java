@@ -22,6 +22,7 @@ package com.avira.couchdoop;
 import com.avira.couchdoop.jobs.CouchbaseExporter;
 import com.avira.couchdoop.jobs.CouchbaseViewImporter;
 import com.avira.couchdoop.jobs.CouchbaseViewSerialImporter;
+import com.avira.couchdoop.jobs.CouchbaseViewToAvroImporter;
 import com.avira.couchdoop.jobs.CouchbaseViewToHBaseImporter;
 
 import java.util.Arrays;
@@ -55,6 +56,11 @@ public class CouchdoopTool {
           importer.start(tailArgs);
           break;
         }
+        case "import-to-avro": {
+          CouchbaseViewToAvroImporter importer = new CouchbaseViewToAvroImporter();
+          importer.start(tailArgs);
+          break;
+        }
         case "serial-import": {
           CouchbaseViewSerialImporter importer = new CouchbaseViewSerialImporter();
           importer.start(tailArgs);
@@ -85,6 +91,7 @@ public class CouchdoopTool {
     System.err.println("Usage:\n" +
       APP_NAME + " import [OPTIONS]\n" +
       APP_NAME + " import-to-hbase [OPTIONS]\n" +
+      APP_NAME + " import-to-avro [OPTIONS]\n" +
       APP_NAME + " serial-import [OPTIONS]\n" +
       APP_NAME + " export [OPTIONS]\n");
   }
@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Histogram of non-negative values with buckets whose upper bounds are powers of two: 0, 1, 2, 4, 8 and so on.
+ *
+ * <p>Bucket counts are published as Hadoop counters, so they are summed across all tasks of a job. Percentiles can't
+ * be summed, so they are computed from the merged histogram read back from the job's counters with
+ * {@link #readFromCounters}. Jobs may have only a limited number of counters, {@code mapreduce.job.counters.max},
+ * so pairs of buckets are published together, with upper bounds which are powers of 4 up to 4^13. Larger values are
+ * counted by an overflow counter, so a histogram read back from counters only knows that they are above
+ * {@value #OVERFLOW_BOUND} and reports percentiles among them as {@link Long#MAX_VALUE}. Thus each histogram has at
+ * most {@value #MAX_COUNTERS} counters and percentiles computed from them are upper bounds, at most 4 times the exact
+ * values.</p>
+ */
+public class ExponentialHistogram {
+
+  private static final int BUCKETS_COUNT = 65;
+
+  /** Largest bucket published as a counter, whose upper bound is 4^13. */
+  private static final int MAX_COUNTER_BUCKET = 27;
+
+  /** Upper bound of the largest bucket published as a counter, 4^13. Larger values are counted as overflows. */
+  public static final long OVERFLOW_BOUND = 1L << 26;
+
+  /** Maximum number of counters written for a histogram. */
+  public static final int MAX_COUNTERS = 15;
+
+  /** Matches the counter names written by {@link #writeToCounters}. */
+  private static final Pattern COUNTER_NAME_PATTERN = Pattern.compile("(.+)_(UP_TO|ABOVE)_(\\d+)_([A-Z]+)");
+
+  private long[] counts = new long[BUCKETS_COUNT];
+  /** Values read back from an overflow counter, only known to be above {@link #OVERFLOW_BOUND}. */
+  private long overflowCount = 0;
+
+  /**
+   * Adds a value to the histogram. Negative values are counted as 0.
+   */
+  public void record(long value) {
+    counts[getBucket(value)]++;
+  }
+
+  /**
+   * Adds the values counted by another histogram to this one.
+   */
+  public void add(ExponentialHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    overflowCount += other.overflowCount;
+  }
+
+  /**
+   * @return number of values recorded
+   */
+  public long getCount() {
+    long count = overflowCount;
+    for (long c : counts) {
+      count += c;
+    }
+    return count;
+  }
+
+  /**
+   * @return number of values which are only known to be above {@link #OVERFLOW_BOUND}, read back from overflow
+   * counters, or recorded above it
+   */
+  public long getOverflowCount() {
+    long count = overflowCount;
+    for (int i = MAX_COUNTER_BUCKET + 1; i < counts.length; i++) {
+      count += counts[i];
+    }
+    return count;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return upper bound of the bucket holding the value below which the given percentage of the values fall,
+   * {@link Long#MAX_VALUE} if that value is an overflow, or 0 if the histogram is empty
+   */
+  public long getPercentile(double percentile) {
+    long rank = (long) Math.ceil(percentile / 100 * getCount());
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen > 0 && seen >= rank) {
+        return getBucketUpperBound(i);
+      }
+    }
+    return overflowCount > 0 ? Long.MAX_VALUE : 0;
+  }
+
+  /**
+   * @return upper bound of the largest non-empty bucket, {@link Long#MAX_VALUE} if there are overflows, or 0 if the
+   * histogram is empty
+   */
+  public long getMax() {
+    if (overflowCount > 0) {
+      return Long.MAX_VALUE;
+    }
+    for (int i = counts.length - 1; i > 0; i--) {
+      if (counts[i] > 0) {
+        return getBucketUpperBound(i);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return index of the smallest bucket whose upper bound is greater or equal to the value
+   */
+  protected static int getBucket(long value) {
+    if (value <= 0) {
+      return 0;
+    }
+
+    // Bucket i holds values in (2^(i-2), 2^(i-1)].
+    return Long.SIZE - Long.numberOfLeadingZeros(value - 1) + 1;
+  }
+
+  /**
+   * @return inclusive upper bound of the values counted in a bucket
+   */
+  protected static long getBucketUpperBound(int bucket) {
+    return bucket == 0 ? 0 : 1L << (bucket - 1);
+  }
+
+  /**
+   * @return bucket whose upper bound is the smallest power of 4 greater or equal to the upper bound of the given
+   * bucket, or -1 if the values of the bucket are counted as overflows
+   */
+  protected static int getCounterBucket(int bucket) {
+    // Buckets with odd indexes have powers of 4 as upper bounds.
+    return bucket > MAX_COUNTER_BUCKET ? -1 : bucket | 1;
+  }
+
+  /**
+   * Increments a counter for each non-empty bucket published as a counter, as explained above. Counters are named
+   * {@code <prefix>_UP_TO_<bound>_<unit>}, the overflow counter {@code <prefix>_ABOVE_<bound>_<unit>}.
+   */
+  public void writeToCounters(TaskAttemptContext context, String group, String prefix, String unit) {
+    long[] counterCounts = new long[BUCKETS_COUNT];
+    long overflows = overflowCount;
+    for (int i = 0; i < counts.length; i++) {
+      int counterBucket = getCounterBucket(i);
+      if (counterBucket < 0) {
+        overflows += counts[i];
+      } else {
+        counterCounts[counterBucket] += counts[i];
+      }
+    }
+
+    for (int i = 0; i < counterCounts.length; i++) {
+      if (counterCounts[i] > 0) {
+        String name = prefix + "_UP_TO_" + getBucketUpperBound(i) + "_" + unit;
+        context.getCounter(group, name).increment(counterCounts[i]);
+      }
+    }
+    if (overflows > 0) {
+      context.getCounter(group, prefix + "_ABOVE_" + OVERFLOW_BOUND + "_" + unit).increment(overflows);
+    }
+  }
+
+  /**
+   * Reads back the histograms written to a counter group by {@link #writeToCounters}, e.g. after a job completed.
+   *
+   * @return histograms by their counter name prefix and unit, joined by an underscore, e.g. {@code SET_LATENCY_US}
+   */
+  public static Map<String, ExponentialHistogram> readFromCounters(CounterGroup group) {
+    Map<String, ExponentialHistogram> histograms = new LinkedHashMap<>();
+    for (Counter counter : group) {
+      Matcher matcher = COUNTER_NAME_PATTERN.matcher(counter.getName());
+      if (!matcher.matches()) {
+        continue;
+      }
+
+      String name = matcher.group(1) + "_" + matcher.group(4);
+      ExponentialHistogram histogram = histograms.get(name);
+      if (histogram == null) {
+        histogram = new ExponentialHistogram();
+        histograms.put(name, histogram);
+      }
+      if (matcher.group(2).equals("ABOVE")) {
+        histogram.overflowCount += counter.getValue();
+      } else {
+        histogram.counts[getBucket(Long.parseLong(matcher.group(3)))] += counter.getValue();
+      }
+    }
+    return histograms;
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop;
+
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.net.NetUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends metrics to Graphite, or to any other server speaking its plaintext protocol, e.g. a StatsD or Telegraf
+ * relay. The server is configured with {@value #PROPERTY_ADDRESS} as {@code host:port}, the port being 2003 by
+ * default.
+ */
+public class GraphiteMetricsSink extends Configured implements MetricsSink {
+
+  public static final String PROPERTY_ADDRESS = "couchbase.metrics.graphite.address";
+
+  private static final int DEFAULT_PORT = 2003;
+  private static final int CONNECT_TIMEOUT = 10000; // ms
+
+  private Socket socket;
+  private Writer writer;
+
+  @Override
+  public void send(String name, long value, long timestamp) throws IOException {
+    if (writer == null) {
+      connect();
+    }
+    writer.write(name + " " + value + " " + TimeUnit.MILLISECONDS.toSeconds(timestamp) + "\n");
+  }
+
+  private void connect() throws IOException {
+    String address = getConf().get(PROPERTY_ADDRESS);
+    if (address == null) {
+      throw new IOException("The Graphite server is not configured, set " + PROPERTY_ADDRESS + ".");
+    }
+
+    InetSocketAddress socketAddress = NetUtils.createSocketAddr(address, DEFAULT_PORT);
+    socket = new Socket();
+    socket.connect(socketAddress, CONNECT_TIMEOUT);
+    writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (socket == null) {
+      return;
+    }
+    try {
+      if (writer != null) {
+        writer.flush();
+      }
+    } finally {
+      socket.close();
+      socket = null;
+      writer = null;
+    }
+  }
+}
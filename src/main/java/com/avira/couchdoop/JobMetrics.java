@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reports the percentiles of the {@link ExponentialHistogram histograms} which the tasks of a completed job wrote to
+ * its counters, e.g. the latencies of the Couchbase operations.
+ *
+ * <p>The percentiles are always logged. If {@value #PROPERTY_SINK} names a {@link MetricsSink} class, they are sent to
+ * it as well, as metrics named {@code <prefix>.<counter group>.<histogram>.<p50|p95|p99|max>}, together with the
+ * number of recorded values as {@code <prefix>.<counter group>.<histogram>.count} and the number of values above
+ * {@link ExponentialHistogram#OVERFLOW_BOUND} as {@code <prefix>.<counter group>.<histogram>.overflow}. Percentiles
+ * which fall among those values have no upper bound, so they are logged but not sent. The prefix is configured with
+ * {@value #PROPERTY_PREFIX} and the counter group is the simple name of the class which wrote the counters, e.g.
+ * {@code couchdoop.CouchbaseOutputFormat.SET_LATENCY_US.p99}.</p>
+ */
+public class JobMetrics {
+
+  public static final String PROPERTY_SINK = "couchbase.metrics.sink";
+  public static final String PROPERTY_PREFIX = "couchbase.metrics.prefix";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JobMetrics.class);
+
+  private static final double[] PERCENTILES = {50, 95, 99};
+
+  /**
+   * Reports the histograms of a completed job. Failing to send them to the sink is logged, but doesn't fail the job.
+   */
+  public static void report(Job job) throws IOException, InterruptedException {
+    Configuration conf = job.getConfiguration();
+    long timestamp = System.currentTimeMillis();
+    Counters counters = job.getCounters();
+    if (counters == null) {
+      return;
+    }
+
+    MetricsSink sink = createSink(conf);
+    String prefix = conf.get(PROPERTY_PREFIX, "couchdoop");
+    try {
+      for (CounterGroup group : counters) {
+        String groupName = group.getName().substring(group.getName().lastIndexOf('.') + 1);
+        for (Map.Entry<String, ExponentialHistogram> entry : ExponentialHistogram.readFromCounters(group).entrySet()) {
+          String name = groupName + "." + entry.getKey();
+          ExponentialHistogram histogram = entry.getValue();
+          LOGGER.info("{}: count={} p50{} p95{} p99{} max{}", name, histogram.getCount(),
+              formatBound(histogram.getPercentile(50)), formatBound(histogram.getPercentile(95)),
+              formatBound(histogram.getPercentile(99)), formatBound(histogram.getMax()));
+
+          if (sink != null) {
+            String metric = prefix + "." + name;
+            sink.send(metric + ".count", histogram.getCount(), timestamp);
+            sink.send(metric + ".overflow", histogram.getOverflowCount(), timestamp);
+            for (double percentile : PERCENTILES) {
+              sendBound(sink, metric + ".p" + (int) percentile, histogram.getPercentile(percentile), timestamp);
+            }
+            sendBound(sink, metric + ".max", histogram.getMax(), timestamp);
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Failed to send the job metrics.", e);
+    } finally {
+      if (sink != null) {
+        try {
+          sink.close();
+        } catch (IOException e) {
+          LOGGER.warn("Failed to close the metrics sink.", e);
+        }
+      }
+    }
+  }
+
+  private static String formatBound(long bound) {
+    return bound == Long.MAX_VALUE ? ">" + ExponentialHistogram.OVERFLOW_BOUND : "<=" + bound;
+  }
+
+  private static void sendBound(MetricsSink sink, String metric, long bound, long timestamp) throws IOException {
+    if (bound != Long.MAX_VALUE) {
+      sink.send(metric, bound, timestamp);
+    }
+  }
+
+  private static MetricsSink createSink(Configuration conf) {
+    Class<? extends MetricsSink> sinkClass = conf.getClass(PROPERTY_SINK, null, MetricsSink.class);
+    return sinkClass == null ? null : ReflectionUtils.newInstance(sinkClass, conf);
+  }
+}
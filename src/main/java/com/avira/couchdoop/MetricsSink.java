@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the metrics reported by {@link JobMetrics} when a job completes, e.g. a {@link GraphiteMetricsSink}.
+ *
+ * <p>Implementations are instantiated by their class name with a public constructor without arguments and, if they
+ * implement {@link org.apache.hadoop.conf.Configurable}, they receive the configuration of the job.</p>
+ */
+public interface MetricsSink extends Closeable {
+
+  /**
+   * @param name      dot separated name of the metric
+   * @param timestamp milliseconds since the epoch
+   */
+  void send(String name, long value, long timestamp) throws IOException;
+}
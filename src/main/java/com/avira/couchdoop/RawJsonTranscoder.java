@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Transcoder which passes JSON documents as raw UTF-8 bytes, without decoding them to strings.
+ *
+ * <p>Documents stored as strings, which is how JSON documents are stored, are decoded to the {@code byte[]} received
+ * from the server. Conversely, {@code byte[]} values are stored as strings, so other clients see them as JSON
+ * documents. All other values are handled like by the default {@link SerializingTranscoder}.</p>
+ */
+public class RawJsonTranscoder implements Transcoder<Object> {
+
+  /** Flags of a string which is neither compressed nor serialized. */
+  private static final int STRING_FLAGS = 0;
+
+  private final SerializingTranscoder delegate = new SerializingTranscoder();
+
+  @Override
+  public boolean asyncDecode(CachedData d) {
+    return d.getFlags() != STRING_FLAGS && delegate.asyncDecode(d);
+  }
+
+  @Override
+  public CachedData encode(Object o) {
+    if (o instanceof byte[]) {
+      return new CachedData(STRING_FLAGS, (byte[]) o, getMaxSize());
+    }
+    return delegate.encode(o);
+  }
+
+  @Override
+  public Object decode(CachedData d) {
+    if (d.getFlags() == STRING_FLAGS) {
+      return d.getData();
+    }
+
+    // Large strings might be compressed.
+    Object o = delegate.decode(d);
+    if (o instanceof String) {
+      return ((String) o).getBytes(StandardCharsets.UTF_8);
+    }
+    return o;
+  }
+
+  @Override
+  public int getMaxSize() {
+    return delegate.getMaxSize();
+  }
+}
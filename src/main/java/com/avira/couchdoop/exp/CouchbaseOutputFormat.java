@@ -21,9 +21,13 @@ package com.avira.couchdoop.exp;
 
 import com.avira.couchdoop.ArgsException;
 import com.avira.couchdoop.CouchbaseArgs;
+import com.avira.couchdoop.CouchbaseClientPool;
+import com.avira.couchdoop.ExponentialHistogram;
+import com.avira.couchdoop.RawJsonTranscoder;
 import com.couchbase.client.CouchbaseClient;
+import net.spy.memcached.internal.OperationCompletionListener;
 import net.spy.memcached.internal.OperationFuture;
-import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.*;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
@@ -33,8 +37,17 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This output format writes writes each key-value received as a Couchbase document.
@@ -45,40 +58,173 @@ public class CouchbaseOutputFormat extends OutputFormat<String, CouchbaseAction>
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CouchbaseOutputFormat.class);
 
+  /**
+   * Number of tasks among which the rate budget of the job is divided evenly. Defaults to the number of map tasks, or
+   * of reduce tasks for writers running in reducers. Set it to the number of tasks running at the same time if lower.
+   */
+  public static final String PROPERTY_TASKS = "couchbase.write.tasks";
+
   public static class CouchbaseRecordWriter extends RecordWriter<String, CouchbaseAction> {
     
     private CouchbaseClient couchbaseClient;
+    private Transcoder<Object> transcoder;
+
+    /**
+     * Maximum number of store operations which are allowed to be in flight at the same time.
+     */
+    private int writeWindow;
+
+    /**
+     * Store operations already sent to Couchbase, in the order they were sent.
+     */
+    private Deque<PendingStore> inFlight = new ArrayDeque<>();
+
+    /**
+     * Store operations which failed temporarily and wait for their back-off delay to expire before being sent again.
+     */
+    private DelayQueue<PendingStore> retryQueue = new DelayQueue<>();
+
+    /**
+     * Store operations in flight or waiting to be retried, by key. A key has at most one such operation, so that a
+     * retry can't overwrite a later write of the same key.
+     */
+    private Map<String, PendingStore> pendingByKey = new HashMap<>();
+
+    private Random random = new Random();
+
+    /**
+     * Limits the rate of the store operations sent to Couchbase, if set.
+     */
+    private RateLimiter rateLimiter;
 
     private long nonExistentTouchedKeys = 0;
     private long failedStoreOperations = 0;
     private long existentKeys = 0;
     private int[] expBackoffCounters;
+    private ExponentialHistogram retryDelayHistogram = new ExponentialHistogram();
+
+    /**
+     * Latencies in microseconds of the store operations, from sending them to their completion, for each operation.
+     */
+    private Map<CouchbaseOperation, ExponentialHistogram> latencyHistograms = new EnumMap<>(CouchbaseOperation.class);
+
+    private long inFlightPeak = 0;
+    private long inFlightSum = 0;
+    private long inFlightSamples = 0;
 
     protected final static int EXP_BACKOFF_MAX_TRIES = 16;
     protected final static int EXP_BACKOFF_MAX_RETRY_INTERVAL = 1000; // ms
 
+    /**
+     * A store operation sent to Couchbase whose result was not checked yet or which waits to be retried.
+     */
+    private static class PendingStore implements Delayed, OperationCompletionListener {
+      private final String key;
+      private final CouchbaseOperation operation;
+      private final Object value;
+      private final int expiry;
+
+      private int backoffExp = 0;
+      private long totalRetryDelay = 0; // ms
+      private long retryTime; // ns, as returned by System.nanoTime()
+      private long sendTime; // ns
+      private volatile long completionTime; // ns, 0 until the listener is notified of the completion
+      private volatile OperationFuture<Boolean> future;
+
+      public PendingStore(String key, CouchbaseAction action) {
+        // Copy the action fields because the caller is free to reuse the action after write returns.
+        this.key = key;
+        this.operation = action.getOperation();
+        this.value = action.getValue();
+        this.expiry = action.getExpiry();
+      }
+
+      @Override
+      public long getDelay(TimeUnit unit) {
+        return unit.convert(retryTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+
+      @Override
+      public int compareTo(Delayed other) {
+        long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+
+      /**
+       * Notes when the operation completed, which may be long before its result is checked.
+       */
+      @Override
+      public void onComplete(OperationFuture<?> completedFuture) {
+        // Ignore late notifications for a previous try of the operation.
+        if (completedFuture == future) {
+          completionTime = System.nanoTime();
+        }
+      }
+    }
+
     public CouchbaseRecordWriter(List<URI> urls, String bucket, String password) throws IOException {
-      LOGGER.info("Connecting to Couchbase bucket {} by using URLs {}...",
-          bucket, urls, password);
-      couchbaseClient = new CouchbaseClient(urls, bucket, password);
-      LOGGER.info("Connected to Couchbase.");
+      this(urls, bucket, password, 1);
+    }
+
+    public CouchbaseRecordWriter(List<URI> urls, String bucket, String password, int writeWindow)
+        throws IOException {
+      this(urls, bucket, password, writeWindow, 0);
+    }
+
+    /**
+     * @param idleTimeout time in milliseconds to keep the client in {@link CouchbaseClientPool} after the writer is
+     *                    closed
+     */
+    public CouchbaseRecordWriter(List<URI> urls, String bucket, String password, int writeWindow, long idleTimeout)
+        throws IOException {
+      this(writeWindow);
+
+      couchbaseClient = CouchbaseClientPool.acquire(urls, bucket, password, idleTimeout);
+      transcoder = couchbaseClient.getTranscoder();
+    }
+
+    /**
+     * Creates a writer without a Couchbase client, for subclasses which override {@link #store}, e.g. in benchmarks.
+     */
+    protected CouchbaseRecordWriter(int writeWindow) {
+      if (writeWindow < 1) {
+        throw new IllegalArgumentException("The write window must be at least 1, but it is " + writeWindow + ".");
+      }
+      this.writeWindow = writeWindow;
+      LOGGER.info("Using a window of {} writes in flight.", writeWindow);
 
       expBackoffCounters = new int[EXP_BACKOFF_MAX_TRIES];
     }
 
+    /**
+     * Sets the transcoder used to encode the values, e.g. a {@link RawJsonTranscoder} to store {@code byte[]} values
+     * as JSON documents. By default the transcoder of the Couchbase client is used.
+     */
+    public void setTranscoder(Transcoder<Object> transcoder) {
+      this.transcoder = transcoder;
+    }
+
+    /**
+     * Sets the limiter of the rate of the store operations, including their retries. By default the rate is not
+     * limited.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+    }
+
     protected OperationFuture<Boolean> store(CouchbaseOperation operation,
                                              String key, Object value, int expiry) {
       switch (operation) {
         case SET:
-          return couchbaseClient.set(key, expiry, value);
+          return couchbaseClient.set(key, expiry, value, transcoder);
         case ADD:
-          return couchbaseClient.add(key, expiry, value);
+          return couchbaseClient.add(key, expiry, value, transcoder);
         case REPLACE:
-          return couchbaseClient.replace(key, expiry, value);
+          return couchbaseClient.replace(key, expiry, value, transcoder);
         case APPEND:
-          return couchbaseClient.append(key, value);
+          return couchbaseClient.append(key, value, transcoder);
         case PREPEND:
-          return couchbaseClient.prepend(key, value);
+          return couchbaseClient.prepend(key, value, transcoder);
         case DELETE:
           return couchbaseClient.delete(key);
         case EXISTS:
@@ -91,53 +237,170 @@ public class CouchbaseOutputFormat extends OutputFormat<String, CouchbaseAction>
 
     @Override
     public void write(String key, CouchbaseAction value) throws IOException, InterruptedException {
-      int backoffExp = 0;
-      OperationFuture<Boolean> future;
-      OperationStatus status;
-
-      // Store in Couchbase by doing exponential back-off.
-      do {
-        future = store(value.getOperation(), key, value.getValue(), value.getExpiry());
-        if (future == null) {
-          return;
-        }
+      // Send again the operations whose back-off delay expired.
+      sendDueRetries();
 
-        // If the operation exists, count non existent touched keys.
-        boolean res;
-        try {
-          res = future.get();
-        } catch (ExecutionException e) {
-          throw new RuntimeException(e);
-        }
-        if (!res && value.getOperation().equals(CouchbaseOperation.EXISTS)) {
-          nonExistentTouchedKeys++;
+      // Keep the order of the writes of a key, even if the previous one has to be retried.
+      while (pendingByKey.containsKey(key)) {
+        completeNext();
+      }
+
+      send(new PendingStore(key, value));
+
+      // Gather the results of the operations which already completed.
+      while (!inFlight.isEmpty() && inFlight.peek().future.isDone()) {
+        complete(inFlight.poll());
+      }
+
+      // Wait for the oldest operations if the window is full. With a window of 1 this makes writes synchronous.
+      while (inFlight.size() >= writeWindow) {
+        complete(inFlight.poll());
+      }
+    }
+
+    /**
+     * Sends the store operation to Couchbase without waiting for its result, unless it has to wait for the rate
+     * limiter.
+     */
+    private void send(PendingStore pending) throws InterruptedException {
+      if (rateLimiter != null && pending.operation != CouchbaseOperation.NONE) {
+        rateLimiter.acquire(getSize(pending.key) + getSize(pending.value));
+      }
+
+      pending.completionTime = 0;
+      pending.sendTime = System.nanoTime();
+      pending.future = store(pending.operation, pending.key, pending.value, pending.expiry);
+      if (pending.future == null) {
+        return;
+      }
+      pending.future.addListener(pending);
+
+      inFlight.add(pending);
+      pendingByKey.put(pending.key, pending);
+
+      int inFlightCount = inFlight.size();
+      inFlightPeak = Math.max(inFlightPeak, inFlightCount);
+      inFlightSum += inFlightCount;
+      inFlightSamples++;
+    }
+
+    /**
+     * @return number of bytes of a key or value, approximated by the number of characters for strings and 0 for other
+     * objects than strings and byte arrays, whose size is only known once the transcoder encoded them
+     */
+    private static long getSize(Object value) {
+      if (value instanceof String) {
+        return ((String) value).length();
+      } else if (value instanceof byte[]) {
+        return ((byte[]) value).length;
+      } else {
+        return 0;
+      }
+    }
+
+    private void sendDueRetries() throws InterruptedException {
+      PendingStore pending;
+      while ((pending = retryQueue.poll()) != null) {
+        send(pending);
+
+        // Retries count against the window like new writes.
+        while (inFlight.size() >= writeWindow) {
+          complete(inFlight.poll());
         }
+      }
+    }
+
+    /**
+     * Waits for the result of a store operation and accounts it. Operations which failed temporarily are scheduled
+     * to be sent again after an exponential back-off delay with jitter.
+     */
+    private void complete(PendingStore pending) throws InterruptedException {
+      OperationFuture<Boolean> future = pending.future;
+
+      // If the operation exists, count non existent touched keys.
+      boolean res;
+      try {
+        res = future.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e);
+      }
+      recordLatency(pending);
+      if (!res && pending.operation.equals(CouchbaseOperation.EXISTS)) {
+        nonExistentTouchedKeys++;
+      }
 
-        // TODO See if false also means error.
-        if (!res) {
-          failedStoreOperations++;
-          if (future.getStatus().getMessage().contains("exists")) {
-            existentKeys++;
-          }
+      // TODO See if false also means error.
+      if (!res) {
+        failedStoreOperations++;
+        if (future.getStatus().getMessage().contains("exists")) {
+          existentKeys++;
         }
+      }
+
+      boolean temporaryFailure = !future.getStatus().isSuccess() &&
+          future.getStatus().getMessage().equals("Temporary failure");
+      if (rateLimiter != null) {
+        rateLimiter.onCompleted(temporaryFailure);
+      }
 
-        if (future.getStatus().isSuccess() || !future.getStatus().getMessage().equals("Temporary failure") ||
-            backoffExp >= EXP_BACKOFF_MAX_TRIES) {
-          break;
+      if (!temporaryFailure || pending.backoffExp >= EXP_BACKOFF_MAX_TRIES) {
+        pendingByKey.remove(pending.key);
+        if (pending.backoffExp > 0) {
+          retryDelayHistogram.record(pending.totalRetryDelay);
         }
+        return;
+      }
+
+      // Retry after a random delay between half and the whole back-off interval, so that operations which failed
+      // together are not retried together.
+      int retryInterval = Math.min((int) Math.pow(2, pending.backoffExp), EXP_BACKOFF_MAX_RETRY_INTERVAL);
+      int retryDelay = retryInterval / 2 + random.nextInt(retryInterval - retryInterval / 2 + 1);
+      expBackoffCounters[pending.backoffExp]++;
+
+      pending.backoffExp++;
+      pending.totalRetryDelay += retryDelay;
+      pending.retryTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelay);
+      retryQueue.add(pending);
+    }
+
+    private void recordLatency(PendingStore pending) {
+      // The listener may not have been notified yet, even if the result is available.
+      long completionTime = pending.completionTime;
+      if (completionTime == 0) {
+        completionTime = System.nanoTime();
+      }
 
-        int retryInterval = Math.min((int) Math.pow(2, backoffExp), EXP_BACKOFF_MAX_RETRY_INTERVAL);
-        Thread.sleep(retryInterval);
-        expBackoffCounters[backoffExp]++;
+      ExponentialHistogram histogram = latencyHistograms.get(pending.operation);
+      if (histogram == null) {
+        histogram = new ExponentialHistogram();
+        latencyHistograms.put(pending.operation, histogram);
+      }
+      histogram.record(TimeUnit.NANOSECONDS.toMicros(completionTime - pending.sendTime));
+    }
 
-        backoffExp++;
-      } while (true);
+    /**
+     * Waits for the oldest operation in flight or, if there is none, for the next retry to be due and sends it.
+     */
+    private void completeNext() throws InterruptedException {
+      sendDueRetries();
+      if (!inFlight.isEmpty()) {
+        complete(inFlight.poll());
+      } else {
+        send(retryQueue.take());
+      }
     }
 
     @Override
     public void close(TaskAttemptContext context) throws IOException, InterruptedException {
-      LOGGER.info("Disconnecting from Couchbase...");
-      couchbaseClient.shutdown();
+      // Wait for all the operations still in flight or waiting to be retried.
+      LOGGER.info("Waiting for {} writes in flight and {} writes to be retried...", inFlight.size(), retryQueue.size());
+      while (!inFlight.isEmpty() || !retryQueue.isEmpty()) {
+        completeNext();
+      }
+
+      if (couchbaseClient != null) {
+        CouchbaseClientPool.release(couchbaseClient);
+      }
 
       if (failedStoreOperations > 0) {
         context.getCounter(CouchbaseOutputFormat.class.getName(), "FAILED_STORE_OPERATIONS").increment(failedStoreOperations);
@@ -157,6 +420,26 @@ public class CouchbaseOutputFormat extends OutputFormat<String, CouchbaseAction>
           context.getCounter(CouchbaseOutputFormat.class.getName(), "EXP_BACKOFF_COUNT_FOR_TRY_" + i).increment(expBackoffCounter);
         }
       }
+      // Set counters for the total back-off delay of the retried records.
+      retryDelayHistogram.writeToCounters(context, CouchbaseOutputFormat.class.getName(), "TOTAL_RETRY_DELAY", "MS");
+      // Set counters for the latencies of each store operation.
+      for (Map.Entry<CouchbaseOperation, ExponentialHistogram> entry : latencyHistograms.entrySet()) {
+        entry.getValue().writeToCounters(context, CouchbaseOutputFormat.class.getName(),
+            entry.getKey().name() + "_LATENCY", "US");
+      }
+      // Set counters for the writes in flight.
+      if (inFlightSamples > 0) {
+        context.getCounter(CouchbaseOutputFormat.class.getName(), "WRITES_IN_FLIGHT_PEAK").increment(inFlightPeak);
+        context.getCounter(CouchbaseOutputFormat.class.getName(), "WRITES_IN_FLIGHT_AVG").increment(
+            Math.round((double) inFlightSum / inFlightSamples));
+      }
+      // Set counters for the rate limiter.
+      if (rateLimiter != null) {
+        context.getCounter(CouchbaseOutputFormat.class.getName(), "THROTTLED_TIMES_SUM").increment(
+            rateLimiter.getThrottledTime());
+        context.getCounter(CouchbaseOutputFormat.class.getName(), "RATE_DECREASES").increment(
+            rateLimiter.getDecreasesCount());
+      }
     }
   }
 
@@ -179,8 +462,35 @@ public class CouchbaseOutputFormat extends OutputFormat<String, CouchbaseAction>
       throw new IllegalArgumentException(e);
     }
 
-    return new CouchbaseRecordWriter(args.getUrls(), args.getBucket(),
-        args.getPassword());
+    CouchbaseRecordWriter writer = new CouchbaseRecordWriter(args.getUrls(), args.getBucket(),
+        args.getPassword(), args.getWriteWindow(), args.getClientIdleTimeout());
+    if (args.isRawDocuments()) {
+      writer.setTranscoder(new RawJsonTranscoder());
+    }
+    if (args.getMaxOps() > 0 || args.getMaxBytes() > 0) {
+      int tasksCount = getTasksCount(context);
+      double maxOpsRate = (double) args.getMaxOps() / tasksCount;
+      double maxBytesRate = (double) args.getMaxBytes() / tasksCount;
+      LOGGER.info("Limiting the rate of this task to {} ops/s and {} bytes/s, 0 meaning unlimited, out of the " +
+          "budget of {} tasks.", maxOpsRate, maxBytesRate, tasksCount);
+      writer.setRateLimiter(new RateLimiter(maxOpsRate, maxBytesRate, args.isRateAdaptive()));
+    }
+    return writer;
+  }
+
+  /**
+   * @return number of tasks sharing the rate budget of the job: {@value #PROPERTY_TASKS} if set, otherwise the
+   * number of map or reduce tasks, whichever the task is
+   */
+  static int getTasksCount(TaskAttemptContext context) {
+    Configuration conf = context.getConfiguration();
+    int tasksCount = conf.getInt(PROPERTY_TASKS, 0);
+    if (tasksCount <= 0) {
+      TaskAttemptID taskAttemptId = context.getTaskAttemptID();
+      boolean reduce = taskAttemptId != null && taskAttemptId.getTaskType() == TaskType.REDUCE;
+      tasksCount = reduce ? conf.getInt(MRJobConfig.NUM_REDUCES, 1) : conf.getInt(MRJobConfig.NUM_MAPS, 1);
+    }
+    return Math.max(tasksCount, 1);
   }
 
   @Override
@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.exp;
+
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the lines of the exported files in fields by the same rules as {@link String#split(String)}: the fields
+ * delimiter is a regular expression and trailing empty fields are ignored. The first field is the document ID and the
+ * second one is the document.
+ *
+ * <p>Both {@link CsvToCouchbaseMapper} and {@link FastCsvToCouchbaseMapper} use it, so they accept the same lines. A
+ * delimiter without characters which are special in regular expressions is found by scanning the bytes of the line,
+ * which doesn't decode it.</p>
+ */
+abstract class CsvLineParser {
+
+  private static final Pattern REGEX_SPECIAL_CHARS = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+
+  private int fieldsCount;
+  private int keyEnd;
+  private int docStart;
+  private int docEnd;
+
+  /**
+   * @return whether the delimiter means the same as a literal and as a regular expression
+   */
+  public static boolean isLiteralDelimiter(String delimiter) {
+    return !delimiter.isEmpty() && !REGEX_SPECIAL_CHARS.matcher(delimiter).find();
+  }
+
+  public static CsvLineParser create(String delimiter) {
+    if (isLiteralDelimiter(delimiter)) {
+      return new LiteralParser(delimiter);
+    }
+    return new RegexParser(delimiter);
+  }
+
+  /**
+   * Splits a line, whose fields are then returned by the other methods until the next call.
+   */
+  public void parse(Text line) {
+    int length = reset(line);
+
+    // Find the end of the first field, the bounds of the second one and the number of fields, ignoring trailing
+    // empty fields.
+    fieldsCount = 0;
+    keyEnd = docStart = docEnd = length;
+    int field = 0;
+    int start = 0;
+    while (true) {
+      int end = findDelimiter(start);
+      if (end > start) {
+        fieldsCount = field + 1;
+      }
+      if (field == 0) {
+        keyEnd = end;
+      } else if (field == 1) {
+        docStart = start;
+        docEnd = end;
+      }
+      if (end == length) {
+        break;
+      }
+      start = getDelimiterEnd();
+      field++;
+    }
+    if (field == 0) {
+      // A line without delimiters is a single field, even if empty.
+      fieldsCount = 1;
+    }
+  }
+
+  /**
+   * @return number of fields of the line, without the trailing empty ones
+   */
+  public int getFieldsCount() {
+    return fieldsCount;
+  }
+
+  public String getKey() throws CharacterCodingException {
+    return substring(0, keyEnd);
+  }
+
+  public String getDocument() throws CharacterCodingException {
+    return substring(docStart, docEnd);
+  }
+
+  /**
+   * @return the document encoded as UTF-8
+   */
+  public byte[] getDocumentBytes() {
+    return bytes(docStart, docEnd);
+  }
+
+  /**
+   * Starts splitting a line.
+   *
+   * @return length of the line in the units of the positions used by the other methods
+   */
+  protected abstract int reset(Text line);
+
+  /**
+   * @return start of the next delimiter at or after start, or the length of the line if there is none
+   */
+  protected abstract int findDelimiter(int start);
+
+  /**
+   * @return end of the delimiter last found
+   */
+  protected abstract int getDelimiterEnd();
+
+  protected abstract String substring(int start, int end) throws CharacterCodingException;
+
+  protected abstract byte[] bytes(int start, int end);
+
+  /**
+   * Finds a literal delimiter in the bytes of the line.
+   */
+  private static class LiteralParser extends CsvLineParser {
+    private final byte[] delimiter;
+    private byte[] line;
+    private int length;
+    private int delimiterEnd;
+
+    public LiteralParser(String delimiter) {
+      this.delimiter = delimiter.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected int reset(Text line) {
+      this.line = line.getBytes();
+      this.length = line.getLength();
+      return length;
+    }
+
+    @Override
+    protected int findDelimiter(int start) {
+      byte first = delimiter[0];
+      int last = length - delimiter.length;
+      for (int i = start; i <= last; i++) {
+        if (line[i] != first) {
+          continue;
+        }
+        int j = 1;
+        while (j < delimiter.length && line[i + j] == delimiter[j]) {
+          j++;
+        }
+        if (j == delimiter.length) {
+          delimiterEnd = i + delimiter.length;
+          return i;
+        }
+      }
+      return length;
+    }
+
+    @Override
+    protected int getDelimiterEnd() {
+      return delimiterEnd;
+    }
+
+    @Override
+    protected String substring(int start, int end) throws CharacterCodingException {
+      return Text.decode(line, start, end - start);
+    }
+
+    @Override
+    protected byte[] bytes(int start, int end) {
+      return Arrays.copyOfRange(line, start, end);
+    }
+  }
+
+  /**
+   * Matches a regular expression delimiter in the decoded line.
+   */
+  private static class RegexParser extends CsvLineParser {
+    private final Pattern delimiter;
+    private String line;
+    private Matcher matcher;
+
+    public RegexParser(String delimiter) {
+      this.delimiter = Pattern.compile(delimiter);
+    }
+
+    @Override
+    protected int reset(Text line) {
+      this.line = line.toString();
+      matcher = delimiter.matcher(this.line);
+      return this.line.length();
+    }
+
+    @Override
+    protected int findDelimiter(int start) {
+      // Delimiters are found one after another, like String.split does, which ignores an empty match at the start.
+      while (matcher.find()) {
+        if (matcher.end() > 0) {
+          return matcher.start();
+        }
+      }
+      return line.length();
+    }
+
+    @Override
+    protected int getDelimiterEnd() {
+      return matcher.end();
+    }
+
+    @Override
+    protected String substring(int start, int end) {
+      return line.substring(start, end);
+    }
+
+    @Override
+    protected byte[] bytes(int start, int end) {
+      return substring(start, end).getBytes(StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -29,12 +29,16 @@ import java.io.IOException;
 /**
  * This mapper maps key-value pairs read from TSV files as documents in Couchbase by using keys as IDs and values as
  * documents.
+ *
+ * <p>Lines are split by {@link CsvLineParser}, so the fields delimiter is a regular expression. With raw documents,
+ * documents are passed on as their UTF-8 bytes.</p>
  */
 public class CsvToCouchbaseMapper extends Mapper<LongWritable, Text, String, CouchbaseAction> {
 
   private CouchbaseOperation operation;
   private int expiry;
-  private String fieldsDelimiter;
+  private CsvLineParser parser;
+  private boolean rawDocuments;
 
   private static final String COUNTER_ERRORS = "ERRORS";
 
@@ -47,7 +51,8 @@ public class CsvToCouchbaseMapper extends Mapper<LongWritable, Text, String, Cou
 
       operation = exportArgs.getOperation();
       expiry = exportArgs.getExpiry();
-      fieldsDelimiter = exportArgs.getFieldsDelimiter();
+      parser = CsvLineParser.create(exportArgs.getFieldsDelimiter());
+      rawDocuments = exportArgs.isRawDocuments();
     } catch (ArgsException e) {
       throw new IllegalArgumentException(e);
     }
@@ -55,29 +60,30 @@ public class CsvToCouchbaseMapper extends Mapper<LongWritable, Text, String, Cou
 
   @Override
   protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-    String docId;
     CouchbaseAction action;
-    String[] pair = value.toString().split(fieldsDelimiter);
+    parser.parse(value);
 
     if (operation.equals(CouchbaseOperation.DELETE)) {
-      if (pair.length <= 1) {
+      if (parser.getFieldsCount() <= 1) {
         context.getCounter(Error.LINES_WITH_WRONG_COLUMNS_COUNT).increment(1);
         return;
       }
 
-      docId = pair[0];
       action = CouchbaseAction.createDeleteAction();
     } else {
       // Skip error line.
-      if (pair.length != 2) {
+      if (parser.getFieldsCount() != 2) {
         context.getCounter(Error.LINES_WITH_WRONG_COLUMNS_COUNT).increment(1);
         return;
       }
 
-      docId = pair[0];
-      action = new CouchbaseAction(operation, pair[1], expiry);
+      if (rawDocuments) {
+        action = new CouchbaseAction(operation, parser.getDocumentBytes(), expiry);
+      } else {
+        action = new CouchbaseAction(operation, parser.getDocument(), expiry);
+      }
     }
 
-    context.write(docId, action);
+    context.write(parser.getKey(), action);
   }
 }
@@ -42,6 +42,14 @@ public class ExportArgs extends CouchbaseArgs {
 
   private String fieldsDelimiter;
 
+  private int writeWindow;
+
+  private long maxOps;
+
+  private long maxBytes;
+
+  private boolean rateAdaptive;
+
   public static final ArgDef ARG_INPUT = new ArgDef('i', "input", true, true,
       "(required) HDFS input directory");
   public static final ArgDef ARG_OPERATION = new ArgDef('t', "couchbase.operation", true, false,
@@ -50,13 +58,28 @@ public class ExportArgs extends CouchbaseArgs {
       "Couchbase document expiry value; defaults to 0 (doesn't expire)");
   public static final ArgDef ARG_DELIMITER_FIELDS = new ArgDef('d', "delimiter.fields", true, false,
       "Fields delimiter for the CSV input; defaults to tab");
-
-  public static final List<ArgDef> ARGS_LIST = new ArrayList<>(4);
+  public static final ArgDef ARG_WRITE_WINDOW = new ArgDef('w', "couchbase.write.window", true, false,
+      "maximum number of store operations kept in flight by each task; defaults to 1 (each write waits for the " +
+      "previous one)");
+  public static final ArgDef ARG_WRITE_MAX_OPS = new ArgDef('o', "couchbase.write.max.ops", true, false,
+      "maximum number of store operations per second of the whole job, divided evenly across its tasks; defaults " +
+      "to 0 (unlimited)");
+  public static final ArgDef ARG_WRITE_MAX_BYTES = new ArgDef('y', "couchbase.write.max.bytes", true, false,
+      "maximum number of bytes stored per second by the whole job, divided evenly across its tasks; defaults to 0 " +
+      "(unlimited)");
+  public static final ArgDef ARG_WRITE_RATE_ADAPTIVE = new ArgDef('a', "couchbase.write.rate.adaptive", true, false,
+      "if true, tasks lower their rate limits while Couchbase answers with temporary failures; defaults to false");
+
+  public static final List<ArgDef> ARGS_LIST = new ArrayList<>(8);
   static {
     ARGS_LIST.add(ARG_INPUT);
     ARGS_LIST.add(ARG_OPERATION);
     ARGS_LIST.add(ARG_EXPIRY);
     ARGS_LIST.add(ARG_DELIMITER_FIELDS);
+    ARGS_LIST.add(ARG_WRITE_WINDOW);
+    ARGS_LIST.add(ARG_WRITE_MAX_OPS);
+    ARGS_LIST.add(ARG_WRITE_MAX_BYTES);
+    ARGS_LIST.add(ARG_WRITE_RATE_ADAPTIVE);
 
     ARGS_LIST.addAll(CouchbaseArgs.ARGS_LIST);
   }
@@ -77,7 +100,11 @@ public class ExportArgs extends CouchbaseArgs {
     input = conf.get(ARG_INPUT.getPropertyName());
     operation = getOperation(conf);
     expiry = getExpiry(conf);
-    fieldsDelimiter = conf.get(ARG_DELIMITER_FIELDS.getPropertyName(), "\t");
+    fieldsDelimiter = getFieldsDelimiter(conf);
+    writeWindow = getWriteWindow(conf);
+    maxOps = getRate(conf, ARG_WRITE_MAX_OPS);
+    maxBytes = getRate(conf, ARG_WRITE_MAX_BYTES);
+    rateAdaptive = conf.getBoolean(ARG_WRITE_RATE_ADAPTIVE.getPropertyName(), false);
   }
 
   /**
@@ -134,7 +161,85 @@ public class ExportArgs extends CouchbaseArgs {
     return expiry;
   }
 
+  public static String getFieldsDelimiter(Configuration hadoopConfiguration) {
+    return hadoopConfiguration.get(ARG_DELIMITER_FIELDS.getPropertyName(), "\t");
+  }
+
   public String getFieldsDelimiter() {
     return fieldsDelimiter;
   }
+
+  public static int getWriteWindow(Configuration hadoopConfiguration) throws ArgsException {
+    String strWriteWindow = hadoopConfiguration.get(ARG_WRITE_WINDOW.getPropertyName());
+
+    // Default value
+    if (strWriteWindow == null) {
+      return 1;
+    }
+
+    int writeWindow;
+    try {
+      writeWindow = Integer.parseInt(strWriteWindow);
+    } catch (NumberFormatException e) {
+      throw new ArgsException("Unrecognized write window value '" + strWriteWindow +
+        "'. Please provide a positive integer.", e);
+    }
+    if (writeWindow < 1) {
+      throw new ArgsException("Unrecognized write window value '" + strWriteWindow +
+        "'. Please provide a positive integer.");
+    }
+
+    return writeWindow;
+  }
+
+  /**
+   * @return maximum number of store operations kept in flight by each task
+   */
+  public int getWriteWindow() {
+    return writeWindow;
+  }
+
+  private static long getRate(Configuration hadoopConfiguration, ArgDef arg) throws ArgsException {
+    String strRate = hadoopConfiguration.get(arg.getPropertyName());
+
+    // Default value
+    if (strRate == null) {
+      return 0;
+    }
+
+    long rate;
+    try {
+      rate = Long.parseLong(strRate);
+    } catch (NumberFormatException e) {
+      throw new ArgsException("Unrecognized " + arg.getPropertyName() + " value '" + strRate +
+        "'. Please provide a non-negative integer.", e);
+    }
+    if (rate < 0) {
+      throw new ArgsException("Unrecognized " + arg.getPropertyName() + " value '" + strRate +
+        "'. Please provide a non-negative integer.");
+    }
+
+    return rate;
+  }
+
+  /**
+   * @return maximum number of store operations per second of the whole job, or 0 if unlimited
+   */
+  public long getMaxOps() {
+    return maxOps;
+  }
+
+  /**
+   * @return maximum number of bytes stored per second by the whole job, or 0 if unlimited
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return whether tasks lower their rate limits while Couchbase answers with temporary failures
+   */
+  public boolean isRateAdaptive() {
+    return rateAdaptive;
+  }
 }
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.exp;
+
+import com.avira.couchdoop.ArgsException;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+import java.io.IOException;
+
+/**
+ * Faster alternative to {@link CsvToCouchbaseMapper}, which writes the same {@link CouchbaseAction} for all lines.
+ * {@link CouchbaseOutputFormat} copies what it needs before {@code write} returns, but other output formats might not.
+ *
+ * <p>Lines are split by the same {@link CsvLineParser}, so they are accepted or rejected exactly like by
+ * {@link CsvToCouchbaseMapper}. The delimiter must not contain characters with a special meaning in regular
+ * expressions, as checked by {@link #isLiteralDelimiter}, so that it is found in the bytes of each line instead of
+ * being matched in a decoded copy of it.</p>
+ */
+public class FastCsvToCouchbaseMapper extends Mapper<LongWritable, Text, String, CouchbaseAction> {
+
+  private CouchbaseOperation operation;
+  private CsvLineParser parser;
+  private boolean rawDocuments;
+
+  private CouchbaseAction action;
+
+  /**
+   * @return whether the delimiter means the same as a literal and as a regular expression
+   */
+  public static boolean isLiteralDelimiter(String delimiter) {
+    return CsvLineParser.isLiteralDelimiter(delimiter);
+  }
+
+  @Override
+  protected void setup(Context context) throws IOException, InterruptedException {
+    String fieldsDelimiter;
+    int expiry;
+    try {
+      ExportArgs exportArgs = new ExportArgs(context.getConfiguration());
+
+      operation = exportArgs.getOperation();
+      expiry = exportArgs.getExpiry();
+      fieldsDelimiter = exportArgs.getFieldsDelimiter();
+      rawDocuments = exportArgs.isRawDocuments();
+    } catch (ArgsException e) {
+      throw new IllegalArgumentException(e);
+    }
+
+    if (!isLiteralDelimiter(fieldsDelimiter)) {
+      throw new IllegalArgumentException("Fields delimiter '" + fieldsDelimiter + "' is a regular expression. Use " +
+          CsvToCouchbaseMapper.class.getSimpleName() + " instead.");
+    }
+    parser = CsvLineParser.create(fieldsDelimiter);
+    if (operation.equals(CouchbaseOperation.DELETE)) {
+      action = CouchbaseAction.createDeleteAction();
+    } else {
+      action = new CouchbaseAction(operation, null, expiry);
+    }
+  }
+
+  @Override
+  protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+    parser.parse(value);
+
+    if (operation.equals(CouchbaseOperation.DELETE)) {
+      if (parser.getFieldsCount() <= 1) {
+        context.getCounter(CsvToCouchbaseMapper.Error.LINES_WITH_WRONG_COLUMNS_COUNT).increment(1);
+        return;
+      }
+    } else {
+      // Skip error line.
+      if (parser.getFieldsCount() != 2) {
+        context.getCounter(CsvToCouchbaseMapper.Error.LINES_WITH_WRONG_COLUMNS_COUNT).increment(1);
+        return;
+      }
+
+      if (rawDocuments) {
+        action.setValue(parser.getDocumentBytes());
+      } else {
+        action.setValue(parser.getDocument());
+      }
+    }
+
+    context.write(parser.getKey(), action);
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.exp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of store operations and of the bytes they store with two token buckets, one for each rate.
+ *
+ * <p>The buckets refill continuously and hold at most one second worth of tokens, so a writer which was idle can't
+ * burst much above its rates. {@link #acquire} takes the tokens of an operation right away and then waits until the
+ * buckets are no longer in debt, so values larger than a bucket are delayed but never blocked.</p>
+ *
+ * <p>If adaptive, the limiter also watches the results of the operations over windows of one second. After a window in
+ * which more than {@value #TEMPORARY_FAILURES_THRESHOLD} of the operations failed temporarily, the rates are halved,
+ * but not below {@value #MIN_RATE_FACTOR} of the configured ones. After each window without temporary failures they
+ * grow back by {@value #RATE_FACTOR_STEP} of the configured ones. Not thread safe.</p>
+ */
+public class RateLimiter {
+
+  /** Fraction of temporary failures in a window above which the rates are decreased. */
+  public static final double TEMPORARY_FAILURES_THRESHOLD = 0.01;
+  /** Lowest fraction of the configured rates used by an adaptive limiter. */
+  public static final double MIN_RATE_FACTOR = 0.0625;
+  /** Fraction of the configured rates added after a window without temporary failures. */
+  public static final double RATE_FACTOR_STEP = 0.0625;
+
+  private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+  /** Minimum number of operations completed in a window to decide about the rates. */
+  private static final long WINDOW_MIN_OPS = 10;
+
+  private final double maxOpsRate; // per second, 0 if unlimited
+  private final double maxBytesRate; // per second, 0 if unlimited
+  private final boolean adaptive;
+
+  private double rateFactor = 1;
+  private double opsTokens;
+  private double bytesTokens;
+  private long refillTime; // ns
+
+  private long windowStartTime; // ns
+  private long windowOps = 0;
+  private long windowTemporaryFailures = 0;
+
+  private long throttledTime = 0; // ns
+  private long decreasesCount = 0;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RateLimiter.class);
+
+  /**
+   * @param maxOpsRate   maximum number of operations per second, or 0 for no limit
+   * @param maxBytesRate maximum number of bytes per second, or 0 for no limit
+   * @param adaptive     whether to decrease the rates while operations fail temporarily
+   */
+  public RateLimiter(double maxOpsRate, double maxBytesRate, boolean adaptive) {
+    if (maxOpsRate < 0 || maxBytesRate < 0) {
+      throw new IllegalArgumentException("Invalid rates " + maxOpsRate + " ops/s and " + maxBytesRate + " bytes/s.");
+    }
+    this.maxOpsRate = maxOpsRate;
+    this.maxBytesRate = maxBytesRate;
+    this.adaptive = adaptive;
+
+    // Start with full buckets.
+    opsTokens = maxOpsRate;
+    bytesTokens = maxBytesRate;
+    refillTime = nanoTime();
+    windowStartTime = refillTime;
+  }
+
+  /**
+   * Takes the tokens for one operation storing the given number of bytes, waiting as long as needed to stay within
+   * the rates.
+   */
+  public void acquire(long bytes) throws InterruptedException {
+    refill();
+
+    long wait = 0;
+    if (maxOpsRate > 0) {
+      opsTokens -= 1;
+      wait = Math.max(wait, getWait(opsTokens, maxOpsRate));
+    }
+    if (maxBytesRate > 0) {
+      bytesTokens -= bytes;
+      wait = Math.max(wait, getWait(bytesTokens, maxBytesRate));
+    }
+
+    if (wait > 0) {
+      sleep(wait);
+      throttledTime += wait;
+    }
+  }
+
+  /**
+   * Accounts the result of an operation, for adaptive limiters.
+   */
+  public void onCompleted(boolean temporaryFailure) {
+    if (!adaptive) {
+      return;
+    }
+
+    windowOps++;
+    if (temporaryFailure) {
+      windowTemporaryFailures++;
+    }
+
+    long now = nanoTime();
+    if (now - windowStartTime < WINDOW || windowOps < WINDOW_MIN_OPS) {
+      return;
+    }
+
+    if (windowTemporaryFailures > windowOps * TEMPORARY_FAILURES_THRESHOLD) {
+      if (rateFactor > MIN_RATE_FACTOR) {
+        rateFactor = Math.max(rateFactor / 2, MIN_RATE_FACTOR);
+        decreasesCount++;
+        LOGGER.info("Rates decreased to {}% because {} of {} operations failed temporarily.",
+            Math.round(rateFactor * 100), windowTemporaryFailures, windowOps);
+      }
+    } else if (windowTemporaryFailures == 0) {
+      rateFactor = Math.min(rateFactor + RATE_FACTOR_STEP, 1);
+    }
+
+    windowStartTime = now;
+    windowOps = 0;
+    windowTemporaryFailures = 0;
+  }
+
+  /**
+   * @return fraction of the configured rates currently in effect
+   */
+  public double getRateFactor() {
+    return rateFactor;
+  }
+
+  /**
+   * @return time in milliseconds spent waiting in {@link #acquire}
+   */
+  public long getThrottledTime() {
+    return TimeUnit.NANOSECONDS.toMillis(throttledTime);
+  }
+
+  public long getDecreasesCount() {
+    return decreasesCount;
+  }
+
+  private void refill() {
+    long now = nanoTime();
+    double elapsed = (double) (now - refillTime) / WINDOW;
+    refillTime = now;
+
+    if (maxOpsRate > 0) {
+      double rate = maxOpsRate * rateFactor;
+      opsTokens = Math.min(opsTokens + elapsed * rate, Math.max(rate, 1));
+    }
+    if (maxBytesRate > 0) {
+      double rate = maxBytesRate * rateFactor;
+      bytesTokens = Math.min(bytesTokens + elapsed * rate, rate);
+    }
+  }
+
+  /**
+   * @return nanoseconds until a bucket with the given tokens refilled at the given rate is no longer in debt
+   */
+  private long getWait(double tokens, double maxRate) {
+    return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / (maxRate * rateFactor) * WINDOW);
+  }
+
+  /**
+   * Current time in nanoseconds, overridden in tests.
+   */
+  protected long nanoTime() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Waits the given number of nanoseconds, overridden in tests.
+   */
+  protected void sleep(long nanos) throws InterruptedException {
+    TimeUnit.NANOSECONDS.sleep(nanos);
+  }
+}
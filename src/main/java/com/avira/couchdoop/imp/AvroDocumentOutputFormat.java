@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.ArgsException;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.IOException;
+
+/**
+ * Writes records of a {@link DocumentSchema} to Avro data files, one for each task, compressed with the codec given
+ * by {@link ImportViewToAvroArgs#ARG_CODEC}. Keys are ignored.
+ */
+public class AvroDocumentOutputFormat extends FileOutputFormat<NullWritable, GenericRecord> {
+
+  @Override
+  public RecordWriter<NullWritable, GenericRecord> getRecordWriter(TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    ImportViewToAvroArgs args;
+    try {
+      args = new ImportViewToAvroArgs(context.getConfiguration());
+    } catch (ArgsException e) {
+      throw new IOException(e);
+    }
+    if (args.getSchema() == null) {
+      throw new IOException("Schema is null.");
+    }
+
+    Path file = getDefaultWorkFile(context, ".avro");
+    final DataFileWriter<GenericRecord> writer =
+        new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(args.getSchema().getAvroSchema()));
+    writer.setCodec(CodecFactory.fromString(args.getCodec()));
+    writer.create(args.getSchema().getAvroSchema(), file.getFileSystem(context.getConfiguration()).create(file, false));
+
+    return new RecordWriter<NullWritable, GenericRecord>() {
+      @Override
+      public void write(NullWritable key, GenericRecord value) throws IOException {
+        // Records are serialized right away, so the caller may reuse them.
+        writer.append(value);
+      }
+
+      @Override
+      public void close(TaskAttemptContext context) throws IOException {
+        writer.close();
+      }
+    };
+  }
+}
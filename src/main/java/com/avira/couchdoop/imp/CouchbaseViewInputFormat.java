@@ -21,13 +21,19 @@ package com.avira.couchdoop.imp;
 
 import com.avira.couchdoop.ArgsException;
 import com.avira.couchdoop.CouchbaseArgs;
+import com.avira.couchdoop.CouchbaseClientPool;
+import com.avira.couchdoop.ExponentialHistogram;
+import com.avira.couchdoop.RawJsonTranscoder;
 import com.couchbase.client.CouchbaseClient;
 import com.couchbase.client.protocol.views.*;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.transcoders.Transcoder;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapreduce.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,14 +43,20 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
- * This input format reads documents from a Couchbase view queried by a list of view keys.
+ * This input format reads documents from a Couchbase view queried by a list of view keys or by a view key range.
  * <p/>
  * Instances emit document IDs as key and the corresponding Couchbase {@link com.couchbase.client.protocol.views.ViewRow}
  * as value.
  * <p/>
- * The view keys passed as input are distributed evenly across a configurable number of Mapper tasks.
+ * The view keys passed as input are distributed across a configurable number of Mapper tasks. If the view counts its
+ * rows with a reduce function, keys are packed into splits by their row counts, otherwise each split gets about the
+ * same number of keys. A view key range is split by sampling the view into as many sub-ranges as Mapper tasks.
  */
 public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
 
@@ -52,14 +64,45 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
 
     private List<String> viewKeys = new ArrayList<>();
 
+    // Key range settings, used instead of viewKeys for range scans.
+    private boolean rangeScan = false;
+    private String startKey;
+    private String startKeyDocId;
+    private String endKey;
+    private String endKeyDocId;
+    private boolean inclusiveEnd = true;
+
+    // Approximate number of view rows read by this split or -1 if unknown.
+    private long estimatedRows = -1;
+
     /**
      * Default constructor (necessary because this is a Writable)
      */
     public CouchbaseViewInputSplit() {
     }
 
+    /**
+     * Creates a split which scans a view key range. The range starts with row (startKey, startKeyDocId) and ends with
+     * row (endKey, endKeyDocId), which is included only if inclusiveEnd is true. Any of them may be null if the
+     * range is open on that side.
+     */
+    public CouchbaseViewInputSplit(String startKey, String startKeyDocId, String endKey, String endKeyDocId,
+                                   boolean inclusiveEnd, long estimatedRows) {
+      this.rangeScan = true;
+      this.startKey = startKey;
+      this.startKeyDocId = startKeyDocId;
+      this.endKey = endKey;
+      this.endKeyDocId = endKeyDocId;
+      this.inclusiveEnd = inclusiveEnd;
+      this.estimatedRows = estimatedRows;
+    }
+
     @Override
     public long getLength() throws IOException, InterruptedException {
+      if (estimatedRows >= 0) {
+        return estimatedRows;
+      }
+
       // The split size is calculated only roughly from the number of keys
       // out of performance considerations
       return viewKeys.size();
@@ -82,6 +125,16 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
 
       ArrayWritable viewKeysWritable = new ArrayWritable(Text.class, viewKeysTexts);
       viewKeysWritable.write(out);
+
+      out.writeBoolean(rangeScan);
+      if (rangeScan) {
+        WritableUtils.writeString(out, startKey);
+        WritableUtils.writeString(out, startKeyDocId);
+        WritableUtils.writeString(out, endKey);
+        WritableUtils.writeString(out, endKeyDocId);
+        out.writeBoolean(inclusiveEnd);
+      }
+      out.writeLong(estimatedRows);
     }
 
     @Override
@@ -90,6 +143,16 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
       viewKeysWritable.readFields(in);
 
       Collections.addAll(viewKeys, viewKeysWritable.toStrings());
+
+      rangeScan = in.readBoolean();
+      if (rangeScan) {
+        startKey = WritableUtils.readString(in);
+        startKeyDocId = WritableUtils.readString(in);
+        endKey = WritableUtils.readString(in);
+        endKeyDocId = WritableUtils.readString(in);
+        inclusiveEnd = in.readBoolean();
+      }
+      estimatedRows = in.readLong();
     }
 
     public void addKey(String key) {
@@ -99,34 +162,201 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
     public List<String> getKeys() {
       return viewKeys;
     }
+
+    public void addEstimatedRows(long rows) {
+      estimatedRows = Math.max(estimatedRows, 0) + rows;
+    }
+
+    /**
+     * @return approximate number of view rows read by this split or -1 if unknown
+     */
+    public long getEstimatedRows() {
+      return estimatedRows;
+    }
+
+    public boolean isRangeScan() {
+      return rangeScan;
+    }
+
+    /**
+     * Creates a query which returns the rows of this split's key range.
+     */
+    public Query getRangeQuery(View view) {
+      Query query = ViewRangeSampler.createRangeQuery(startKey, endKey, view);
+      if (startKeyDocId != null) {
+        query.setStartkeyDocID(startKeyDocId);
+      }
+      if (endKeyDocId != null) {
+        query.setEndkeyDocID(endKeyDocId);
+      }
+      query.setInclusiveEnd(inclusiveEnd);
+      query.setIncludeDocs(true);
+
+      return query;
+    }
+
+    @Override
+    public String toString() {
+      if (rangeScan) {
+        return "CouchbaseViewInputSplit{" +
+            "startKey=" + startKey +
+            ", startKeyDocId=" + startKeyDocId +
+            ", endKey=" + endKey +
+            ", endKeyDocId=" + endKeyDocId +
+            ", inclusiveEnd=" + inclusiveEnd +
+            ", estimatedRows=" + estimatedRows +
+            '}';
+      }
+      return "CouchbaseViewInputSplit{viewKeys=" + viewKeys + '}';
+    }
   }
 
   public static class CouchbaseViewRecordReader extends RecordReader<Text, ViewRow> {
 
+    public static enum Counters { IO_WAIT_TIMES_SUM, FETCHER_BLOCKED_TIMES_SUM, BULK_GET_MISSING_DOCS }
+
     private List<URI> couchbaseUrls;
+    private long couchbaseIdleTimeout;
     private String couchbaseBucket;
     private String couchbasePassword;
     private String couchbaseDesignDocName;
     private String couchbaseViewName;
     private int couchbaseDocsPerPage;
+    private int couchbaseKeysPerQuery;
+    private int couchbasePrefetchPages;
+    private int couchbaseBulkGetPages;
+    private Transcoder<Object> transcoder;
 
     private Queue<String> keyQueue = new LinkedList<>();
     private int totalNumKeys;
+    private int finishedNumKeys = 0;
+    private int fetchedFinishedNumKeys = 0;
+    private int numKeysInCurrentQuery = 0;
+
+    private CouchbaseViewInputSplit rangeSplit;
+    private boolean rangeQueryPending = false;
+    private long rowsRead = 0;
 
     private CouchbaseClient couchbaseClient;
     private View view;
-    private Paginator paginator;
+    private Iterator<ViewResponse> pages;
     private Iterator<ViewRow> rowIterator;
+    private PageFetcher pageFetcher;
+    private Deque<BulkGetPage> bulkGetPages = new ArrayDeque<>();
+    private long bulkGetMissingDocs = 0;
+
+    /**
+     * Latencies in microseconds of the view queries which returned pages, including the documents when they are
+     * included in the view responses.
+     */
+    private ExponentialHistogram pageFetchLatencyHistogram = new ExponentialHistogram();
 
     private Text key = new Text();
     private ViewRow value;
 
     private boolean finished = false;
 
+    private TaskAttemptContext context;
+    private long ioWaitTimesSum = 0;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(CouchbaseViewRecordReader.class);
 
+    /**
+     * A page of view rows together with the number of split keys whose rows were all read before this page.
+     */
+    private static class ViewPage {
+      private final Iterable<ViewRow> rows;
+      private final int finishedNumKeys;
+
+      public ViewPage(Iterable<ViewRow> rows, int finishedNumKeys) {
+        this.rows = rows;
+        this.finishedNumKeys = finishedNumKeys;
+      }
+    }
+
+    private static final ViewPage END_OF_PAGES = new ViewPage(null, 0);
+
+    /**
+     * A page of view rows without documents whose documents are being fetched with a bulk get.
+     */
+    private static class BulkGetPage {
+      private final ViewPage page;
+      private final BulkFuture<Map<String, Object>> docs;
+
+      public BulkGetPage(ViewPage page, BulkFuture<Map<String, Object>> docs) {
+        this.page = page;
+        this.docs = docs;
+      }
+    }
+
+    /**
+     * Background thread which reads view pages ahead of the mapper and buffers them in a bounded queue.
+     */
+    private class PageFetcher extends Thread {
+
+      private BlockingQueue<ViewPage> queue;
+      private volatile Exception error;
+      private long blockedTimesSum = 0;
+
+      public PageFetcher(int depth) {
+        super("view-page-fetcher");
+        setDaemon(true);
+        queue = new ArrayBlockingQueue<>(depth);
+      }
+
+      @Override
+      public void run() {
+        long t0, t1;
+        try {
+          ViewPage page;
+          do {
+            try {
+              page = fetchNextPage();
+            } catch (IOException | RuntimeException e) {
+              error = e;
+              page = null;
+            }
+
+            t0 = System.currentTimeMillis();
+            // Wait if the queue is full.
+            queue.put(page == null ? END_OF_PAGES : page);
+            t1 = System.currentTimeMillis();
+            blockedTimesSum += t1 - t0;
+          } while (page != null);
+        } catch (InterruptedException e) {
+          // The thread ends if interrupted.
+        }
+      }
+
+      /**
+       * @return next page read ahead or null if there are no more pages
+       */
+      public ViewPage take() throws IOException, InterruptedException {
+        ViewPage page = queue.take();
+        if (page == END_OF_PAGES) {
+          // Let the next calls find the end of the pages too.
+          queue.put(END_OF_PAGES);
+          if (error != null) {
+            throw new IOException("Failed to read pages from Couchbase view.", error);
+          }
+          return null;
+        }
+        return page;
+      }
+
+      public void shutdown() throws InterruptedException {
+        interrupt();
+        join();
+      }
+
+      public long getBlockedTimesSum() {
+        return blockedTimesSum;
+      }
+    }
+
     @Override
     public void initialize(InputSplit inputSplit, TaskAttemptContext context) throws IOException, InterruptedException {
+      this.context = context;
       initCouchbaseArgs(context);
 
       //Add all keys to a queue
@@ -134,44 +364,177 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
       keyQueue.addAll(couchbaseViewInputSplit.getKeys());
       totalNumKeys = keyQueue.size();
 
-      if (0 == keyQueue.size()) {
+      if (couchbaseViewInputSplit.isRangeScan()) {
+        rangeSplit = couchbaseViewInputSplit;
+        rangeQueryPending = true;
+      } else if (0 == keyQueue.size()) {
         //No keys
         return;
       }
 
       initCouchbaseClient();
       initCouchbaseView();
+
+      if (couchbasePrefetchPages > 0) {
+        LOGGER.info("Reading up to {} pages ahead.", couchbasePrefetchPages);
+        pageFetcher = new PageFetcher(couchbasePrefetchPages);
+        pageFetcher.start();
+      }
+
       initNextRowIterator();
     }
 
 
-    private boolean initNextRowIterator() {
-      if ( (paginator != null) && paginator.hasNext() ) {
-        //We have a next page, get the row iterator from there
-        rowIterator = paginator.next().iterator();
-        return true;
-      }
+    private boolean initNextRowIterator() throws IOException, InterruptedException {
+      long t0, t1;
+
+      t0 = System.currentTimeMillis();
+      ViewPage page = (pageFetcher != null) ? pageFetcher.take() : fetchNextPage();
+      t1 = System.currentTimeMillis();
+      ioWaitTimesSum += t1 - t0;
 
-      String nextKey = keyQueue.poll();
-      if(nextKey == null) {
-        //No more keys, no more row iterators, return false
+      if (page == null) {
+        //No more pages, no more row iterators, return false
         return false;
       }
 
-      Query query = getQueryForKey(nextKey);
-      paginator = couchbaseClient.paginatedQuery(view, query, couchbaseDocsPerPage);
+      rowIterator = page.rows.iterator();
+      finishedNumKeys = page.finishedNumKeys;
+      return true;
+    }
+
+    /**
+     * Reads the next page from Couchbase. Called either by the mapper thread or by the page fetcher thread.
+     *
+     * @return the next page or null if there are no more pages
+     */
+    private ViewPage fetchNextPage() throws IOException, InterruptedException {
+      if (couchbaseBulkGetPages <= 0) {
+        return fetchNextViewPage();
+      }
+
+      // Keep the documents of several pages in flight.
+      while (bulkGetPages.size() < couchbaseBulkGetPages) {
+        ViewPage page = fetchNextViewPage();
+        if (page == null) {
+          break;
+        }
+
+        List<String> ids = new ArrayList<>();
+        for (ViewRow row : page.rows) {
+          ids.add(row.getId());
+        }
+        bulkGetPages.add(new BulkGetPage(page, transcoder == null ?
+            couchbaseClient.asyncGetBulk(ids) : couchbaseClient.asyncGetBulk(ids, transcoder)));
+      }
+
+      BulkGetPage bulkGetPage = bulkGetPages.poll();
+      if (bulkGetPage == null) {
+        return null;
+      }
+
+      Map<String, Object> docs;
+      try {
+        docs = bulkGetPage.docs.get();
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to get the documents of a view page.", e.getCause());
+      }
+
+      List<ViewRow> rows = new ArrayList<>();
+      for (ViewRow row : bulkGetPage.page.rows) {
+        Object doc = docs.get(row.getId());
+        if (doc == null) {
+          // Deleted after the view was indexed; include_docs would return a null document as well.
+          bulkGetMissingDocs++;
+        }
+        rows.add(new ViewRowWithDocs(row.getId(), row.getKey(), row.getValue(), doc));
+      }
 
-      //Loaded a new Paginator, start over
-      return initNextRowIterator();
+      return new ViewPage(rows, bulkGetPage.page.finishedNumKeys);
+    }
+
+    /**
+     * @return the next page of view rows or null if there are no more pages
+     */
+    private ViewPage fetchNextViewPage() {
+      long startTime = System.nanoTime();
+      while (true) {
+        if ( (pages != null) && pages.hasNext() ) {
+          //We have a next page
+          ViewPage page = new ViewPage(pages.next(), fetchedFinishedNumKeys);
+          pageFetchLatencyHistogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+          return page;
+        }
+
+        //The keys of the previous query are finished
+        fetchedFinishedNumKeys += numKeysInCurrentQuery;
+        numKeysInCurrentQuery = 0;
+
+        pages = nextPages();
+        if (pages == null) {
+          //No more keys, no more pages
+          return null;
+        }
+      }
+    }
+
+    /**
+     * @return pages of the query for the next keys or for the key range, or null if everything was queried
+     */
+    private Iterator<ViewResponse> nextPages() {
+      if (rangeQueryPending) {
+        rangeQueryPending = false;
+        Query query = rangeSplit.getRangeQuery(view);
+        query.setIncludeDocs(isIncludeDocs());
+        return new ViewRangePaginator(couchbaseClient, view, query, couchbaseDocsPerPage);
+      }
+
+      if (keyQueue.isEmpty()) {
+        return null;
+      }
+
+      if (couchbaseKeysPerQuery <= 1) {
+        numKeysInCurrentQuery = 1;
+        return couchbaseClient.paginatedQuery(view, getQueryForKey(keyQueue.poll()), couchbaseDocsPerPage);
+      }
+
+      //Group several keys in the same query
+      List<String> keys = new ArrayList<>(couchbaseKeysPerQuery);
+      while (keys.size() < couchbaseKeysPerQuery && !keyQueue.isEmpty()) {
+        keys.add(keyQueue.poll());
+      }
+      numKeysInCurrentQuery = keys.size();
+
+      Query query = MultiKeyPaginator.createQueryForKeys(keys);
+      disableReduce(query);
+      query.setIncludeDocs(isIncludeDocs());
+      return new MultiKeyPaginator(couchbaseClient, view, query, couchbaseDocsPerPage);
     }
 
     private Query getQueryForKey(String key) {
       Query query = new Query();
       query.setKey(key);
-      query.setIncludeDocs(true);
+      disableReduce(query);
+      query.setIncludeDocs(isIncludeDocs());
       return query;
     }
 
+    /**
+     * Views which count their rows for splitting are reduced by default, but the rows themselves are read.
+     */
+    private void disableReduce(Query query) {
+      if (view.hasReduce()) {
+        query.setReduce(false);
+      }
+    }
+
+    /**
+     * Documents are either included in the view response or fetched separately with bulk gets.
+     */
+    private boolean isIncludeDocs() {
+      return couchbaseBulkGetPages <= 0;
+    }
+
 
     private void initCouchbaseView() throws IOException {
       // Prepare for querying the Couchbase view.
@@ -196,11 +559,20 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
       }
 
       couchbaseUrls = importViewArgs.getUrls();
+      couchbaseIdleTimeout = importViewArgs.getClientIdleTimeout();
       couchbaseBucket = importViewArgs.getBucket();
       couchbasePassword = importViewArgs.getPassword();
       couchbaseDesignDocName = importViewArgs.getDesignDocumentName();
       couchbaseViewName = importViewArgs.getViewName();
       couchbaseDocsPerPage = importViewArgs.getDocumentsPerPage();
+      couchbaseKeysPerQuery = importViewArgs.getKeysPerQuery();
+      couchbasePrefetchPages = importViewArgs.getPrefetchPages();
+      couchbaseBulkGetPages = importViewArgs.getBulkGetPages();
+      if (importViewArgs.isRawDocuments()) {
+        // Documents included in view responses are always decoded to strings, so get them separately.
+        transcoder = new RawJsonTranscoder();
+        couchbaseBulkGetPages = Math.max(couchbaseBulkGetPages, 1);
+      }
     }
 
 
@@ -208,10 +580,9 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
       //Skip if couchbaseClient is already set
       if(couchbaseClient != null) { return; }
 
-      LOGGER.info("Connecting to Couchbase...");
       try {
-        couchbaseClient = new CouchbaseClient(couchbaseUrls, couchbaseBucket, couchbasePassword);
-        LOGGER.info("Connected to Couchbase.");
+        couchbaseClient = CouchbaseClientPool.acquire(couchbaseUrls, couchbaseBucket, couchbasePassword,
+            couchbaseIdleTimeout);
       } catch (IOException e) {
         LOGGER.error(ExceptionUtils.getStackTrace(e));
         throw e;
@@ -221,8 +592,7 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
     private void disconnectFromCouchbase() {
       //Skip if couchbaseClient is not set
       if(couchbaseClient==null) { return; }
-      LOGGER.info("Disconnecting from Couchbase...");
-      couchbaseClient.shutdown();
+      CouchbaseClientPool.release(couchbaseClient);
       couchbaseClient = null;
     }
 
@@ -240,6 +610,7 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
         }
       }
 
+      finished = true;
       return false;
     }
 
@@ -249,6 +620,7 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
       }
       value = rowIterator.next();
       key.set(value.getId());
+      rowsRead++;
       return true;
     }
 
@@ -264,12 +636,40 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
 
     @Override
     public float getProgress() throws IOException, InterruptedException {
-      return  (float)(totalNumKeys - keyQueue.size()) / totalNumKeys ;
+      if (finished) {
+        return 1.0f;
+      }
+      if (rangeSplit != null) {
+        // The number of rows of a range is only estimated.
+        long estimatedRows = rangeSplit.getLength();
+        return estimatedRows > 0 ? Math.min((float) rowsRead / estimatedRows, 0.99f) : 0.0f;
+      }
+      return totalNumKeys > 0 ? (float) finishedNumKeys / totalNumKeys : 0.0f;
     }
 
     @Override
     public void close() throws IOException {
+      long fetcherBlockedTimesSum = 0;
+      if (pageFetcher != null) {
+        try {
+          pageFetcher.shutdown();
+        } catch (InterruptedException e) {
+          LOGGER.warn("Interrupted while stopping the page fetcher thread.");
+        }
+        fetcherBlockedTimesSum = pageFetcher.getBlockedTimesSum();
+        pageFetcher = null;
+      }
+
       disconnectFromCouchbase();
+
+      // Update counters.
+      if (context != null) {
+        context.getCounter(Counters.IO_WAIT_TIMES_SUM).increment(ioWaitTimesSum);
+        context.getCounter(Counters.FETCHER_BLOCKED_TIMES_SUM).increment(fetcherBlockedTimesSum);
+        context.getCounter(Counters.BULK_GET_MISSING_DOCS).increment(bulkGetMissingDocs);
+        pageFetchLatencyHistogram.writeToCounters(context, CouchbaseViewInputFormat.class.getName(),
+            "PAGE_FETCH_LATENCY", "US");
+      }
     }
   }
 
@@ -285,7 +685,16 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
     } catch (ArgsException e) {
       throw new RuntimeException("ImportViewArgs can't load settings from Hadoop Configuration");
     }
+    if (importViewArgs.isRangeScan()) {
+      return getRangeSplits(importViewArgs);
+    }
+
     String[] viewKeys = importViewArgs.getViewKeys();
+    Map<String, Long> rowCounts = estimateKeyRowCounts(importViewArgs);
+    if (rowCounts != null) {
+      return getCostBalancedSplits(viewKeys, rowCounts, importViewArgs.getNumMappers());
+    }
+
     int viewKeysPerMapTask = (int) Math.ceil((double)viewKeys.length / importViewArgs.getNumMappers());
 
     LOGGER.info("Number of keys per map task is {} ({} / {})",
@@ -311,6 +720,130 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
     return inputSplits;
   }
 
+  /**
+   * Asks the view for the number of rows of each key.
+   *
+   * @return row counts by key or null if they can't be estimated
+   */
+  protected Map<String, Long> estimateKeyRowCounts(ImportViewArgs importViewArgs) {
+    String[] viewKeys = importViewArgs.getViewKeys();
+    if (viewKeys.length <= importViewArgs.getNumMappers()) {
+      // Each key gets its own map task anyway.
+      return null;
+    }
+
+    LOGGER.info("Estimating the number of rows of {} keys of view {}...", viewKeys.length,
+        importViewArgs.getViewName());
+    CouchbaseClient couchbaseClient = null;
+    try {
+      couchbaseClient = CouchbaseClientPool.acquire(importViewArgs.getUrls(), importViewArgs.getBucket(),
+          importViewArgs.getPassword(), importViewArgs.getClientIdleTimeout());
+      View view = couchbaseClient.getView(importViewArgs.getDesignDocumentName(), importViewArgs.getViewName());
+      return new ViewKeyCostEstimator(couchbaseClient, view).estimateRowCounts(Arrays.asList(viewKeys));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Failed to estimate the number of rows of each key. Splitting by the number of keys instead.", e);
+      return null;
+    } finally {
+      if (couchbaseClient != null) {
+        CouchbaseClientPool.release(couchbaseClient);
+      }
+    }
+  }
+
+  /**
+   * Distributes the keys to splits such that all splits read about the same number of rows. Keys are taken in
+   * decreasing order of their row count and each is added to the split with the lowest cost so far.
+   */
+  protected List<InputSplit> getCostBalancedSplits(String[] viewKeys, final Map<String, Long> rowCounts,
+                                                   int numMappers) {
+    int numSplits = Math.max(Math.min(numMappers, viewKeys.length), 1);
+
+    // Querying a key costs about as much as reading one row, even if the key has no rows.
+    PriorityQueue<CouchbaseViewInputSplit> splitsByCost = new PriorityQueue<>(numSplits,
+        new Comparator<CouchbaseViewInputSplit>() {
+          @Override
+          public int compare(CouchbaseViewInputSplit s1, CouchbaseViewInputSplit s2) {
+            return Long.compare(s1.getEstimatedRows() + s1.getKeys().size(),
+                s2.getEstimatedRows() + s2.getKeys().size());
+          }
+        });
+    List<InputSplit> inputSplits = new ArrayList<>(numSplits);
+    for (int i = 0; i < numSplits; i++) {
+      CouchbaseViewInputSplit inputSplit = new CouchbaseViewInputSplit();
+      inputSplit.addEstimatedRows(0);
+      inputSplits.add(inputSplit);
+      splitsByCost.add(inputSplit);
+    }
+
+    List<String> sortedKeys = new ArrayList<>(Arrays.asList(viewKeys));
+    Collections.sort(sortedKeys, new Comparator<String>() {
+      @Override
+      public int compare(String k1, String k2) {
+        return Long.compare(rowCounts.get(k2), rowCounts.get(k1));
+      }
+    });
+
+    long totalRows = 0;
+    for (String viewKey : sortedKeys) {
+      long rows = rowCounts.get(viewKey);
+      totalRows += rows;
+
+      CouchbaseViewInputSplit inputSplit = splitsByCost.poll();
+      inputSplit.addKey(viewKey);
+      inputSplit.addEstimatedRows(rows);
+      splitsByCost.add(inputSplit);
+    }
+
+    long minRows = Long.MAX_VALUE, maxRows = 0;
+    for (InputSplit inputSplit : inputSplits) {
+      long rows = ((CouchbaseViewInputSplit) inputSplit).getEstimatedRows();
+      minRows = Math.min(minRows, rows);
+      maxRows = Math.max(maxRows, rows);
+    }
+    LOGGER.info("Planned {} splits for {} keys with about {} rows. Rows per split: min {}, max {}, avg {}.",
+        numSplits, viewKeys.length, totalRows, minRows, maxRows, totalRows / numSplits);
+
+    return inputSplits;
+  }
+
+  /**
+   * Splits the view key range into sub-ranges, one for each Mapper task, by sampling the view.
+   */
+  protected List<InputSplit> getRangeSplits(ImportViewArgs importViewArgs) throws IOException {
+    String startKey = importViewArgs.getViewStartKey();
+    String endKey = importViewArgs.getViewEndKey();
+
+    LOGGER.info("Sampling view {} in order to split key range [{}, {}] for {} map tasks...",
+        importViewArgs.getViewName(), startKey, endKey, importViewArgs.getNumMappers());
+    CouchbaseClient couchbaseClient = CouchbaseClientPool.acquire(importViewArgs.getUrls(),
+        importViewArgs.getBucket(), importViewArgs.getPassword(), importViewArgs.getClientIdleTimeout());
+    List<ViewRangeSampler.Boundary> boundaries;
+    long rowCount;
+    try {
+      View view = couchbaseClient.getView(importViewArgs.getDesignDocumentName(), importViewArgs.getViewName());
+      ViewRangeSampler sampler = new ViewRangeSampler(couchbaseClient, view, startKey, endKey);
+      rowCount = sampler.estimateRowCount();
+      boundaries = sampler.sampleBoundaries(importViewArgs.getNumMappers(), rowCount);
+    } finally {
+      CouchbaseClientPool.release(couchbaseClient);
+    }
+
+    List<InputSplit> inputSplits = new ArrayList<>(boundaries.size() + 1);
+    long rowsPerSplit = rowCount / (boundaries.size() + 1);
+    String splitStartKey = startKey;
+    String splitStartKeyDocId = null;
+    for (ViewRangeSampler.Boundary boundary : boundaries) {
+      // The boundary row is the first one of the next split.
+      inputSplits.add(new CouchbaseViewInputSplit(splitStartKey, splitStartKeyDocId,
+          boundary.getKey(), boundary.getDocId(), false, rowsPerSplit));
+      splitStartKey = boundary.getKey();
+      splitStartKeyDocId = boundary.getDocId();
+    }
+    inputSplits.add(new CouchbaseViewInputSplit(splitStartKey, splitStartKeyDocId, endKey, null, true, rowsPerSplit));
+
+    return inputSplits;
+  }
+
   @Override
   public RecordReader<Text, ViewRow> createRecordReader(InputSplit inputSplit, TaskAttemptContext taskAttemptContext)
     throws IOException, InterruptedException {
@@ -331,4 +864,28 @@ public class CouchbaseViewInputFormat extends InputFormat<Text, ViewRow> {
     conf.set(ImportViewArgs.ARG_VIEW_KEYS.getPropertyName(), viewKeys);
   }
 
+  /**
+   * Configures the job to scan a view key range, split into a number of sub-ranges which are read by different Mapper
+   * tasks. Any of the start and end keys may be null if the range is open on that side.
+   */
+  public static void initRangeJob(Job job, String urls, String bucket, String password,
+                                  String designDocumentName, String viewName, String startKey, String endKey,
+                                  int numRanges) {
+    job.setInputFormatClass(CouchbaseViewInputFormat.class);
+
+    Configuration conf = job.getConfiguration();
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_URLS.getPropertyName(), urls);
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_BUCKET.getPropertyName(), bucket);
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_PASSWORD.getPropertyName(), password);
+    conf.set(ImportViewArgs.ARG_DESIGNDOC_NAME.getPropertyName(), designDocumentName);
+    conf.set(ImportViewArgs.ARG_VIEW_NAME.getPropertyName(), viewName);
+    if (startKey != null) {
+      conf.set(ImportViewArgs.ARG_VIEW_STARTKEY.getPropertyName(), startKey);
+    }
+    if (endKey != null) {
+      conf.set(ImportViewArgs.ARG_VIEW_ENDKEY.getPropertyName(), endKey);
+    }
+    conf.setInt(ImportViewArgs.ARG_NUM_MAPPERS.getPropertyName(), numRanges);
+  }
+
 }
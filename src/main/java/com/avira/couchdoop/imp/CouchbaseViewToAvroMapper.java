@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.ArgsException;
+import com.couchbase.client.protocol.views.ViewRow;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * Mapper class which flattens each document retrieved from a Couchbase view key into an Avro record of the
+ * {@link DocumentSchema} given by {@link ImportViewToAvroArgs#ARG_SCHEMA}.
+ *
+ * <p>The output record is reused, so it must be written before the next call, as
+ * {@link AvroDocumentOutputFormat} does.</p>
+ */
+public class CouchbaseViewToAvroMapper extends Mapper<Text, ViewRow, NullWritable, GenericRecord> {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private DocumentSchema schema;
+  private GenericRecord record;
+
+  /**
+   * <ul>
+   *   <li>DOCUMENTS_NOT_JSON - documents which are not valid JSON and are skipped;</li>
+   *   <li>VALUES_NOT_MATCHING_SCHEMA - values whose type didn't match their column and were written as null.</li>
+   * </ul>
+   */
+  public static enum Counters { DOCUMENTS_NOT_JSON, VALUES_NOT_MATCHING_SCHEMA }
+
+  @Override
+  protected void setup(Context context) throws IOException, InterruptedException {
+    try {
+      schema = new ImportViewToAvroArgs(context.getConfiguration()).getSchema();
+      if (schema == null) {
+        throw new IllegalArgumentException("Schema is null.");
+      }
+    } catch (ArgsException e) {
+      throw new IOException(e);
+    }
+    record = schema.createRecord();
+  }
+
+  @Override
+  protected void map(Text key, ViewRow value, Context context) throws IOException, InterruptedException {
+    if (value == null || value.getDocument() == null) {
+      return;
+    }
+
+    JsonNode doc;
+    try {
+      doc = parse(value.getDocument());
+    } catch (JsonProcessingException e) {
+      context.getCounter(Counters.DOCUMENTS_NOT_JSON).increment(1);
+      return;
+    }
+
+    int mismatches = schema.fill(record, key.toString(), doc);
+    if (mismatches > 0) {
+      context.getCounter(Counters.VALUES_NOT_MATCHING_SCHEMA).increment(mismatches);
+    }
+    context.write(NullWritable.get(), record);
+  }
+
+  private JsonNode parse(Object doc) throws IOException {
+    // Documents read as raw bytes are parsed without decoding them to a string first.
+    if (doc instanceof byte[]) {
+      return objectMapper.readTree(objectMapper.getJsonFactory().createJsonParser((byte[]) doc));
+    }
+    return objectMapper.readTree(doc.toString());
+  }
+}
@@ -28,13 +28,37 @@ import java.io.IOException;
 
 /**
  * Mapper class which maps each document retrieved from a Couchbase view key to text key-values.
+ *
+ * <p>Documents read as raw bytes are copied to the output as they are, without decoding them.</p>
  */
 public class CouchbaseViewToFileMapper extends Mapper<Text, ViewRow, Text, Text> {
 
+  private final Text document = new Text();
+
+  /**
+   * <ul>
+   *   <li>MISSING_DOCUMENTS - rows whose document was deleted after the view was indexed and which are skipped.</li>
+   * </ul>
+   */
+  public static enum Counters { MISSING_DOCUMENTS }
+
   @Override
   protected void map(Text key, ViewRow value, Context context) throws IOException, InterruptedException {
-    if (value != null) {
-      context.write(key, new Text(value.getDocument().toString()));
+    if (value == null) {
+      return;
+    }
+
+    Object doc = value.getDocument();
+    if (doc == null) {
+      context.getCounter(Counters.MISSING_DOCUMENTS).increment(1);
+      return;
+    }
+
+    if (doc instanceof byte[]) {
+      document.set((byte[]) doc);
+    } else {
+      document.set(doc.toString());
     }
+    context.write(key, document);
   }
 }
@@ -21,6 +21,7 @@ package com.avira.couchdoop.imp;
 
 import com.avira.couchdoop.ArgsException;
 import com.couchbase.client.protocol.views.ViewRow;
+import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -28,24 +29,32 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
- * Mapper class which maps each document retrieved from a Couchbase view key to text key-values.
+ * Mapper class which maps each document retrieved from a Couchbase view key to an HBase Put.
+ *
+ * <p>The column is encoded once and the output key is reused. A new Put is created for each document, because the
+ * output format may buffer Puts before sending them.</p>
  */
 public class CouchbaseViewToHBaseMapper extends Mapper<Text, ViewRow, ImmutableBytesWritable, Put> {
 
-  private String columnFamily;
-  private String columnQualifier;
+  private byte[] columnFamily;
+  private byte[] columnQualifier;
+  private Durability durability;
+
+  private ImmutableBytesWritable outKey = new ImmutableBytesWritable();
 
   @Override
   protected void setup(Context context) throws IOException, InterruptedException {
     try {
       ImportViewToHBaseArgs importViewToHBaseArgs = new ImportViewToHBaseArgs(context.getConfiguration());
-      columnFamily = importViewToHBaseArgs.getColumnFamily();
-      columnQualifier = importViewToHBaseArgs.getColumnQualifier();
-      if (columnFamily == null || columnQualifier == null) {
+      if (importViewToHBaseArgs.getColumnFamily() == null || importViewToHBaseArgs.getColumnQualifier() == null) {
         throw new IllegalArgumentException("Column is null.");
       }
+      columnFamily = Bytes.toBytes(importViewToHBaseArgs.getColumnFamily());
+      columnQualifier = Bytes.toBytes(importViewToHBaseArgs.getColumnQualifier());
+      durability = importViewToHBaseArgs.getDurability();
     } catch (ArgsException e) {
       throw new IOException(e);
     }
@@ -54,13 +63,19 @@ public class CouchbaseViewToHBaseMapper extends Mapper<Text, ViewRow, ImmutableB
   @Override
   protected void map(Text cbKey, ViewRow cbViewRow, Context context) throws IOException, InterruptedException {
     if (cbKey != null && cbViewRow != null && cbViewRow.getDocument() != null) {
-      byte[] hRowKey = Bytes.toBytes(cbKey.toString());
+      // Text keys are already UTF-8 encoded.
+      byte[] hRowKey = Arrays.copyOf(cbKey.getBytes(), cbKey.getLength());
+
+      // Documents read as raw bytes are stored without decoding them.
+      Object doc = cbViewRow.getDocument();
+      byte[] hValue = doc instanceof byte[] ? (byte[]) doc : Bytes.toBytes(doc.toString());
 
       Put put = new Put(hRowKey);
-      put.add(Bytes.toBytes(columnFamily), Bytes.toBytes(columnQualifier),
-          Bytes.toBytes(cbViewRow.getDocument().toString()));
+      put.add(columnFamily, columnQualifier, hValue);
+      put.setDurability(durability);
 
-      context.write(new ImmutableBytesWritable(hRowKey), put);
+      outKey.set(hRowKey);
+      context.write(outKey, put);
     }
   }
 }
@@ -0,0 +1,329 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.ArgsException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.NullNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Flat schema of JSON documents, which maps fields of the documents to columns of an Avro record.
+ *
+ * <p>Each column is given by a path of field names separated by dots, e.g. {@code user.id}, and a type. Nested
+ * objects are flattened into one column for each of their fields, while arrays are stored as JSON strings. The first
+ * column of each record always holds the document ID.</p>
+ *
+ * <p>In paths and in the format of {@link #parse}, a backslash escapes a dot, comma, colon or backslash which is part
+ * of a field name, e.g. {@code user.first\.name}.</p>
+ */
+public class DocumentSchema {
+
+  public static enum ColumnType {
+    BOOLEAN(Schema.Type.BOOLEAN), LONG(Schema.Type.LONG), DOUBLE(Schema.Type.DOUBLE), STRING(Schema.Type.STRING);
+
+    private final Schema.Type avroType;
+
+    private ColumnType(Schema.Type avroType) {
+      this.avroType = avroType;
+    }
+
+    /**
+     * @return the narrowest type which can hold the values of both types
+     */
+    public ColumnType merge(ColumnType other) {
+      if (this == other) {
+        return this;
+      }
+      if ((this == LONG && other == DOUBLE) || (this == DOUBLE && other == LONG)) {
+        return DOUBLE;
+      }
+      return STRING;
+    }
+  }
+
+  /** Name of the column which holds the document ID. */
+  public static final String ID_COLUMN = "_id";
+
+  private static final String RECORD_NAME = "Document";
+  private static final String RECORD_NAMESPACE = "com.avira.couchdoop";
+
+  private final List<String[]> paths = new ArrayList<>();
+  private final List<ColumnType> types = new ArrayList<>();
+  private final Schema avroSchema;
+
+  public DocumentSchema(Map<String, ColumnType> columns) {
+    List<Schema.Field> fields = new ArrayList<>(columns.size() + 1);
+    fields.add(new Schema.Field(ID_COLUMN, Schema.create(Schema.Type.STRING), "document ID", null));
+
+    Set<String> names = new HashSet<>();
+    names.add(ID_COLUMN);
+    for (Map.Entry<String, ColumnType> column : columns.entrySet()) {
+      paths.add(splitPath(column.getKey()));
+      types.add(column.getValue());
+
+      Schema nullable = Schema.createUnion(Arrays.asList(
+          Schema.create(Schema.Type.NULL), Schema.create(column.getValue().avroType)));
+      fields.add(new Schema.Field(toFieldName(column.getKey(), names), nullable, column.getKey(),
+          NullNode.getInstance()));
+    }
+
+    avroSchema = Schema.createRecord(RECORD_NAME, null, RECORD_NAMESPACE, false);
+    avroSchema.setFields(fields);
+  }
+
+  /**
+   * Parses a schema given as comma separated columns in format {@code path:type}, e.g.
+   * {@code user.id:long,user.name:string}. Types are case insensitive.
+   */
+  public static DocumentSchema parse(String spec) throws ArgsException {
+    Map<String, ColumnType> columns = new LinkedHashMap<>();
+    for (String column : split(spec, ',')) {
+      List<String> pathAndType = split(column.trim(), ':');
+      if (pathAndType.size() != 2 || pathAndType.get(0).isEmpty()) {
+        throw new ArgsException("Invalid column '" + column + "'. Columns must be given as path:type.");
+      }
+      try {
+        columns.put(pathAndType.get(0), ColumnType.valueOf(pathAndType.get(1).toUpperCase()));
+      } catch (IllegalArgumentException e) {
+        throw new ArgsException("Unrecognized type of column '" + column +
+            "'. Please provide one of the following: boolean, long, double and string.", e);
+      }
+    }
+    return new DocumentSchema(columns);
+  }
+
+  /**
+   * Infers a schema with a column for each leaf field found in the given documents. A field with values of
+   * different types gets the narrowest type which can hold all of them, usually string. Fields which are always null
+   * are strings.
+   */
+  public static DocumentSchema infer(List<JsonNode> docs) {
+    Map<String, ColumnType> columns = new LinkedHashMap<>();
+    for (JsonNode doc : docs) {
+      inferColumns(doc, null, columns);
+    }
+    for (Map.Entry<String, ColumnType> column : columns.entrySet()) {
+      if (column.getValue() == null) {
+        column.setValue(ColumnType.STRING);
+      }
+    }
+    return new DocumentSchema(columns);
+  }
+
+  private static void inferColumns(JsonNode node, String path, Map<String, ColumnType> columns) {
+    if (node.isObject()) {
+      Iterator<Map.Entry<String, JsonNode>> fields = node.getFields();
+      while (fields.hasNext()) {
+        Map.Entry<String, JsonNode> field = fields.next();
+        String name = escape(field.getKey());
+        inferColumns(field.getValue(), path == null ? name : path + "." + name, columns);
+      }
+      return;
+    }
+    if (path == null) {
+      // Documents which aren't objects have no fields.
+      return;
+    }
+
+    ColumnType type = getColumnType(node);
+    ColumnType previous = columns.get(path);
+    if (previous == null) {
+      columns.put(path, type);
+    } else if (type != null) {
+      columns.put(path, previous.merge(type));
+    }
+  }
+
+  /**
+   * Escapes the characters of a field name which separate paths, columns and types.
+   */
+  private static String escape(String field) {
+    StringBuilder escaped = new StringBuilder(field.length());
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '\\' || c == '.' || c == ',' || c == ':') {
+        escaped.append('\\');
+      }
+      escaped.append(c);
+    }
+    return escaped.toString();
+  }
+
+  /**
+   * Splits a string at the separators which aren't escaped, leaving the escapes in the parts.
+   */
+  private static List<String> split(String s, char separator) {
+    List<String> parts = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == separator) {
+        parts.add(s.substring(start, i));
+        start = i + 1;
+      }
+    }
+    parts.add(s.substring(start));
+    return parts;
+  }
+
+  /**
+   * @return the unescaped field names of a path
+   */
+  private static String[] splitPath(String path) {
+    List<String> fields = split(path, '.');
+    String[] names = new String[fields.size()];
+    for (int i = 0; i < names.length; i++) {
+      StringBuilder name = new StringBuilder(fields.get(i).length());
+      String field = fields.get(i);
+      for (int j = 0; j < field.length(); j++) {
+        char c = field.charAt(j);
+        if (c == '\\' && j + 1 < field.length()) {
+          c = field.charAt(++j);
+        }
+        name.append(c);
+      }
+      names[i] = name.toString();
+    }
+    return names;
+  }
+
+  /**
+   * @return type of a leaf value or null for JSON null
+   */
+  private static ColumnType getColumnType(JsonNode node) {
+    if (node.isNull()) {
+      return null;
+    } else if (node.isBoolean()) {
+      return ColumnType.BOOLEAN;
+    } else if (node.isIntegralNumber()) {
+      return ColumnType.LONG;
+    } else if (node.isNumber()) {
+      return ColumnType.DOUBLE;
+    }
+    return ColumnType.STRING;
+  }
+
+  /**
+   * Makes an Avro field name from a column path by replacing dots and other invalid characters with underscores.
+   * Names which would clash with previous ones get a numeric suffix.
+   */
+  private static String toFieldName(String path, Set<String> names) {
+    StringBuilder name = new StringBuilder(path.length() + 1);
+    if (path.isEmpty() || !(Character.isLetter(path.charAt(0)) || path.charAt(0) == '_')) {
+      name.append('_');
+    }
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      name.append(c < 128 && (Character.isLetterOrDigit(c) || c == '_') ? c : '_');
+    }
+
+    String unique = name.toString();
+    for (int i = 2; !names.add(unique); i++) {
+      unique = name.toString() + "_" + i;
+    }
+    return unique;
+  }
+
+  /**
+   * Fills a record with the document ID and the columns of a document. Columns which are missing from the document
+   * or whose values don't match their type are set to null.
+   *
+   * @param record record of {@link #getAvroSchema()}, which may be reused
+   * @return number of values which didn't match the type of their column
+   */
+  public int fill(GenericRecord record, String id, JsonNode doc) {
+    int mismatches = 0;
+    record.put(0, id);
+    for (int i = 0; i < paths.size(); i++) {
+      JsonNode node = doc;
+      for (String field : paths.get(i)) {
+        node = node == null ? null : node.get(field);
+      }
+
+      Object value = node == null || node.isNull() ? null : convert(node, types.get(i));
+      if (value == null && node != null && !node.isNull()) {
+        mismatches++;
+      }
+      record.put(i + 1, value);
+    }
+    return mismatches;
+  }
+
+  private static Object convert(JsonNode node, ColumnType type) {
+    switch (type) {
+      case BOOLEAN:
+        return node.isBoolean() ? node.getBooleanValue() : null;
+      case LONG:
+        return node.isIntegralNumber() ? node.getLongValue() : null;
+      case DOUBLE:
+        return node.isNumber() ? node.getDoubleValue() : null;
+      default:
+        return node.isTextual() ? node.getTextValue() : node.toString();
+    }
+  }
+
+  public GenericRecord createRecord() {
+    return new GenericData.Record(avroSchema);
+  }
+
+  public Schema getAvroSchema() {
+    return avroSchema;
+  }
+
+  /**
+   * @return the schema in the format accepted by {@link #parse(String)}
+   */
+  @Override
+  public String toString() {
+    StringBuilder spec = new StringBuilder();
+    for (int i = 0; i < paths.size(); i++) {
+      if (i > 0) {
+        spec.append(',');
+      }
+      spec.append(joinPath(paths.get(i))).append(':').append(types.get(i).name().toLowerCase());
+    }
+    return spec.toString();
+  }
+
+  private static String joinPath(String[] path) {
+    StringBuilder joined = new StringBuilder();
+    for (String field : path) {
+      if (joined.length() > 0) {
+        joined.append('.');
+      }
+      joined.append(escape(field));
+    }
+    return joined.toString();
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewRow;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Infers a {@link DocumentSchema} from the first documents which would be imported from a view.
+ */
+public class DocumentSchemaSampler {
+
+  /** Maximum number of view keys queried for samples. */
+  private static final int MAX_KEYS = 100;
+
+  private CouchbaseClient couchbaseClient;
+  private View view;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DocumentSchemaSampler.class);
+
+  public DocumentSchemaSampler(CouchbaseClient couchbaseClient, View view) {
+    this.couchbaseClient = couchbaseClient;
+    this.view = view;
+  }
+
+  /**
+   * Reads up to {@code numDocs} documents from the key range or from the first keys of the import and infers a schema
+   * from them. Documents which aren't valid JSON are skipped.
+   */
+  public DocumentSchema sample(ImportViewArgs importViewArgs, int numDocs) {
+    Query query;
+    if (importViewArgs.isRangeScan()) {
+      query = ViewRangeSampler.createRangeQuery(importViewArgs.getViewStartKey(), importViewArgs.getViewEndKey(), view);
+    } else {
+      String[] viewKeys = importViewArgs.getViewKeys();
+      query = MultiKeyPaginator.createQueryForKeys(
+          Arrays.asList(viewKeys).subList(0, Math.min(viewKeys.length, MAX_KEYS)));
+      if (view.hasReduce()) {
+        query.setReduce(false);
+      }
+    }
+    query.setIncludeDocs(true);
+    query.setLimit(numDocs);
+
+    ObjectMapper objectMapper = new ObjectMapper();
+    List<JsonNode> docs = new ArrayList<>(numDocs);
+    for (ViewRow row : couchbaseClient.query(view, query)) {
+      Object doc = row.getDocument();
+      if (doc == null) {
+        continue;
+      }
+      try {
+        docs.add(objectMapper.readTree(doc.toString()));
+      } catch (IOException e) {
+        LOGGER.warn("Skipping document {} which is not valid JSON.", row.getId());
+      }
+    }
+
+    DocumentSchema schema = DocumentSchema.infer(docs);
+    LOGGER.info("Inferred schema {} from {} documents.", schema, docs.size());
+    return schema;
+  }
+}
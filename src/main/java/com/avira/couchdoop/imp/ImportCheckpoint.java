@@ -0,0 +1,267 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Progress of a view import, saved to a small state file in the output directory after each page, so that an import
+ * which died can be resumed.
+ * <p/>
+ * For each view query the state holds whether the query finished and, if not, the key and document ID of the last row
+ * written. Pages of different queries are written concurrently, so they are committed out of order. The state holds the
+ * number below which all pages are committed and the numbers of the pages committed above it. When resuming, page
+ * files at or above that number which were not committed must be deleted, because their rows are imported again.
+ */
+public class ImportCheckpoint {
+
+  public static final String FILE_NAME = "_checkpoint";
+
+  private static final String FINISHED = "FINISHED";
+  private static final String PARTIAL = "PARTIAL";
+  /** Written by earlier versions, equivalent to {@link #COMMITTED_BELOW}. */
+  private static final String NEXT_PAGE = "NEXT_PAGE";
+  private static final String COMMITTED_BELOW = "COMMITTED_BELOW";
+  private static final String COMMITTED_ABOVE = "COMMITTED_ABOVE";
+  private static final String NULL = "\\N";
+
+  private static class QueryState {
+    private boolean finished;
+    private String lastRowKey;
+    private String lastDocId;
+  }
+
+  private FileSystem fileSystem;
+  private Path path;
+  private Path tmpPath;
+
+  private Map<String, QueryState> states = new LinkedHashMap<>();
+  /** All pages with lower numbers are committed. */
+  private int committedBelow = 0;
+  /** Committed pages with numbers above {@link #committedBelow}. */
+  private SortedSet<Integer> committedAbove = new TreeSet<>();
+  /** Lowest page number which may be free for {@link #allocatePage}. */
+  private int nextFreePage = 0;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ImportCheckpoint.class);
+
+  private ImportCheckpoint(FileSystem fileSystem, Path path) {
+    this.fileSystem = fileSystem;
+    this.path = path;
+    this.tmpPath = path.suffix(".tmp");
+  }
+
+  /**
+   * Loads the state saved in an output directory or creates an empty state if there is none.
+   */
+  public static ImportCheckpoint load(Configuration conf, String dirName) throws IOException {
+    String destinationPath = dirName.isEmpty() ? FILE_NAME : dirName + "/" + FILE_NAME;
+    FileSystem fileSystem = FileSystem.get(URI.create(destinationPath), conf);
+    ImportCheckpoint checkpoint = new ImportCheckpoint(fileSystem, new Path(destinationPath));
+
+    if (!fileSystem.exists(checkpoint.path)) {
+      return checkpoint;
+    }
+
+    LOGGER.info("Resuming import from checkpoint '" + checkpoint.path + "'...");
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(fileSystem.open(checkpoint.path), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        if (fields[0].equals(NEXT_PAGE) || fields[0].equals(COMMITTED_BELOW)) {
+          checkpoint.committedBelow = Integer.parseInt(fields[1]);
+        } else if (fields[0].equals(COMMITTED_ABOVE)) {
+          for (String pageNo : fields[1].split(",")) {
+            if (!pageNo.isEmpty()) {
+              checkpoint.committedAbove.add(Integer.parseInt(pageNo));
+            }
+          }
+        } else if (fields.length == 4) {
+          QueryState state = new QueryState();
+          state.finished = fields[0].equals(FINISHED);
+          state.lastRowKey = unescape(fields[2]);
+          state.lastDocId = unescape(fields[3]);
+          checkpoint.states.put(unescape(fields[1]), state);
+        } else {
+          throw new IOException("Invalid checkpoint line: " + line);
+        }
+      }
+    } finally {
+      IOUtils.closeStream(reader);
+    }
+    checkpoint.nextFreePage = checkpoint.committedBelow;
+
+    return checkpoint;
+  }
+
+  /**
+   * @return true if all rows of the query were written
+   */
+  public synchronized boolean isFinished(String queryId) {
+    QueryState state = states.get(queryId);
+    return state != null && state.finished;
+  }
+
+  /**
+   * @return view key (in JSON format) of the last row written for the query or null if the query wasn't started
+   */
+  public synchronized String getLastRowKey(String queryId) {
+    QueryState state = states.get(queryId);
+    return state == null ? null : state.lastRowKey;
+  }
+
+  /**
+   * @return document ID of the last row written for the query or null if the query wasn't started
+   */
+  public synchronized String getLastDocId(String queryId) {
+    QueryState state = states.get(queryId);
+    return state == null ? null : state.lastDocId;
+  }
+
+  /**
+   * @return number below which all pages are committed
+   */
+  public synchronized int getCommittedBelow() {
+    return committedBelow;
+  }
+
+  /**
+   * @return true if the page file with the given number was committed, so its rows must not be imported again
+   */
+  public synchronized boolean isCommitted(int pageNo) {
+    return pageNo < committedBelow || committedAbove.contains(pageNo);
+  }
+
+  /**
+   * @return lowest page number which was neither committed nor allocated since the checkpoint was loaded
+   */
+  public synchronized int allocatePage() {
+    while (isCommitted(nextFreePage)) {
+      nextFreePage++;
+    }
+    return nextFreePage++;
+  }
+
+  /**
+   * Records that a page of the query was written to its file and renamed to its final name.
+   *
+   * @param lastRowKey view key (in JSON format) of the last row of the page, or null if the page has no rows
+   * @param lastDocId  document ID of the last row of the page, or null if the page has no rows
+   */
+  public synchronized void pageWritten(String queryId, String lastRowKey, String lastDocId, int pageNo)
+      throws IOException {
+    if (lastDocId != null) {
+      QueryState state = getOrCreateState(queryId);
+      state.lastRowKey = lastRowKey;
+      state.lastDocId = lastDocId;
+    }
+
+    if (pageNo >= committedBelow) {
+      committedAbove.add(pageNo);
+      while (committedAbove.remove(committedBelow)) {
+        committedBelow++;
+      }
+    }
+    save();
+  }
+
+  /**
+   * Records that all rows of the query were written.
+   */
+  public synchronized void queryFinished(String queryId) throws IOException {
+    getOrCreateState(queryId).finished = true;
+    save();
+  }
+
+  /**
+   * Deletes the state file, e.g. after the import finished successfully.
+   */
+  public synchronized void delete() throws IOException {
+    fileSystem.delete(path, false);
+  }
+
+  private QueryState getOrCreateState(String queryId) {
+    QueryState state = states.get(queryId);
+    if (state == null) {
+      state = new QueryState();
+      states.put(queryId, state);
+    }
+    return state;
+  }
+
+  /**
+   * Writes the state to a temporary file which then replaces the state file, so that it is never left half written.
+   */
+  private void save() throws IOException {
+    FSDataOutputStream outputStream = fileSystem.create(tmpPath, true);
+    Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+    try {
+      writer.write(COMMITTED_BELOW + "\t" + committedBelow + "\n");
+      if (!committedAbove.isEmpty()) {
+        StringBuilder pageNos = new StringBuilder();
+        for (int pageNo : committedAbove) {
+          pageNos.append(pageNos.length() == 0 ? "" : ",").append(pageNo);
+        }
+        writer.write(COMMITTED_ABOVE + "\t" + pageNos + "\n");
+      }
+      for (Map.Entry<String, QueryState> entry : states.entrySet()) {
+        QueryState state = entry.getValue();
+        writer.write((state.finished ? FINISHED : PARTIAL) + "\t" + escape(entry.getKey()) + "\t" +
+            escape(state.lastRowKey) + "\t" + escape(state.lastDocId) + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+
+    fileSystem.delete(path, false);
+    if (!fileSystem.rename(tmpPath, path)) {
+      throw new IOException("Failed to rename '" + tmpPath + "' to '" + path + "'.");
+    }
+  }
+
+  private static String escape(String field) {
+    return field == null ? NULL : StringEscapeUtils.escapeJava(field);
+  }
+
+  private static String unescape(String field) {
+    return field.equals(NULL) ? null : StringEscapeUtils.unescapeJava(field);
+  }
+}
@@ -39,24 +39,47 @@ public class ImportViewArgs extends CouchbaseArgs {
 
   private String[] viewKeys;
 
+  private String viewStartKey;
+
+  private String viewEndKey;
+
   private String output;
 
   private int documentsPerPage;
 
+  private int keysPerQuery;
+
+  private int prefetchPages;
+
+  private int bulkGetPages;
+
   private int numMappers;
 
   public static final ArgDef ARG_DESIGNDOC_NAME = new ArgDef('d', "couchbase.designdoc.name", true, true,
     "(required) name of the design document");
   public static final ArgDef ARG_VIEW_NAME = new ArgDef('v', "couchbase.view.name", true, true,
     "(required) name of the view");
-  public static final ArgDef ARG_VIEW_KEYS = new ArgDef('k', "couchbase.view.keys", true, true,
-    "(required) semicolon separated list of view keys (in JSON format) which are going to be distributed to mappers");
+  public static final ArgDef ARG_VIEW_KEYS = new ArgDef('k', "couchbase.view.keys", true, false,
+    "semicolon separated list of view keys (in JSON format) which are going to be distributed to mappers; " +
+    "required unless a view key range is given");
+  public static final ArgDef ARG_VIEW_STARTKEY = new ArgDef('s', "couchbase.view.startkey", true, false,
+    "start of the view key range (in JSON format) to be scanned instead of a list of view keys; the range is split " +
+    "into as many sub-ranges as mappers");
+  public static final ArgDef ARG_VIEW_ENDKEY = new ArgDef('e', "couchbase.view.endkey", true, false,
+    "end of the view key range (in JSON format) to be scanned instead of a list of view keys; the end is inclusive");
   public static final ArgDef ARG_OUTPUT = new ArgDef('o', "output", true, true,
     "(required) HDFS output directory");
   public static final ArgDef ARG_DOCS_PER_PAGE = new ArgDef('P', "couchbase.view.docsPerPage", true, false,
     "buffer of documents which are going to be retrieved at once at a mapper; defaults to 1024");
+  public static final ArgDef ARG_KEYS_PER_QUERY = new ArgDef('q', "couchbase.view.keysPerQuery", true, false,
+    "maximum number of view keys of a mapper which are grouped in a single view query; defaults to 1");
+  public static final ArgDef ARG_PREFETCH_PAGES = new ArgDef('f', "couchbase.view.prefetchPages", true, false,
+    "number of pages which are read ahead by a background thread at each mapper; defaults to 0 (no read-ahead)");
+  public static final ArgDef ARG_BULK_GET_PAGES = new ArgDef('g', "couchbase.view.bulkGetPages", true, false,
+    "when positive, documents are not included in view responses, but fetched with bulk gets for up to this number " +
+      "of pages at a time; defaults to 0 (documents are included in view responses)");
   public static final ArgDef ARG_NUM_MAPPERS = new ArgDef('m', "hadoop.mappers", true, false,
-    "number of mappers to be used by Hadoop; by default it will be equal to the number of couchbase view keys passed to the job");
+    "number of mappers to be used by Hadoop; by default it will be equal to the number of couchbase view keys passed to the job or 1 for a view key range");
 
 
   private static final char KEYS_STRING_SEPARATOR = ';';
@@ -68,8 +91,13 @@ public class ImportViewArgs extends CouchbaseArgs {
     ARGS_LIST.add(ARG_DESIGNDOC_NAME);
     ARGS_LIST.add(ARG_VIEW_NAME);
     ARGS_LIST.add(ARG_VIEW_KEYS);
+    ARGS_LIST.add(ARG_VIEW_STARTKEY);
+    ARGS_LIST.add(ARG_VIEW_ENDKEY);
     ARGS_LIST.add(ARG_OUTPUT);
     ARGS_LIST.add(ARG_DOCS_PER_PAGE);
+    ARGS_LIST.add(ARG_KEYS_PER_QUERY);
+    ARGS_LIST.add(ARG_PREFETCH_PAGES);
+    ARGS_LIST.add(ARG_BULK_GET_PAGES);
     ARGS_LIST.add(ARG_NUM_MAPPERS);
 
     ARGS_LIST.addAll(CouchbaseArgs.ARGS_LIST);
@@ -90,11 +118,25 @@ public class ImportViewArgs extends CouchbaseArgs {
 
     designDocumentName = conf.get(ARG_DESIGNDOC_NAME.getPropertyName());
     viewName = conf.get(ARG_VIEW_NAME.getPropertyName());
-    viewKeys = parseViewKeys(conf);
+    viewStartKey = conf.get(ARG_VIEW_STARTKEY.getPropertyName());
+    viewEndKey = conf.get(ARG_VIEW_ENDKEY.getPropertyName());
+    if (conf.get(ARG_VIEW_KEYS.getPropertyName()) != null) {
+      if (isRangeScan()) {
+        throw new ArgsException("You must provide either a list of view keys or a view key range, but not both.");
+      }
+      viewKeys = parseViewKeys(conf);
+    } else if (isRangeScan()) {
+      viewKeys = new String[0];
+    } else {
+      throw new ArgsException("You must provide either a list of view keys or a view key range.");
+    }
     output = conf.get(ARG_OUTPUT.getPropertyName());
     documentsPerPage = conf.getInt(ARG_DOCS_PER_PAGE.getPropertyName(), 1024);
-    //numMappers default to the number of viewKeys
-    numMappers = conf.getInt(ARG_NUM_MAPPERS.getPropertyName(), viewKeys.length);
+    keysPerQuery = conf.getInt(ARG_KEYS_PER_QUERY.getPropertyName(), 1);
+    prefetchPages = conf.getInt(ARG_PREFETCH_PAGES.getPropertyName(), 0);
+    bulkGetPages = conf.getInt(ARG_BULK_GET_PAGES.getPropertyName(), 0);
+    //numMappers default to the number of viewKeys or to a single mapper for a key range
+    numMappers = conf.getInt(ARG_NUM_MAPPERS.getPropertyName(), isRangeScan() ? 1 : viewKeys.length);
   }
 
   public String getDesignDocumentName() {
@@ -109,6 +151,27 @@ public class ImportViewArgs extends CouchbaseArgs {
     return viewKeys;
   }
 
+  /**
+   * @return start of the view key range or null if the range has no lower limit or keys were given instead
+   */
+  public String getViewStartKey() {
+    return viewStartKey;
+  }
+
+  /**
+   * @return inclusive end of the view key range or null if the range has no upper limit or keys were given instead
+   */
+  public String getViewEndKey() {
+    return viewEndKey;
+  }
+
+  /**
+   * @return true if a view key range is scanned instead of a list of view keys
+   */
+  public boolean isRangeScan() {
+    return viewStartKey != null || viewEndKey != null;
+  }
+
   public int getNumMappers() {
     return numMappers;
   }
@@ -219,4 +282,16 @@ public class ImportViewArgs extends CouchbaseArgs {
   public int getDocumentsPerPage() {
     return documentsPerPage;
   }
+
+  public int getKeysPerQuery() {
+    return keysPerQuery;
+  }
+
+  public int getPrefetchPages() {
+    return prefetchPages;
+  }
+
+  public int getBulkGetPages() {
+    return bulkGetPages;
+  }
 }
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.ArgsException;
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.file.CodecFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ImportViewArgs} extension which holds settings specific to the import of documents as Avro records.
+ */
+public class ImportViewToAvroArgs extends ImportViewArgs {
+
+  private DocumentSchema schema;
+
+  private String codec;
+
+  private int schemaSamples;
+
+  public static final ArgDef ARG_SCHEMA = new ArgDef('S', "output.schema", true, false,
+    "comma separated columns of the records as path:type, where path is a dot separated path of document fields " +
+      "and type is one of boolean, long, double and string, e.g. user.id:long,user.name:string; by default the " +
+      "schema is inferred from a sample of documents");
+  public static final ArgDef ARG_SCHEMA_SAMPLES = new ArgDef('n', "output.schema.samples", true, false,
+    "number of documents read from the view in order to infer the schema when none is given; defaults to 100");
+  public static final ArgDef ARG_CODEC = new ArgDef('C', "output.avro.codec", true, false,
+    "Avro compression codec of the output files: null, deflate or snappy; defaults to deflate");
+
+  public static final List<ArgDef> ARGS_LIST = new ArrayList<>(ImportViewArgs.ARGS_LIST);
+
+  static {
+    ARGS_LIST.add(ARG_SCHEMA);
+    ARGS_LIST.add(ARG_SCHEMA_SAMPLES);
+    ARGS_LIST.add(ARG_CODEC);
+  }
+
+  public ImportViewToAvroArgs(Configuration conf) throws ArgsException {
+    super(conf);
+  }
+
+  @Override
+  public List<ArgDef> getArgsList() {
+    return ImportViewToAvroArgs.ARGS_LIST;
+  }
+
+  @Override
+  public void loadFromHadoopConfiguration(Configuration conf) throws ArgsException {
+    super.loadFromHadoopConfiguration(conf);
+
+    String schemaSpec = conf.get(ARG_SCHEMA.getPropertyName());
+    schema = schemaSpec == null ? null : DocumentSchema.parse(schemaSpec);
+
+    schemaSamples = conf.getInt(ARG_SCHEMA_SAMPLES.getPropertyName(), 100);
+    if (schemaSamples <= 0) {
+      throw new ArgsException("Number of documents sampled for the schema must be greater than zero.");
+    }
+
+    codec = conf.get(ARG_CODEC.getPropertyName(), "deflate");
+    try {
+      CodecFactory.fromString(codec);
+    } catch (AvroRuntimeException e) {
+      throw new ArgsException("Unknown Avro codec '" + codec + "'.", e);
+    }
+  }
+
+  /**
+   * @return schema of the records or null if it should be inferred from the documents
+   */
+  public DocumentSchema getSchema() {
+    return schema;
+  }
+
+  public int getSchemaSamples() {
+    return schemaSamples;
+  }
+
+  public String getCodec() {
+    return codec;
+  }
+}
@@ -4,6 +4,7 @@ import com.avira.couchdoop.ArgsException;
 import com.avira.couchdoop.CouchbaseArgs;
 import org.apache.commons.cli.Options;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Durability;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,17 +21,43 @@ public class ImportViewToHBaseArgs extends ImportViewArgs {
 
   private String columnQualifier;
 
+  private boolean bulkLoad;
+
+  private String bulkLoadDir;
+
+  private Durability durability;
+
   public static final ArgDef ARG_OUTPUT = new ArgDef('o', "output", true, true,
       "(required) HBase table name, column family and column qualifier separated by commas");
+  public static final ArgDef ARG_BULKLOAD = new ArgDef('l', "bulkload", false, false,
+      "write HFiles and load them into the table instead of sending Puts to the region servers");
+  public static final ArgDef ARG_BULKLOAD_DIR = new ArgDef('L', "bulkload.dir", true, false,
+      "HDFS directory where HFiles are written before being loaded with --bulkload; defaults to a temporary " +
+      "directory which is deleted afterwards");
+  public static final ArgDef ARG_DURABILITY = new ArgDef('u', "hbase.durability", true, false,
+      "durability of the Puts: USE_DEFAULT, SKIP_WAL, ASYNC_WAL, SYNC_WAL or FSYNC_WAL; defaults to USE_DEFAULT, " +
+      "which uses the setting of the table");
+  public static final ArgDef ARG_WRITE_BUFFER = new ArgDef('W', "hbase.client.write.buffer", true, false,
+      "size in bytes of the client write buffer of each mapper; defaults to the HBase setting");
 
   public static final List<ArgDef> ARGS_LIST = new ArrayList<>(5);
   static {
     ARGS_LIST.add(ARG_OUTPUT);
+    ARGS_LIST.add(ARG_BULKLOAD);
+    ARGS_LIST.add(ARG_BULKLOAD_DIR);
+    ARGS_LIST.add(ARG_DURABILITY);
+    ARGS_LIST.add(ARG_WRITE_BUFFER);
 
     ARGS_LIST.add(ImportViewArgs.ARG_DESIGNDOC_NAME);
     ARGS_LIST.add(ImportViewArgs.ARG_VIEW_NAME);
     ARGS_LIST.add(ImportViewArgs.ARG_VIEW_KEYS);
+    ARGS_LIST.add(ImportViewArgs.ARG_VIEW_STARTKEY);
+    ARGS_LIST.add(ImportViewArgs.ARG_VIEW_ENDKEY);
     ARGS_LIST.add(ImportViewArgs.ARG_DOCS_PER_PAGE);
+    ARGS_LIST.add(ImportViewArgs.ARG_KEYS_PER_QUERY);
+    ARGS_LIST.add(ImportViewArgs.ARG_PREFETCH_PAGES);
+    ARGS_LIST.add(ImportViewArgs.ARG_BULK_GET_PAGES);
+    ARGS_LIST.add(ImportViewArgs.ARG_NUM_MAPPERS);
 
     ARGS_LIST.addAll(CouchbaseArgs.ARGS_LIST);
   }
@@ -47,6 +74,17 @@ public class ImportViewToHBaseArgs extends ImportViewArgs {
   @Override
   public void loadFromHadoopConfiguration(Configuration conf) throws ArgsException {
     super.loadFromHadoopConfiguration(conf);
+    bulkLoad = conf.getBoolean(ARG_BULKLOAD.getPropertyName(), false);
+    bulkLoadDir = conf.get(ARG_BULKLOAD_DIR.getPropertyName());
+
+    String strDurability = conf.get(ARG_DURABILITY.getPropertyName(), Durability.USE_DEFAULT.name());
+    try {
+      durability = Durability.valueOf(strDurability.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new ArgsException("Unrecognized durability '" + strDurability +
+          "'. Please provide one of the following: USE_DEFAULT, SKIP_WAL, ASYNC_WAL, SYNC_WAL and FSYNC_WAL.", e);
+    }
+
     if (getOutput() == null) {
       return;
     }
@@ -72,4 +110,25 @@ public class ImportViewToHBaseArgs extends ImportViewArgs {
   public String getColumnQualifier() {
     return columnQualifier;
   }
+
+  /**
+   * @return whether HFiles are written and bulk loaded into the table instead of writing Puts
+   */
+  public boolean isBulkLoad() {
+    return bulkLoad;
+  }
+
+  /**
+   * @return directory for the HFiles to be bulk loaded or null to use a temporary one
+   */
+  public String getBulkLoadDir() {
+    return bulkLoadDir;
+  }
+
+  /**
+   * @return durability of the Puts written to HBase; ignored when bulk loading
+   */
+  public Durability getDurability() {
+    return durability;
+  }
 }
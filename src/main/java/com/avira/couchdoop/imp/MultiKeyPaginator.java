@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewResponse;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates on the pages of a view query for multiple keys.
+ *
+ * <p>{@link com.couchbase.client.protocol.views.Paginator} moves to the next page by changing the start key of the
+ * query, which can't be combined with a list of keys, so this class moves to the next page by skipping the rows
+ * already read.</p>
+ */
+public class MultiKeyPaginator implements Iterator<ViewResponse> {
+
+  private CouchbaseClient couchbaseClient;
+  private View view;
+  private Query query;
+  private int docsPerPage;
+
+  private int skip = 0;
+  private boolean finished = false;
+
+  /**
+   * Quotes view keys exactly like {@link com.couchbase.client.protocol.views.Query#setKey(String)} does.
+   */
+  private static class KeyQuoter extends Query {
+    public String quoteKey(String key) {
+      return quote(key);
+    }
+  }
+
+  public MultiKeyPaginator(CouchbaseClient couchbaseClient, View view, Query query, int docsPerPage) {
+    if (docsPerPage <= 0) {
+      throw new IllegalArgumentException("Number of documents per page must be greater than zero.");
+    }
+    this.couchbaseClient = couchbaseClient;
+    this.view = view;
+    this.query = query.copy();
+    this.docsPerPage = docsPerPage;
+  }
+
+  /**
+   * Creates a query for all the given view keys.
+   *
+   * @param keys view keys in the same format as for {@link com.couchbase.client.protocol.views.Query#setKey(String)}
+   */
+  public static Query createQueryForKeys(Collection<String> keys) {
+    KeyQuoter quoter = new KeyQuoter();
+    StringBuilder keysJson = new StringBuilder("[");
+    for (String key : keys) {
+      if (keysJson.length() > 1) {
+        keysJson.append(',');
+      }
+      keysJson.append(quoter.quoteKey(key));
+    }
+    keysJson.append(']');
+
+    Query query = new Query();
+    query.setKeys(keysJson.toString());
+    return query;
+  }
+
+  /**
+   * @return JSON representation of a view key given in the same format as for
+   * {@link com.couchbase.client.protocol.views.Query#setKey(String)}
+   */
+  public static String quoteKey(String key) {
+    return new KeyQuoter().quoteKey(key);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !finished;
+  }
+
+  @Override
+  public ViewResponse next() {
+    if (finished) {
+      throw new NoSuchElementException();
+    }
+
+    // Ask for one more row to find out if there is a next page.
+    Query pageQuery = query.copy();
+    pageQuery.setSkip(skip);
+    pageQuery.setLimit(docsPerPage + 1);
+
+    ViewResponse response = couchbaseClient.query(view, pageQuery);
+    if (response.size() > docsPerPage) {
+      response.removeLastElement();
+      skip += docsPerPage;
+    } else {
+      finished = true;
+    }
+
+    return response;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Remove is unsupported");
+  }
+}
@@ -22,30 +22,80 @@ package com.avira.couchdoop.imp;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Compressor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 /**
  * An instance of this class is responsible of writing a page read from Couchbase in an HDFS file by using Hadoop HDFS
  * API.
+ * <p/>
+ * Strings are encoded as UTF-8 into a reused buffer and the output is buffered. The file can optionally be compressed
+ * with a Hadoop {@link CompressionCodec}.
  */
 public class PageFileWriter implements Closeable {
 
+  public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+  private Path path;
   private OutputStream outputStream;
+  private Compressor compressor;
 
   private String keyDocumentDelimiter = "\t";
   private String rowDelimiter = "\n";
+  private byte[] keyDocumentDelimiterBytes = encodeDelimiter(keyDocumentDelimiter);
+  private byte[] rowDelimiterBytes = encodeDelimiter(rowDelimiter);
+
+  private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private ByteBuffer encoded = ByteBuffer.allocate(1024);
 
   private static final Logger LOGGER = LoggerFactory.getLogger(PageFileWriter.class);
 
   public PageFileWriter(Configuration conf, String dirName, String baseName, int page) throws IOException {
+    this(conf, dirName, baseName, page, null, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param codec codec used to compress the file or null for an uncompressed file
+   * @param bufferSize size in bytes of the output buffer
+   */
+  public PageFileWriter(Configuration conf, String dirName, String baseName, int page, CompressionCodec codec,
+                        int bufferSize) throws IOException {
+    path = getPagePath(dirName, baseName, page, codec);
+
+    // Get the file system.
+    FileSystem fileSystem = FileSystem.get(path.toUri(), conf);
+
+    // Get an OutputStream for the output file.
+    LOGGER.info("Creating file '" + path + "'...");
+    OutputStream fileStream = fileSystem.create(path);
+    if (codec != null) {
+      compressor = CodecPool.getCompressor(codec, conf);
+      fileStream = codec.createOutputStream(fileStream, compressor);
+    }
+
+    // Buffer in front of the compressor too, because compressor streams handle small writes poorly.
+    outputStream = new BufferedOutputStream(fileStream, bufferSize);
+  }
+
+  /**
+   * @return path of the file where a page is written
+   */
+  public static Path getPagePath(String dirName, String baseName, int page, CompressionCodec codec) {
     String destinationPath;
     if (dirName.isEmpty()) {
       // If no dirName is provided write the file in current directory.
@@ -53,14 +103,15 @@ public class PageFileWriter implements Closeable {
     } else {
       destinationPath = dirName + "/" + baseName + "-" + String.format("%05d", page);
     }
+    if (codec != null) {
+      destinationPath += codec.getDefaultExtension();
+    }
 
-    // Get the file system.
-    FileSystem fileSystem = FileSystem.get(URI.create(destinationPath), conf);
+    return new Path(destinationPath);
+  }
 
-    // Get an OutputStream for the output file.
-    Path path = new Path(destinationPath);
-    LOGGER.info("Creating file '" + path + "'...");
-    outputStream = fileSystem.create(path);
+  public Path getPath() {
+    return path;
   }
 
   /**
@@ -70,24 +121,58 @@ public class PageFileWriter implements Closeable {
    * @throws IOException
    */
   public void write(String key, String document) throws IOException {
-    try {
-      // Write the key.
-      outputStream.write(key.getBytes("UTF-8"));
+    // Write the key.
+    writeEncoded(key);
+
+    // Write the key-document keyDocumentDelimiter.
+    outputStream.write(keyDocumentDelimiterBytes);
+
+    // Write the document.
+    writeEncoded(document);
+
+    // Write the row keyDocumentDelimiter.
+    outputStream.write(rowDelimiterBytes);
+  }
+
+  /**
+   * Encodes a string as UTF-8 into the reused buffer and writes it.
+   */
+  private void writeEncoded(String str) throws IOException {
+    int maxLength = (int) (str.length() * encoder.maxBytesPerChar());
+    if (encoded.capacity() < maxLength) {
+      encoded = ByteBuffer.allocate(Math.max(maxLength, 2 * encoded.capacity()));
+    }
 
-      // Write the key-document keyDocumentDelimiter.
-      outputStream.write(keyDocumentDelimiter.getBytes("UTF-8"));
+    encoded.clear();
+    encoder.reset();
+    encoder.encode(CharBuffer.wrap(str), encoded, true);
+    encoder.flush(encoded);
 
-      // Write the document.
-      outputStream.write(document.getBytes("UTF-8"));
+    outputStream.write(encoded.array(), 0, encoded.position());
+  }
 
-      // Write the row keyDocumentDelimiter.
-      outputStream.write(rowDelimiter.getBytes("UTF-8"));
-    } catch (UnsupportedEncodingException e) { LOGGER.error("Shouldn't happen."); }
+  private static byte[] encodeDelimiter(String delimiter) {
+    return delimiter.getBytes(StandardCharsets.UTF_8);
   }
 
+  /**
+   * Flushes and closes the file. Most of the page is written here, so a failure means that the file is incomplete.
+   * Closing again does nothing.
+   */
   @Override
   public void close() throws IOException {
-    IOUtils.closeStream(outputStream);
+    if (outputStream == null) {
+      return;
+    }
+    try {
+      outputStream.close();
+    } finally {
+      outputStream = null;
+      if (compressor != null) {
+        CodecPool.returnCompressor(compressor);
+        compressor = null;
+      }
+    }
   }
 
   public String getKeyDocumentDelimiter() {
@@ -96,6 +181,7 @@ public class PageFileWriter implements Closeable {
 
   public void setKeyDocumentDelimiter(String keyDocumentDelimiter) {
     this.keyDocumentDelimiter = keyDocumentDelimiter;
+    this.keyDocumentDelimiterBytes = encodeDelimiter(keyDocumentDelimiter);
   }
 
   public String getRowDelimiter() {
@@ -104,5 +190,6 @@ public class PageFileWriter implements Closeable {
 
   public void setRowDelimiter(String rowDelimiter) {
     this.rowDelimiter = rowDelimiter;
+    this.rowDelimiterBytes = encodeDelimiter(rowDelimiter);
   }
 }
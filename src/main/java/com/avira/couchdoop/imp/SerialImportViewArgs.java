@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.ArgsException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ImportViewArgs} extension which holds settings specific to the serial import, which writes pages to HDFS
+ * from a single process.
+ */
+public class SerialImportViewArgs extends ImportViewArgs {
+
+  private CompressionCodec compressionCodec;
+
+  private int outputBufferSize;
+
+  private int threads;
+
+  private int pagesInFlight;
+
+  public static final ArgDef ARG_COMPRESSION_CODEC = new ArgDef('c', "output.compression.codec", true, false,
+    "Hadoop compression codec used for page files, given by class name or alias, e.g. snappy, lz4, gzip; " +
+      "by default files are not compressed");
+  public static final ArgDef ARG_OUTPUT_BUFFER_SIZE = new ArgDef('z', "output.buffer.size", true, false,
+    "size in bytes of the buffer used when writing page files; defaults to 65536");
+  public static final ArgDef ARG_THREADS = new ArgDef('t', "serial.threads", true, false,
+    "number of threads which import view keys in parallel; defaults to 1");
+  public static final ArgDef ARG_PAGES_IN_FLIGHT = new ArgDef('i', "serial.pagesInFlight", true, false,
+    "maximum number of pages which are read or written at the same time by all threads; defaults to the number " +
+      "of threads");
+
+  public static final List<ArgDef> ARGS_LIST = new ArrayList<>(ImportViewArgs.ARGS_LIST);
+
+  static {
+    ARGS_LIST.add(ARG_COMPRESSION_CODEC);
+    ARGS_LIST.add(ARG_OUTPUT_BUFFER_SIZE);
+    ARGS_LIST.add(ARG_THREADS);
+    ARGS_LIST.add(ARG_PAGES_IN_FLIGHT);
+  }
+
+  public SerialImportViewArgs(Configuration conf) throws ArgsException {
+    super(conf);
+  }
+
+  @Override
+  public List<ArgDef> getArgsList() {
+    return SerialImportViewArgs.ARGS_LIST;
+  }
+
+  @Override
+  public void loadFromHadoopConfiguration(Configuration conf) throws ArgsException {
+    super.loadFromHadoopConfiguration(conf);
+
+    String codecName = conf.get(ARG_COMPRESSION_CODEC.getPropertyName());
+    if (codecName != null) {
+      compressionCodec = new CompressionCodecFactory(conf).getCodecByName(codecName);
+      if (compressionCodec == null) {
+        throw new ArgsException("Unknown compression codec '" + codecName + "'.");
+      }
+    }
+
+    outputBufferSize = conf.getInt(ARG_OUTPUT_BUFFER_SIZE.getPropertyName(), 65536);
+    if (outputBufferSize <= 0) {
+      throw new ArgsException("Output buffer size must be greater than zero.");
+    }
+
+    threads = conf.getInt(ARG_THREADS.getPropertyName(), 1);
+    if (threads <= 0) {
+      throw new ArgsException("Number of threads must be greater than zero.");
+    }
+    pagesInFlight = conf.getInt(ARG_PAGES_IN_FLIGHT.getPropertyName(), threads);
+    if (pagesInFlight <= 0) {
+      throw new ArgsException("Number of pages in flight must be greater than zero.");
+    }
+  }
+
+  /**
+   * @return codec used for page files or null if they are not compressed
+   */
+  public CompressionCodec getCompressionCodec() {
+    return compressionCodec;
+  }
+
+  public int getOutputBufferSize() {
+    return outputBufferSize;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getPagesInFlight() {
+    return pagesInFlight;
+  }
+}
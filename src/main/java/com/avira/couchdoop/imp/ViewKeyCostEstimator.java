@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the number of view rows emitted for each of a list of view keys.
+ *
+ * <p>The counts are read from the view's reduce function, grouped by key, so the view is expected to use the
+ * built-in {@code _count} reduce function. If the view has no reduce function or it doesn't count rows, no estimate
+ * is available.</p>
+ */
+public class ViewKeyCostEstimator {
+
+  /** Maximum number of keys sent in a single view query. */
+  private static final int KEYS_PER_QUERY = 1000;
+
+  private CouchbaseClient couchbaseClient;
+  private View view;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ViewKeyCostEstimator.class);
+
+  public ViewKeyCostEstimator(CouchbaseClient couchbaseClient, View view) {
+    this.couchbaseClient = couchbaseClient;
+    this.view = view;
+  }
+
+  /**
+   * Keys with the same text, like {@code 5} and {@code "5"}, share one estimate, because the reduced rows have
+   * string keys without their quotes.
+   *
+   * @param keys view keys in the same format as for {@link Query#setKey(String)}
+   * @return approximate number of rows for each key, or null if the view can't count rows; keys without rows are
+   * mapped to 0
+   */
+  public Map<String, Long> estimateRowCounts(List<String> keys) {
+    if (!view.hasReduce()) {
+      LOGGER.warn("View {} has no reduce function. Row counts of keys can't be estimated.", view.getViewName());
+      return null;
+    }
+
+    Map<String, Long> countsByRowKey = new HashMap<>();
+    for (int from = 0; from < keys.size(); from += KEYS_PER_QUERY) {
+      List<String> batch = keys.subList(from, Math.min(from + KEYS_PER_QUERY, keys.size()));
+
+      Query query = MultiKeyPaginator.createQueryForKeys(batch);
+      query.setReduce(true);
+      query.setGroup(true);
+
+      for (ViewRow row : couchbaseClient.query(view, query)) {
+        try {
+          countsByRowKey.put(ViewRowKeys.normalizeRowKey(row.getKey()), Long.parseLong(row.getValue()));
+        } catch (NumberFormatException e) {
+          LOGGER.warn("The reduce function of view {} does not count rows. Row counts of keys can't be estimated.",
+              view.getViewName());
+          return null;
+        }
+      }
+    }
+
+    Map<String, Long> counts = new HashMap<>();
+    for (String key : keys) {
+      Long count = countsByRowKey.get(ViewRowKeys.toRowKey(MultiKeyPaginator.quoteKey(key)));
+      counts.put(key, count == null ? 0L : count);
+    }
+    return counts;
+  }
+}
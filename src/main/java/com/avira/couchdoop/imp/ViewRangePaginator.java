@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewRow;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates on the pages of a view query for a key range.
+ *
+ * <p>{@link com.couchbase.client.protocol.views.Paginator} moves to the next page by setting the start key of the
+ * query to the key returned by {@link ViewRow#getKey()}, which loses the type of string keys, so this class moves to
+ * the next page with the JSON key found by {@link ViewRowKeys}.</p>
+ */
+public class ViewRangePaginator implements Iterator<ViewResponse> {
+
+  private CouchbaseClient couchbaseClient;
+  private View view;
+  private Query query;
+  private int docsPerPage;
+
+  private boolean finished = false;
+
+  public ViewRangePaginator(CouchbaseClient couchbaseClient, View view, Query query, int docsPerPage) {
+    if (docsPerPage <= 0) {
+      throw new IllegalArgumentException("Number of documents per page must be greater than zero.");
+    }
+    this.couchbaseClient = couchbaseClient;
+    this.view = view;
+    this.query = query.copy();
+    this.docsPerPage = docsPerPage;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !finished;
+  }
+
+  @Override
+  public ViewResponse next() {
+    if (finished) {
+      throw new NoSuchElementException();
+    }
+
+    // Ask for one more row, which is the first row of the next page if there is one.
+    Query pageQuery = query.copy();
+    pageQuery.setLimit(docsPerPage + 1);
+
+    ViewResponse response = couchbaseClient.query(view, pageQuery);
+    if (response.size() > docsPerPage) {
+      ViewRow nextRow = response.removeLastElement();
+      query.setRangeStart(ViewRowKeys.toJson(couchbaseClient, view, nextRow));
+      query.setStartkeyDocID(nextRow.getId());
+    } else {
+      finished = true;
+    }
+
+    return response;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Remove is unsupported");
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Samples a key range of a Couchbase view in order to split it into sub-ranges with about the same number of rows.
+ *
+ * <p>The number of rows in the range is read from the reduce function of the view, which should be {@code _count}.
+ * If the view has no reduce function the total number of rows of the whole view is used instead, so fewer sub-ranges
+ * than requested may be found.</p>
+ */
+public class ViewRangeSampler {
+
+  private CouchbaseClient couchbaseClient;
+  private View view;
+  private String startKey;
+  private String endKey;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ViewRangeSampler.class);
+
+  /**
+   * Row at which a sub-range starts.
+   */
+  public static class Boundary {
+    private String key;
+    private String docId;
+
+    public Boundary(String key, String docId) {
+      this.key = key;
+      this.docId = docId;
+    }
+
+    /**
+     * @return view key of the row in JSON format
+     */
+    public String getKey() {
+      return key;
+    }
+
+    public String getDocId() {
+      return docId;
+    }
+  }
+
+  /**
+   * @param startKey start of the key range (in JSON format) or null if the range has no lower limit
+   * @param endKey inclusive end of the key range (in JSON format) or null if the range has no upper limit
+   */
+  public ViewRangeSampler(CouchbaseClient couchbaseClient, View view, String startKey, String endKey) {
+    this.couchbaseClient = couchbaseClient;
+    this.view = view;
+    this.startKey = startKey;
+    this.endKey = endKey;
+  }
+
+  /**
+   * @return approximate number of view rows in the key range
+   */
+  public long estimateRowCount() {
+    if (view.hasReduce()) {
+      Query query = createRangeQuery(startKey, endKey, view);
+      query.setReduce(true);
+
+      Iterator<ViewRow> rows = couchbaseClient.query(view, query).iterator();
+      if (!rows.hasNext()) {
+        return 0;
+      }
+      try {
+        return Long.parseLong(rows.next().getValue());
+      } catch (NumberFormatException e) {
+        LOGGER.warn("The reduce function of view {} does not count rows. Using the total number of rows of the view.",
+            view.getViewName());
+      }
+    }
+
+    Query query = createRangeQuery(startKey, endKey, view);
+    query.setLimit(0);
+    return couchbaseClient.query(view, query).getTotalRows();
+  }
+
+  /**
+   * Finds the rows which split the key range into sub-ranges. Each sub-range starts with one of these rows and ends
+   * right before the next one.
+   *
+   * @param numRanges desired number of sub-ranges
+   * @param rowCount approximate number of view rows in the key range
+   * @return first row of each sub-range, except the first sub-range which starts at the beginning of the key range;
+   * the list may be shorter than {@code numRanges - 1} if the range has fewer rows than estimated
+   */
+  public List<Boundary> sampleBoundaries(int numRanges, long rowCount) {
+    List<Boundary> boundaries = new ArrayList<>();
+    long rowsPerRange = rowCount / Math.max(numRanges, 1);
+    if (rowsPerRange == 0) {
+      return boundaries;
+    }
+
+    // Each boundary is found by skipping rowsPerRange rows from the previous one.
+    Boundary previous = null;
+    for (int i = 1; i < numRanges; i++) {
+      Query query = createRangeQuery(startKey, endKey, view);
+      if (previous != null) {
+        query.setRangeStart(previous.getKey());
+        query.setStartkeyDocID(previous.getDocId());
+      }
+      query.setSkip((int) Math.min(rowsPerRange, Integer.MAX_VALUE));
+      query.setLimit(1);
+
+      ViewResponse response = couchbaseClient.query(view, query);
+      Iterator<ViewRow> rows = response.iterator();
+      if (!rows.hasNext()) {
+        break;
+      }
+      ViewRow row = rows.next();
+      previous = new Boundary(ViewRowKeys.toJson(couchbaseClient, view, row), row.getId());
+      boundaries.add(previous);
+    }
+
+    LOGGER.info("Split view key range [{}, {}] into {} sub-ranges of about {} rows.",
+        startKey, endKey, boundaries.size() + 1, rowsPerRange);
+
+    return boundaries;
+  }
+
+  /**
+   * Creates a query which returns the rows of a key range without reducing them and without their documents.
+   */
+  public static Query createRangeQuery(String startKey, String endKey, View view) {
+    Query query = new Query();
+    if (startKey != null) {
+      query.setRangeStart(startKey);
+    }
+    if (endKey != null) {
+      query.setRangeEnd(endKey);
+    }
+    if (view.hasReduce()) {
+      query.setReduce(false);
+    }
+    query.setIncludeDocs(false);
+
+    return query;
+  }
+}
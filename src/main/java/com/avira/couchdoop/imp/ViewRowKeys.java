@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.imp;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewRow;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.io.JsonStringEncoder;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Converts the keys of view rows to JSON, so that they can be used as start or end keys of view queries.
+ *
+ * <p>{@link ViewRow#getKey()} returns string keys without their quotes and the other keys as JSON, so a string key
+ * which looks like a number, a boolean, null, an array or an object can't be told apart from that value. The type of
+ * such a key is found by looking up its row among the rows whose key is the string.</p>
+ */
+public class ViewRowKeys {
+
+  private static final Pattern NUMBER_PATTERN = Pattern.compile("-?(0|[1-9]\\d*)(\\.\\d+)?([eE][+-]?\\d+)?");
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private ViewRowKeys() {
+  }
+
+  /**
+   * @return key of the row in JSON format
+   */
+  public static String toJson(CouchbaseClient couchbaseClient, View view, ViewRow row) {
+    String key = row.getKey() == null ? "null" : row.getKey();
+    String stringJson = quoteString(key);
+    if (!couldBeNonString(key)) {
+      return stringJson;
+    }
+
+    Query query = ViewRangeSampler.createRangeQuery(stringJson, stringJson, view);
+    query.setStartkeyDocID(row.getId());
+    query.setLimit(1);
+    for (ViewRow stringRow : couchbaseClient.query(view, query)) {
+      if (stringRow.getId().equals(row.getId())) {
+        return stringJson;
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Converts a JSON key to the format returned by {@link ViewRow#getKey()}, so that it can be matched with the keys
+   * of rows which have no document ID to look up their type, like reduced rows.
+   *
+   * @return the text of a string key, null for a null key and the JSON without whitespace for other keys; keys which
+   * aren't valid JSON are returned as they are
+   */
+  public static String toRowKey(String json) {
+    JsonNode node;
+    try {
+      node = MAPPER.readTree(json);
+    } catch (IOException e) {
+      return json;
+    }
+    if (node == null) {
+      return json;
+    }
+    if (node.isTextual()) {
+      return node.getTextValue();
+    }
+    return node.isNull() ? null : node.toString();
+  }
+
+  /**
+   * Removes the differences between the format of keys returned by {@link ViewRow#getKey()} and by
+   * {@link #toRowKey(String)}, which are in the JSON of arrays and objects, e.g. escaped slashes.
+   */
+  public static String normalizeRowKey(String key) {
+    if (key == null || !(key.startsWith("[") || key.startsWith("{"))) {
+      return key;
+    }
+    return toRowKey(key);
+  }
+
+  /**
+   * @return the string as a JSON string, with its quotes
+   */
+  public static String quoteString(String s) {
+    return "\"" + new String(JsonStringEncoder.getInstance().quoteAsString(s)) + "\"";
+  }
+
+  /**
+   * @return true if the key returned by {@link ViewRow#getKey()} may be the JSON of a value which is not a string
+   */
+  private static boolean couldBeNonString(String key) {
+    return key.equals("null") || key.equals("true") || key.equals("false") ||
+        key.startsWith("[") || key.startsWith("{") || NUMBER_PATTERN.matcher(key).matches();
+  }
+}
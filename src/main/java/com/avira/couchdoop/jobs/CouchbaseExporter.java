@@ -21,10 +21,12 @@ package com.avira.couchdoop.jobs;
 
 import com.avira.couchdoop.ArgsException;
 import com.avira.couchdoop.ArgsHelper;
+import com.avira.couchdoop.JobMetrics;
 import com.avira.couchdoop.exp.CouchbaseAction;
 import com.avira.couchdoop.exp.CouchbaseOutputFormat;
 import com.avira.couchdoop.exp.CsvToCouchbaseMapper;
 import com.avira.couchdoop.exp.ExportArgs;
+import com.avira.couchdoop.exp.FastCsvToCouchbaseMapper;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -69,6 +71,7 @@ public class CouchbaseExporter extends Configured implements Tool {
     try {
       job = configureJob(conf, exportArgs.getInput());
       exitStatus = job.waitForCompletion(true);
+      JobMetrics.report(job);
     } catch (Exception e) {
       LOGGER.error(ExceptionUtils.getStackTrace(e));
     }
@@ -87,8 +90,12 @@ public class CouchbaseExporter extends Configured implements Tool {
     // Input
     FileInputFormat.setInputPaths(job, input);
 
-    // Mapper
-    job.setMapperClass(CsvToCouchbaseMapper.class);
+    // Mapper, the faster one unless the delimiter is a regular expression
+    if (FastCsvToCouchbaseMapper.isLiteralDelimiter(ExportArgs.getFieldsDelimiter(conf))) {
+      job.setMapperClass(FastCsvToCouchbaseMapper.class);
+    } else {
+      job.setMapperClass(CsvToCouchbaseMapper.class);
+    }
     job.setMapOutputKeyClass(String.class);
     job.setMapOutputValueClass(CouchbaseAction.class);
 
@@ -21,6 +21,7 @@ package com.avira.couchdoop.jobs;
 
 import com.avira.couchdoop.ArgsException;
 import com.avira.couchdoop.ArgsHelper;
+import com.avira.couchdoop.JobMetrics;
 import com.avira.couchdoop.imp.CouchbaseViewInputFormat;
 import com.avira.couchdoop.imp.CouchbaseViewToFileMapper;
 import com.avira.couchdoop.imp.ImportViewArgs;
@@ -70,6 +71,7 @@ public class CouchbaseViewImporter extends Configured implements Tool {
     try {
       job = configureJob(conf, importViewArgs.getOutput());
       exitStatus = job.waitForCompletion(true);
+      JobMetrics.report(job);
     } catch (Exception e) {
       LOGGER.error(ExceptionUtils.getStackTrace(e));
     }
@@ -21,93 +21,312 @@ package com.avira.couchdoop.jobs;
 
 import com.avira.couchdoop.ArgsException;
 import com.avira.couchdoop.ArgsHelper;
-import com.avira.couchdoop.imp.ImportViewArgs;
+import com.avira.couchdoop.imp.ImportCheckpoint;
+import com.avira.couchdoop.imp.MultiKeyPaginator;
 import com.avira.couchdoop.imp.PageFileWriter;
+import com.avira.couchdoop.imp.SerialImportViewArgs;
+import com.avira.couchdoop.imp.ViewRangePaginator;
+import com.avira.couchdoop.imp.ViewRangeSampler;
+import com.avira.couchdoop.imp.ViewRowKeys;
 import com.couchbase.client.CouchbaseClient;
 import com.couchbase.client.protocol.views.*;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class CouchbaseViewSerialImporter {
 
   private static final String PAGE_FILE_BASENAME = "part";
+  private static final String TMP_PAGE_FILE_BASENAME = "_" + PAGE_FILE_BASENAME;
+  private static final Pattern PAGE_FILE_NAME_PATTERN =
+      Pattern.compile("_?" + PAGE_FILE_BASENAME + "-(\\d+)(\\..*)?");
+
+  private Configuration conf;
+  private SerialImportViewArgs iva;
+  private ImportCheckpoint checkpoint;
+  private CouchbaseClient couchbaseClient;
+  private View view;
+  private Semaphore pagesInFlight;
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CouchbaseViewSerialImporter.class);
 
   public void start(String[] args)
       throws ArgsException {
-    Configuration conf = new Configuration();
+    conf = new Configuration();
+
+    ArgsHelper.loadCliArgsIntoHadoopConf(conf, SerialImportViewArgs.ARGS_LIST,args);
+    iva = new SerialImportViewArgs(conf);
 
-    ArgsHelper.loadCliArgsIntoHadoopConf(conf, ImportViewArgs.ARGS_LIST,args);
-    ImportViewArgs iva = new ImportViewArgs(conf);
+    // Load the progress of a previous run, if any.
+    try {
+      checkpoint = ImportCheckpoint.load(conf, iva.getOutput());
+      deleteUncommittedPageFiles();
+    } catch (IOException e) {
+      LOGGER.error(ExceptionUtils.getStackTrace(e));
+      return;
+    }
 
     // Connect to couchbase and get the view.
-    CouchbaseClient couchbaseClient;
     try {
       couchbaseClient = connectToCouchbase(iva.getUrls(), iva.getBucket(), iva.getPassword());
     } catch (IOException e) {
       LOGGER.error(ExceptionUtils.getStackTrace(e));
       return;
     }
-    View view = couchbaseClient.getView(iva.getDesignDocumentName(), iva.getViewName());
+    view = couchbaseClient.getView(iva.getDesignDocumentName(), iva.getViewName());
 
-    int pageNo = 0;
-    for (String viewKey : iva.getViewKeys()) {
-      LOGGER.info("___________________________________");
-      LOGGER.info("Importing documents for view key " + viewKey + ".");
+    // Queries are distributed to a pool of workers which share the Couchbase client.
+    LOGGER.info("Importing with {} threads and at most {} pages in flight.", iva.getThreads(),
+        iva.getPagesInFlight());
+    ExecutorService workers = Executors.newFixedThreadPool(iva.getThreads());
+    pagesInFlight = new Semaphore(iva.getPagesInFlight());
+    List<Future<Boolean>> results = new ArrayList<>();
 
+    if (iva.isRangeScan()) {
+      String queryId = "range " + iva.getViewStartKey() + " " + iva.getViewEndKey();
+      String startKey = iva.getViewStartKey();
+      if (checkpoint.getLastRowKey(queryId) != null) {
+        startKey = checkpoint.getLastRowKey(queryId);
+      }
+
+      Query query = ViewRangeSampler.createRangeQuery(startKey, iva.getViewEndKey(), view);
+      query.setIncludeDocs(true);
+
+      results.add(workers.submit(new QueryImporter(query, queryId, true,
+          "view key range [" + iva.getViewStartKey() + ", " + iva.getViewEndKey() + "]")));
+    }
+    for (String viewKey : iva.getViewKeys()) {
       Query query = new Query();
-      query.setKey(viewKey);
+      if (checkpoint.getLastDocId(viewKey) != null) {
+        // Resume with the rows of this key which come after the last row written.
+        query.setRangeStart(viewKey);
+        query.setRangeEnd(viewKey);
+      } else {
+        query.setKey(viewKey);
+      }
       query.setIncludeDocs(true);
 
-      Paginator pages = couchbaseClient.paginatedQuery(view, query, iva.getDocumentsPerPage());
-      ViewResponse response;
-      PageFileWriter writer = null;
+      results.add(workers.submit(new QueryImporter(query, viewKey, false, "view key " + viewKey)));
+    }
+    workers.shutdown();
+
+    boolean succeeded = true;
+    try {
+      for (Future<Boolean> result : results) {
+        try {
+          succeeded &= result.get();
+        } catch (ExecutionException e) {
+          LOGGER.error(ExceptionUtils.getStackTrace(e.getCause()));
+          succeeded = false;
+        }
+      }
+    } catch (InterruptedException e) {
+      LOGGER.error("Interrupted while waiting for the import to finish.");
+      workers.shutdownNow();
+      succeeded = false;
+    }
+
+    LOGGER.info("Disconnecting from Couchbase...");
+    couchbaseClient.shutdown();
 
+    if (succeeded) {
       try {
-        while (pages.hasNext()) {
-          LOGGER.info("Writing page " + pageNo + "...");
+        checkpoint.delete();
+      } catch (IOException e) {
+        LOGGER.error(ExceptionUtils.getStackTrace(e));
+      }
+    } else {
+      LOGGER.error("The import did not finish. Run it again with the same arguments to resume it.");
+    }
+  }
+
+  /**
+   * Task which imports the results of a view query.
+   */
+  protected class QueryImporter implements Callable<Boolean> {
+
+    private Query query;
+    private String queryId;
+    private boolean rangeScan;
+    private String description;
+
+    /**
+     * @param queryId identifies the query in the checkpoint
+     * @param rangeScan whether the query is for a view key range rather than a single key
+     */
+    public QueryImporter(Query query, String queryId, boolean rangeScan, String description) {
+      this.query = query;
+      this.queryId = queryId;
+      this.rangeScan = rangeScan;
+      this.description = description;
+    }
+
+    @Override
+    public Boolean call() {
+      if (checkpoint.isFinished(queryId)) {
+        LOGGER.info("Skipping " + description + ", which was already imported.");
+        return true;
+      }
+
+      LOGGER.info("___________________________________");
+      LOGGER.info("Importing documents for " + description + ".");
+
+      return importQuery(query, queryId, rangeScan);
+    }
+  }
+
+  /**
+   * Writes each page of the query results in a separate file and records the progress in the checkpoint. If the
+   * checkpoint holds a last row for the query, the query is resumed from that row, which must be the first row
+   * returned by the query, and the row is skipped.
+   *
+   * @param rangeScan whether the query is for a view key range, whose pages start at the JSON keys of their first rows
+   * @return true if all pages were written
+   */
+  protected boolean importQuery(Query query, String queryId, boolean rangeScan) {
+    String resumeDocId = checkpoint.getLastDocId(queryId);
+    if (resumeDocId != null) {
+      LOGGER.info("Resuming after document with ID " + resumeDocId + "...");
+      query = query.copy();
+      query.setStartkeyDocID(resumeDocId);
+    }
+
+    Iterator<ViewResponse> pages = rangeScan ?
+        new ViewRangePaginator(couchbaseClient, view, query, iva.getDocumentsPerPage()) :
+        couchbaseClient.paginatedQuery(view, query, iva.getDocumentsPerPage());
+    ViewResponse response;
+    PageFileWriter writer = null;
+
+    try {
+      while (true) {
+        // Reading the next page starts when checking if there is one.
+        pagesInFlight.acquire();
+        try {
+          if (!pages.hasNext()) {
+            break;
+          }
 
           // Get page rows.
           response = pages.next();
 
-          // Prepare the object which writes the page to a file.
-          writer = new PageFileWriter(conf, iva.getOutput(), PAGE_FILE_BASENAME, pageNo);
+          int pageNo = checkpoint.allocatePage();
+          LOGGER.info("Writing page " + pageNo + "...");
+
+          // Prepare the object which writes the page to a temporary file.
+          writer = new PageFileWriter(conf, iva.getOutput(), TMP_PAGE_FILE_BASENAME, pageNo,
+              iva.getCompressionCodec(), iva.getOutputBufferSize());
 
           // Iterate on each row.
+          ViewRow lastRow = null;
           for (ViewRow row : response) {
+            if (resumeDocId != null) {
+              // The first row was written before the import was resumed.
+              boolean written = row.getId().equals(resumeDocId);
+              resumeDocId = null;
+              if (written) {
+                continue;
+              }
+            }
+
             String key = row.getId();
             String doc = row.getDocument().toString();
 
             LOGGER.debug("Writing document with ID " + row.getId() + "...");
             writer.write(key, doc);
+            lastRow = row;
           }
 
-          // Prepare for the next page.
+          // Publish the page and record the progress.
           writer.close();
-          pageNo++;
-        }
-      } catch (IOException e) {
-        LOGGER.error(ExceptionUtils.getStackTrace(e));
-      } finally {
-        if (writer != null) {
-          try {
-            writer.close();
-          } catch (IOException e) {
-            LOGGER.error(ExceptionUtils.getStackTrace(e));
+          commitPageFile(writer.getPath(), pageNo);
+          writer = null;
+          // Pages without rows are recorded too, so that the pages committed after them are not deleted on resume.
+          String lastRowKey = null;
+          if (lastRow != null) {
+            // The rows of a key query all have the key which identifies the query.
+            lastRowKey = rangeScan ? ViewRowKeys.toJson(couchbaseClient, view, lastRow) :
+                MultiKeyPaginator.quoteKey(queryId);
           }
+          checkpoint.pageWritten(queryId, lastRowKey, lastRow == null ? null : lastRow.getId(), pageNo);
+        } finally {
+          pagesInFlight.release();
+        }
+      }
+
+      checkpoint.queryFinished(queryId);
+      return true;
+    } catch (IOException e) {
+      LOGGER.error(ExceptionUtils.getStackTrace(e));
+    } catch (InterruptedException e) {
+      LOGGER.error("Interrupted while importing documents.");
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          LOGGER.error(ExceptionUtils.getStackTrace(e));
         }
       }
     }
 
-    LOGGER.info("Disconnecting from Couchbase...");
-    couchbaseClient.shutdown();
+    return false;
+  }
+
+  /**
+   * Renames a completely written temporary page file to its final name, replacing a file left by a previous run.
+   */
+  protected void commitPageFile(Path tmpPath, int pageNo) throws IOException {
+    Path path = PageFileWriter.getPagePath(iva.getOutput(), PAGE_FILE_BASENAME, pageNo, iva.getCompressionCodec());
+    FileSystem fileSystem = FileSystem.get(path.toUri(), conf);
+
+    fileSystem.delete(path, false);
+    if (!fileSystem.rename(tmpPath, path)) {
+      throw new IOException("Failed to rename '" + tmpPath + "' to '" + path + "'.");
+    }
+  }
+
+  /**
+   * Deletes the page files which were not completely written or not recorded in the checkpoint by a previous run.
+   * Their rows are imported again when the import is resumed.
+   */
+  protected void deleteUncommittedPageFiles() throws IOException {
+    Path pattern = new Path(iva.getOutput().isEmpty() ? "*" + PAGE_FILE_BASENAME + "-*" :
+        iva.getOutput() + "/*" + PAGE_FILE_BASENAME + "-*");
+    FileSystem fileSystem = FileSystem.get(pattern.toUri(), conf);
+
+    FileStatus[] statuses = fileSystem.globStatus(pattern);
+    if (statuses == null) {
+      return;
+    }
+    for (FileStatus status : statuses) {
+      String name = status.getPath().getName();
+      Matcher matcher = PAGE_FILE_NAME_PATTERN.matcher(name);
+      if (!matcher.matches()) {
+        continue;
+      }
+      if (name.startsWith(TMP_PAGE_FILE_BASENAME) || !checkpoint.isCommitted(Integer.parseInt(matcher.group(1)))) {
+        LOGGER.info("Deleting incomplete file '" + status.getPath() + "'...");
+        fileSystem.delete(status.getPath(), false);
+      }
+    }
   }
 
   protected CouchbaseClient connectToCouchbase(List<URI> couchbaseUrls, String couchbaseBucket, String couchbasePassword)
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.jobs;
+
+import com.avira.couchdoop.ArgsException;
+import com.avira.couchdoop.ArgsHelper;
+import com.avira.couchdoop.CouchbaseClientPool;
+import com.avira.couchdoop.JobMetrics;
+import com.avira.couchdoop.imp.AvroDocumentOutputFormat;
+import com.avira.couchdoop.imp.CouchbaseViewInputFormat;
+import com.avira.couchdoop.imp.CouchbaseViewToAvroMapper;
+import com.avira.couchdoop.imp.DocumentSchema;
+import com.avira.couchdoop.imp.DocumentSchemaSampler;
+import com.avira.couchdoop.imp.ImportViewToAvroArgs;
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.View;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Instances of this class import documents of Couchbase view keys in HDFS as Avro data files, with one column for each
+ * document field. Avro data files are row oriented, so readers still decode whole records even if they need only a
+ * few columns.
+ */
+public class CouchbaseViewToAvroImporter extends Configured implements Tool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CouchbaseViewToAvroImporter.class);
+
+  public void start(String[] args) throws ArgsException {
+    int exitCode = 0;
+    try {
+      exitCode = ToolRunner.run(this, args);
+    } catch (ArgsException e) {
+      throw e;
+    } catch (Exception e) {
+      LOGGER.error(ExceptionUtils.getStackTrace(e));
+    }
+
+    System.exit(exitCode);
+  }
+
+  @Override
+  public int run(String[] args) throws ArgsException {
+    Configuration conf = getConf();
+
+    ArgsHelper.loadCliArgsIntoHadoopConf(conf, ImportViewToAvroArgs.ARGS_LIST, args);
+    ImportViewToAvroArgs importViewToAvroArgs = new ImportViewToAvroArgs(conf);
+
+    Job job;
+    boolean exitStatus = true;
+    try {
+      // Tasks must all use the same schema, so an inferred one is passed to them as if it was given.
+      if (importViewToAvroArgs.getSchema() == null) {
+        DocumentSchema schema = sampleSchema(importViewToAvroArgs);
+        conf.set(ImportViewToAvroArgs.ARG_SCHEMA.getPropertyName(), schema.toString());
+      }
+
+      job = configureJob(conf, importViewToAvroArgs.getOutput());
+      exitStatus = job.waitForCompletion(true);
+      JobMetrics.report(job);
+    } catch (Exception e) {
+      LOGGER.error(ExceptionUtils.getStackTrace(e));
+    }
+
+    return exitStatus ? 0 : 2;
+  }
+
+  protected DocumentSchema sampleSchema(ImportViewToAvroArgs args) throws IOException {
+    CouchbaseClient couchbaseClient = CouchbaseClientPool.acquire(args.getUrls(), args.getBucket(),
+        args.getPassword(), args.getClientIdleTimeout());
+    try {
+      View view = couchbaseClient.getView(args.getDesignDocumentName(), args.getViewName());
+      return new DocumentSchemaSampler(couchbaseClient, view).sample(args, args.getSchemaSamples());
+    } finally {
+      CouchbaseClientPool.release(couchbaseClient);
+    }
+  }
+
+  public Job configureJob(Configuration conf, String output) throws IOException {
+    conf.setInt("mapreduce.map.failures.maxpercent", 5);
+    conf.setInt("mapred.max.map.failures.percent", 5);
+    conf.setInt("mapred.max.tracker.failures", 20);
+
+    Job job = Job.getInstance(conf);
+    job.setJarByClass(CouchbaseViewToAvroImporter.class);
+
+    // Input
+    job.setInputFormatClass(CouchbaseViewInputFormat.class);
+
+    // Mapper
+    job.setMapperClass(CouchbaseViewToAvroMapper.class);
+    job.setMapOutputKeyClass(NullWritable.class);
+    job.setMapOutputValueClass(GenericRecord.class);
+
+    // Reducer
+    job.setNumReduceTasks(0);
+
+    // Output
+    job.setOutputFormatClass(AvroDocumentOutputFormat.class);
+    job.setOutputKeyClass(NullWritable.class);
+    job.setOutputValueClass(GenericRecord.class);
+    FileOutputFormat.setOutputPath(job, new Path(output));
+
+    return job;
+  }
+}
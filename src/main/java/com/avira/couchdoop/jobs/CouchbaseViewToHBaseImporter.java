@@ -21,21 +21,32 @@ package com.avira.couchdoop.jobs;
 
 import com.avira.couchdoop.ArgsException;
 import com.avira.couchdoop.ArgsHelper;
+import com.avira.couchdoop.JobMetrics;
 import com.avira.couchdoop.imp.CouchbaseViewInputFormat;
 import com.avira.couchdoop.imp.CouchbaseViewToHBaseMapper;
 import com.avira.couchdoop.imp.ImportViewToHBaseArgs;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat2;
 import org.apache.hadoop.hbase.mapreduce.IdentityTableReducer;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
 import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.UUID;
 
 /**
  * Instances of this class import documents of Couchbase view keys in HDFS files.
@@ -67,8 +78,13 @@ public class CouchbaseViewToHBaseImporter extends Configured implements Tool {
     Job job;
     boolean exitStatus = true;
     try {
-      job = configureJob(conf, importViewToHBaseArgs.getTable());
-      exitStatus = job.waitForCompletion(true);
+      if (importViewToHBaseArgs.isBulkLoad()) {
+        exitStatus = runBulkLoad(conf, importViewToHBaseArgs);
+      } else {
+        job = configureJob(conf, importViewToHBaseArgs.getTable());
+        exitStatus = job.waitForCompletion(true);
+        JobMetrics.report(job);
+      }
     } catch (Exception e) {
       LOGGER.error(ExceptionUtils.getStackTrace(e));
     }
@@ -76,6 +92,40 @@ public class CouchbaseViewToHBaseImporter extends Configured implements Tool {
     return exitStatus ? 0 : 2;
   }
 
+  /**
+   * Writes HFiles with a MapReduce job and then moves them into the regions of the table.
+   *
+   * @return false if the job failed, in which case nothing is loaded
+   */
+  protected boolean runBulkLoad(Configuration conf, ImportViewToHBaseArgs args) throws Exception {
+    Configuration hbaseConf = HBaseConfiguration.create(conf);
+    FileSystem fs = FileSystem.get(hbaseConf);
+
+    boolean tempDir = args.getBulkLoadDir() == null;
+    Path hfilesDir = tempDir ?
+        new Path(hbaseConf.get("hadoop.tmp.dir"), "couchdoop-hfiles-" + UUID.randomUUID()) :
+        new Path(args.getBulkLoadDir());
+
+    HTable table = new HTable(hbaseConf, args.getTable());
+    try {
+      Job job = configureBulkLoadJob(hbaseConf, table, hfilesDir);
+      boolean completed = job.waitForCompletion(true);
+      JobMetrics.report(job);
+      if (!completed) {
+        return false;
+      }
+
+      LOGGER.info("Loading HFiles from {} into table {}.", hfilesDir, args.getTable());
+      new LoadIncrementalHFiles(hbaseConf).doBulkLoad(hfilesDir, table);
+      return true;
+    } finally {
+      table.close();
+      if (tempDir) {
+        fs.delete(hfilesDir, true);
+      }
+    }
+  }
+
   public Job configureJob(Configuration conf, String outputTable) throws IOException {
     conf.setInt("mapreduce.map.failures.maxpercent", 5);
     conf.setInt("mapred.max.map.failures.percent", 5);
@@ -98,4 +148,32 @@ public class CouchbaseViewToHBaseImporter extends Configured implements Tool {
 
     return job;
   }
+
+  /**
+   * Configures a job which writes the documents as HFiles in a directory instead of sending them to the region
+   * servers. The reducers sort the Puts and partition them by the region boundaries of the table, so that each HFile
+   * belongs to a single region and can be loaded with {@link LoadIncrementalHFiles}.
+   */
+  public Job configureBulkLoadJob(Configuration conf, HTable table, Path hfilesDir) throws IOException {
+    conf.setInt("mapreduce.map.failures.maxpercent", 5);
+    conf.setInt("mapred.max.map.failures.percent", 5);
+    conf.setInt("mapred.max.tracker.failures", 20);
+
+    Job job = Job.getInstance(conf);
+    job.setJarByClass(CouchbaseViewToHBaseImporter.class);
+
+    // Input
+    job.setInputFormatClass(CouchbaseViewInputFormat.class);
+
+    // Mapper
+    job.setMapperClass(CouchbaseViewToHBaseMapper.class);
+    job.setMapOutputKeyClass(ImmutableBytesWritable.class);
+    job.setMapOutputValueClass(Put.class);
+
+    // Reducer and output: one reducer for each region.
+    HFileOutputFormat2.configureIncrementalLoad(job, table);
+    FileOutputFormat.setOutputPath(job, hfilesDir);
+
+    return job;
+  }
 }
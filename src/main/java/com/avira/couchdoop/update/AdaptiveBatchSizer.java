@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.update;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the size of bulk gets with additive increase and multiplicative decrease (AIMD).
+ *
+ * <p>The size grows by a constant step after each bulk whose latency stayed under the target and is halved after a
+ * bulk which was slower than the target or timed out. It always stays between a minimum and a maximum.</p>
+ */
+public class AdaptiveBatchSizer {
+
+  /** Minimum time between two log messages about the current size, unless the size decreases. */
+  private static final long LOG_INTERVAL_MS = 60000;
+
+  private final int minSize;
+  private final int maxSize;
+  private final int step;
+  private final long targetLatency;
+
+  private int size;
+
+  private long increasesCount = 0;
+  private long decreasesCount = 0;
+  private long lastLogTime = 0;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+  /**
+   * @param initialSize size used until the first latency is reported
+   * @param targetLatency maximum latency in milliseconds of a bulk get, above which the size is decreased
+   */
+  public AdaptiveBatchSizer(int initialSize, int minSize, int maxSize, long targetLatency) {
+    if (minSize < 1 || maxSize < minSize) {
+      throw new IllegalArgumentException("Invalid bulk size limits [" + minSize + ", " + maxSize + "].");
+    }
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.step = minSize;
+    this.targetLatency = targetLatency;
+    this.size = Math.min(Math.max(initialSize, minSize), maxSize);
+  }
+
+  /**
+   * @return size of the next bulk
+   */
+  public synchronized int getSize() {
+    return size;
+  }
+
+  /**
+   * Adjusts the size after a bulk get completed.
+   *
+   * @param bulkSize number of keys of the bulk, which may be smaller than the chosen size if fewer were available
+   * @param latency time in milliseconds from sending the bulk get until it completed
+   */
+  public synchronized void onCompleted(int bulkSize, long latency) {
+    if (latency > targetLatency) {
+      decrease("latency " + latency + " ms is above target " + targetLatency + " ms");
+    } else if (bulkSize >= size) {
+      // Grow only if the bulk was full, otherwise the size is not what limits the throughput.
+      increase();
+    }
+  }
+
+  /**
+   * Adjusts the size after a bulk get timed out.
+   */
+  public synchronized void onTimeout() {
+    decrease("bulk get timed out");
+  }
+
+  public synchronized long getIncreasesCount() {
+    return increasesCount;
+  }
+
+  public synchronized long getDecreasesCount() {
+    return decreasesCount;
+  }
+
+  private void increase() {
+    if (size >= maxSize) {
+      return;
+    }
+    size = Math.min(size + step, maxSize);
+    increasesCount++;
+
+    long now = System.currentTimeMillis();
+    if (now - lastLogTime >= LOG_INTERVAL_MS) {
+      LOGGER.info("Bulk size is {}.", size);
+      lastLogTime = now;
+    }
+  }
+
+  private void decrease(String reason) {
+    if (size <= minSize) {
+      return;
+    }
+    size = Math.max(size / 2, minSize);
+    decreasesCount++;
+
+    LOGGER.info("Bulk size decreased to {} because {}.", size, reason);
+    lastLogTime = System.currentTimeMillis();
+  }
+}
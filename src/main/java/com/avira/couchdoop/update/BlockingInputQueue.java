@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.update;
+
+import com.avira.couchdoop.update.CouchbaseUpdateMapper.HadoopInput;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InputQueue} backed by a {@link LinkedBlockingQueue}, which passes on the inputs themselves.
+ */
+public class BlockingInputQueue<T> implements InputQueue<T> {
+
+  /**
+   * Queued after all inputs in order to signal the end of the input.
+   */
+  @SuppressWarnings("rawtypes")
+  private static final HadoopInput END_OF_INPUT = new HadoopInput<>(null, null);
+
+  private final BlockingQueue<HadoopInput<T>> queue;
+
+  /** Whether the consumer reached the end of the input. */
+  private boolean ended = false;
+
+  public BlockingInputQueue(int capacity) {
+    queue = new LinkedBlockingQueue<HadoopInput<T>>(capacity);
+  }
+
+  @Override
+  public boolean offer(HadoopInput<T> input, long timeout, TimeUnit unit) throws InterruptedException {
+    return queue.offer(input, timeout, unit);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+    return queue.offer(END_OF_INPUT, timeout, unit);
+  }
+
+  @Override
+  public HadoopInput<T> take() throws InterruptedException {
+    if (ended) {
+      return null;
+    }
+
+    HadoopInput<T> input = queue.take();
+    if (input == END_OF_INPUT) {
+      ended = true;
+      return null;
+    }
+    return input;
+  }
+
+  @Override
+  public int drainTo(List<HadoopInput<T>> inputs, int maxElements) {
+    if (ended) {
+      return 0;
+    }
+
+    int size = inputs.size();
+    int count = queue.drainTo(inputs, maxElements);
+    if (count > 0 && inputs.get(size + count - 1) == END_OF_INPUT) {
+      inputs.remove(size + count - 1);
+      ended = true;
+      count--;
+    }
+    return count;
+  }
+
+  @Override
+  public void release(HadoopInput<T> input) {
+    // Inputs are not reused.
+  }
+}
@@ -20,20 +20,38 @@
 package com.avira.couchdoop.update;
 
 import com.avira.couchdoop.ArgsException;
+import com.avira.couchdoop.CouchbaseClientPool;
+import com.avira.couchdoop.ExponentialHistogram;
 import com.avira.couchdoop.exp.CouchbaseAction;
 import com.avira.couchdoop.exp.ExportArgs;
 import com.couchbase.client.CouchbaseClient;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * This Mapper class is meant to update Couchbase documents, by using data from a configurable InputFormat.
@@ -42,29 +60,126 @@ import java.util.concurrent.LinkedBlockingQueue;
  * can be combined with current document values from Couchbase in order to compute the values.</p>
  *
  * <p>Extensions of this class should implement </p>
+ *
+ * <p>Inputs are handed off by {@link #map} through a bounded queue, either a {@link BlockingInputQueue} or a
+ * lock-free {@link RingBufferInputQueue}, and then go through a pipeline of three stages:</p>
+ * <ol>
+ *   <li>a fetcher thread groups inputs in bulks and issues an asynchronous bulk get for each;</li>
+ *   <li>a configurable number of consumer threads wait for the documents of a bulk and merge them. If more than one
+ *   consumer thread is used, {@link #merge} is called concurrently and must be thread-safe. The updates of a key are
+ *   still merged and written in input order, because a key is in at most one bulk at a time, as explained
+ *   below;</li>
+ *   <li>the merged documents are written with {@link com.avira.couchdoop.exp.CouchbaseOutputFormat}, which keeps
+ *   a configurable window of writes in flight.</li>
+ * </ol>
+ * <p>Thus the bulk get of a bulk overlaps with merging the previous bulk and with writing the one before it. Writes
+ * overlap only if the write window is larger than its default of 1, otherwise each write waits for the previous
+ * one.</p>
+ *
+ * <p>A key is fetched again only after the previous update of the key was passed to the writer, so that it is not
+ * merged with a document which is about to change. The fetcher waits for such keys, so bulks with keys repeated from
+ * the previous bulks overlap less. With a write window larger than 1, a write which is retried after a temporary
+ * failure may still complete after the next bulk get of its key; use CAS mode if such lost updates must be
+ * detected.</p>
+ *
+ * <p>By default documents are written blindly, so updates done meanwhile by other clients may be lost. In CAS mode
+ * documents are retrieved together with their CAS values and written only if they did not change meanwhile. The
+ * updates which conflict with other writes are retried by retrieving and merging the documents again. In this mode the
+ * mapper writes the documents itself, without passing them to the OutputFormat.</p>
  */
 public abstract class CouchbaseUpdateMapper<KEYIN, VALUEIN, T> extends Mapper<KEYIN, VALUEIN, String, CouchbaseAction> {
 
   protected CouchbaseClient couchbaseClient;
-  private Consumer consumer;
+  private Fetcher fetcher;
+  private List<Consumer> consumers;
 
-  private BlockingQueue<HadoopInput<T>> queue;
+  private InputQueue<T> queue;
+  private BlockingQueue<FetchedBulk<T>> fetchedBulks;
+
+  /**
+   * Number of inputs for each key which were fetched but not passed to the writer yet, guarded by itself.
+   */
+  private final Map<String, Integer> pendingKeys = new HashMap<String, Integer>();
 
   private int bulkSize;
+  private long bulkTimeout;
+  private AdaptiveBatchSizer batchSizer;
+  private ExponentialHistogram bulkSizeHistogram = new ExponentialHistogram();
+
+  /**
+   * Latencies in microseconds of the bulk gets, recorded by the threads of the Couchbase client, so guarded by itself.
+   */
+  private final ExponentialHistogram getBulkLatencyHistogram = new ExponentialHistogram();
+
+  private boolean casMode;
+  private int casMaxRetries;
 
   private long putTimesSum = 0;
 
   public static final String PROPERTY_QUEUE_SIZE = "couchbase.update.queue.size";
+  public static final String PROPERTY_QUEUE_TYPE = "couchbase.update.queue.type";
+  public static final String PROPERTY_QUEUE_WAIT_STRATEGY = "couchbase.update.queue.wait.strategy";
   public static final String PROPERTY_BULK_SIZE = "couchbase.update.bulk.size";
+  public static final String PROPERTY_CONSUMER_THREADS = "couchbase.update.consumer.threads";
+  public static final String PROPERTY_FETCHED_BULKS = "couchbase.update.fetched.bulks";
+  public static final String PROPERTY_BULK_ADAPTIVE = "couchbase.update.bulk.adaptive";
+  public static final String PROPERTY_BULK_MIN_SIZE = "couchbase.update.bulk.min.size";
+  public static final String PROPERTY_BULK_MAX_SIZE = "couchbase.update.bulk.max.size";
+  public static final String PROPERTY_BULK_TARGET_LATENCY = "couchbase.update.bulk.target.latency";
+  public static final String PROPERTY_BULK_TIMEOUT = "couchbase.update.bulk.timeout";
+  public static final String PROPERTY_CAS = "couchbase.update.cas";
+  public static final String PROPERTY_CAS_MAX_RETRIES = "couchbase.update.cas.max.retries";
+
+  /** Number of times the keys of a bulk are fetched before failing the task, if bulk sizes are adaptive. */
+  private static final int BULK_MAX_TRIES = 3;
+
+  /** Number of times a write which failed temporarily in CAS mode is sent again, after exponential back-off. */
+  private static final int CAS_BACKOFF_MAX_TRIES = 16;
+  private static final int CAS_BACKOFF_MAX_RETRY_INTERVAL = 1000; // ms
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CouchbaseUpdateMapper.class);
 
-  public static enum Counters {QUEUE_PUT_TIMES_SUM, QUEUE_TAKE_TIMES_SUM, BULK_SIZES_SUM, BULKS_COUNT }
+  /**
+   * Times are in milliseconds and summed over all threads of a stage:
+   * <ul>
+   *   <li>FETCH_STAGE_IDLE_TIMES_SUM - the fetcher waited for inputs;</li>
+   *   <li>FETCH_STAGE_BLOCKED_TIMES_SUM - the fetcher waited because the consumers were behind or for the previous
+   *   updates of the keys of a bulk;</li>
+   *   <li>MERGE_STAGE_IDLE_TIMES_SUM - consumers waited for bulk gets;</li>
+   *   <li>MERGE_STAGE_TIMES_SUM - consumers merged documents;</li>
+   *   <li>WRITE_STAGE_TIMES_SUM - consumers waited for the writer, e.g. because its window of writes was full.</li>
+   * </ul>
+   * With adaptive bulk sizes, BULK_SIZE_INCREASES and BULK_SIZE_DECREASES count the size changes and BULK_RETRIES
+   * counts the bulk gets sent again after a bulk get timed out.
+   * In CAS mode:
+   * <ul>
+   *   <li>CAS_CONFLICTS - writes rejected because the document changed after it was retrieved;</li>
+   *   <li>CAS_TEMPORARY_FAILURES - writes which failed temporarily, e.g. because the server was overloaded, and
+   *   were sent again after a back-off delay;</li>
+   *   <li>CAS_RETRIES - documents retrieved and merged again after a conflict;</li>
+   *   <li>CAS_GIVE_UPS - updates abandoned after too many conflicts;</li>
+   *   <li>CAS_FAILED_WRITES - writes which failed for other reasons, e.g. adding an existing document, or failed
+   *   temporarily too many times.</li>
+   * </ul>
+   */
+  public static enum Counters {QUEUE_PUT_TIMES_SUM, FETCH_STAGE_IDLE_TIMES_SUM, FETCH_STAGE_BLOCKED_TIMES_SUM,
+    MERGE_STAGE_IDLE_TIMES_SUM, MERGE_STAGE_TIMES_SUM, WRITE_STAGE_TIMES_SUM, BULK_SIZES_SUM, BULKS_COUNT,
+    BULK_SIZE_INCREASES, BULK_SIZE_DECREASES, BULK_RETRIES, CAS_CONFLICTS, CAS_TEMPORARY_FAILURES, CAS_RETRIES,
+    CAS_GIVE_UPS, CAS_FAILED_WRITES }
+
+  /**
+   * Queued by the fetcher after all bulks, once for each consumer, in order to stop it.
+   */
+  @SuppressWarnings("rawtypes")
+  private static final FetchedBulk END_OF_BULKS = new FetchedBulk<>(null, (BulkFuture<Map<String, Object>>) null);
 
   public static class HadoopInput<T> {
     private String couchbaseKey;
     private T hadoopData;
 
+    /** Position of the input in a {@link RingBufferInputQueue}. */
+    long sequence;
+
     public HadoopInput(String couchbaseKey, T hadoopData) {
       set(couchbaseKey, hadoopData);
     }
@@ -91,90 +206,584 @@ public abstract class CouchbaseUpdateMapper<KEYIN, VALUEIN, T> extends Mapper<KE
     }
   }
 
-  public class Consumer extends Thread {
+  /**
+   * A bulk of inputs whose current documents are being retrieved.
+   */
+  private static class FetchedBulk<T> {
+    private final List<HadoopInput<T>> inputs;
+    private final BulkFuture<Map<String, Object>> docs;
+    private final Map<String, OperationFuture<CASValue<Object>>> casDocs;
+    // Number of times the documents of the inputs were requested.
+    private final int tries;
+
+    public FetchedBulk(List<HadoopInput<T>> inputs, BulkFuture<Map<String, Object>> docs) {
+      this(inputs, docs, 1);
+    }
 
-    private Context context;
-    private boolean on;
+    public FetchedBulk(List<HadoopInput<T>> inputs, BulkFuture<Map<String, Object>> docs, int tries) {
+      this.inputs = inputs;
+      this.docs = docs;
+      this.casDocs = null;
+      this.tries = tries;
+    }
+
+    /**
+     * Creates a bulk whose documents are retrieved together with their CAS values.
+     */
+    public FetchedBulk(List<HadoopInput<T>> inputs, Map<String, OperationFuture<CASValue<Object>>> casDocs) {
+      this.inputs = inputs;
+      this.docs = null;
+      this.casDocs = casDocs;
+      this.tries = 1;
+    }
+  }
+
+  /**
+   * A write done in CAS mode.
+   */
+  private static class CasWrite<T> {
+    private final HadoopInput<T> input;
+    private final CouchbaseAction action;
+    // The document as retrieved or null if it didn't exist.
+    private final CASValue<Object> current;
+    private final OperationFuture<?> future;
+    // True if the write fails when the document changed after it was retrieved.
+    private final boolean conditional;
+
+    public CasWrite(HadoopInput<T> input, CouchbaseAction action, CASValue<Object> current,
+                    OperationFuture<?> future, boolean conditional) {
+      this.input = input;
+      this.action = action;
+      this.current = current;
+      this.future = future;
+      this.conditional = conditional;
+    }
+  }
+
+  /**
+   * Base class for the pipeline threads, which remembers the exception that stopped a thread.
+   */
+  private abstract static class StageThread extends Thread {
+
+    private volatile Throwable error;
+
+    public StageThread(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        runStage();
+      } catch (InterruptedException e) {
+        // The thread ends if interrupted.
+      } catch (RuntimeException | Error e) {
+        LOGGER.error("Thread " + getName() + " failed.", e);
+        error = e;
+      }
+    }
+
+    protected abstract void runStage() throws InterruptedException;
+
+    /**
+     * @return the exception which stopped the thread or null
+     */
+    public Throwable getError() {
+      return error;
+    }
+  }
+
+  /**
+   * First stage of the pipeline, which groups inputs in bulks and issues a bulk get for each.
+   */
+  public class Fetcher extends StageThread {
+
+    private int numConsumers;
 
     private long bulksCount = 0;
     private long bulkSizesSum = 0;
-    private long takeTimesSum = 0;
+    private long idleTimesSum = 0;
+    private long blockedTimesSum = 0;
 
-    public Consumer(Context context) {
+    public Fetcher(int numConsumers) {
+      super("update-fetcher");
+      this.numConsumers = numConsumers;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void runStage() throws InterruptedException {
+      long t0, t1;
+
+      while (true) {
+        int maxBulkSize = batchSizer != null ? batchSizer.getSize() : bulkSize;
+        List<HadoopInput<T>> inputs = new ArrayList<HadoopInput<T>>(maxBulkSize);
+
+        t0 = System.currentTimeMillis();
+        // Block until at least one element is available, or stop at the end of the input.
+        HadoopInput<T> first = queue.take();
+        t1 = System.currentTimeMillis();
+        idleTimesSum += t1 - t0;
+        if (first == null) {
+          break;
+        }
+        inputs.add(first);
+
+        // Drain more elements from the queue if available, the more the better for the bulk get.
+        queue.drainTo(inputs, maxBulkSize - 1);
+
+        bulksCount++;
+        bulkSizesSum += inputs.size();
+        bulkSizeHistogram.record(inputs.size());
+
+        // Don't read documents which are still being updated.
+        t0 = System.currentTimeMillis();
+        addPendingKeys(inputs);
+        blockedTimesSum += System.currentTimeMillis() - t0;
+
+        // Start retrieving the documents for the keys read from Hadoop and hand them to the consumers.
+        FetchedBulk<T> bulk;
+        if (casMode) {
+          bulk = new FetchedBulk<T>(inputs, fetchWithCas(inputs));
+        } else {
+          bulk = new FetchedBulk<T>(inputs, fetch(inputs));
+        }
+        t0 = System.currentTimeMillis();
+        fetchedBulks.put(bulk);
+        t1 = System.currentTimeMillis();
+        blockedTimesSum += t1 - t0;
+      }
+
+      for (int i = 0; i < numConsumers; i++) {
+        fetchedBulks.put(END_OF_BULKS);
+      }
+    }
+  }
+
+  /**
+   * Second stage of the pipeline, which merges the documents retrieved by a bulk get and passes them to the writer.
+   */
+  public class Consumer extends StageThread {
+
+    private Context context;
+
+    private long idleTimesSum = 0;
+    private long mergeTimesSum = 0;
+    private long writeTimesSum = 0;
+    private long bulkRetries = 0;
+
+    private long casConflicts = 0;
+    private long casTemporaryFailures = 0;
+    private long casRetries = 0;
+    private long casGiveUps = 0;
+    private long casFailedWrites = 0;
+    private Random random = new Random();
+
+    public Consumer(Context context, int id) {
+      super("update-consumer-" + id);
       this.context = context;
-      this.on = true;
     }
 
     @Override
-    public void run() {
-      Collection<HadoopInput<T>> inputs = new ArrayList<HadoopInput<T>>(bulkSize);
-      Collection<String> keys = new ArrayList<String>(bulkSize);
+    protected void runStage() throws InterruptedException {
       Map<String, Object> docs;
-      CouchbaseAction action;
       long t0, t1;
 
-      while (on) {
-        // Clean up.
-        inputs.clear();
-        keys.clear();
+      while (true) {
+        t0 = System.currentTimeMillis();
+        FetchedBulk<T> bulk = fetchedBulks.take();
+        if (bulk == END_OF_BULKS) {
+          break;
+        }
+        if (casMode) {
+          updateWithCas(bulk.inputs, bulk.casDocs);
+          removePendingKeys(bulk.inputs);
+          release(bulk.inputs);
+          continue;
+        }
+        // A bulk whose bulk get times out is fetched again in parts, which are merged in order.
+        Deque<FetchedBulk<T>> parts = new ArrayDeque<FetchedBulk<T>>();
+        parts.add(bulk);
+        while (!parts.isEmpty()) {
+          FetchedBulk<T> part = parts.poll();
+          docs = getDocs(part);
+          t1 = System.currentTimeMillis();
+          idleTimesSum += t1 - t0;
 
-        try {
+          if (docs == null) {
+            refetch(part, parts);
+          } else {
+            mergeAndWrite(part.inputs, docs);
+          }
           t0 = System.currentTimeMillis();
-          // Block until at least one element is available.
-          inputs.add(queue.take());
-          t1 = System.currentTimeMillis();
-          takeTimesSum += t1 - t0;
+        }
+        release(bulk.inputs);
+      }
+    }
+
+    /**
+     * Waits for the documents of a bulk.
+     *
+     * @return the documents or null if the bulk get timed out and the keys should be fetched again
+     */
+    private Map<String, Object> getDocs(FetchedBulk<T> bulk) throws InterruptedException {
+      try {
+        return bulk.docs.get(bulkTimeout, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        throw new RuntimeException("Exception waiting for bulk values", e);
+      } catch (TimeoutException e) {
+        if (batchSizer == null || bulk.tries >= BULK_MAX_TRIES) {
+          throw new OperationTimeoutException("Timeout waiting for bulk values", e);
+        }
+        // Use smaller bulks from now on.
+        batchSizer.onTimeout();
+        return null;
+      }
+    }
 
-          // Drain more elements from the queue if available, the more the better for the bulk get.
-          queue.drainTo(inputs, bulkSize - 1);
-          bulksCount++;
-          bulkSizesSum += inputs.size();
+    /**
+     * Fetches again the documents of a bulk whose bulk get timed out, in bulks of the current size which are queued
+     * in front of the remaining parts.
+     */
+    private void refetch(FetchedBulk<T> bulk, Deque<FetchedBulk<T>> parts) {
+      int size = batchSizer.getSize();
+      List<FetchedBulk<T>> retries = new ArrayList<FetchedBulk<T>>();
+      for (int from = 0; from < bulk.inputs.size(); from += size) {
+        List<HadoopInput<T>> inputs = bulk.inputs.subList(from, Math.min(from + size, bulk.inputs.size()));
+        retries.add(new FetchedBulk<T>(inputs, fetch(inputs), bulk.tries + 1));
+      }
+      bulkRetries += retries.size();
+      for (int i = retries.size() - 1; i >= 0; i--) {
+        parts.addFirst(retries.get(i));
+      }
+    }
+
+    private void mergeAndWrite(List<HadoopInput<T>> inputs, Map<String, Object> docs) throws InterruptedException {
+      long t1, t2;
+
+      for (HadoopInput<T> input : inputs) {
+        String key = input.getCouchbaseKey();
 
-          // Map the inputs to extract couchbase keys.
-          for (HadoopInput<T> input : inputs) {
-            keys.add(input.getCouchbaseKey());
+        // Compute the Couchbase operation and the new output document.
+        t1 = System.currentTimeMillis();
+        CouchbaseAction action = merge(input.getHadoopData(), docs.get(key), context);
+        t2 = System.currentTimeMillis();
+        mergeTimesSum += t2 - t1;
+
+        // Write the newly updated document back to Couchbase.
+        try {
+          synchronized (context) {
+            context.write(key, action);
           }
+        } catch (IOException e) {
+          throw new RuntimeException("Exception writing document with ID " + key, e);
+        }
+        removePendingKey(key);
+        writeTimesSum += System.currentTimeMillis() - t2;
+      }
+    }
 
-          // Do a bulk get for the keys read from Hadoop.
-          docs = couchbaseClient.getBulk(keys);
+    private void release(List<HadoopInput<T>> inputs) {
+      for (HadoopInput<T> input : inputs) {
+        queue.release(input);
+      }
+    }
 
-          for (HadoopInput<T> input : inputs) {
-            String key = input.getCouchbaseKey();
+    /**
+     * Merges and writes the documents of a bulk if they did not change after they were retrieved. The updates which
+     * conflict with other writes are retried with the documents retrieved again. The writes which fail temporarily
+     * are sent again after an exponential back-off delay, like {@link com.avira.couchdoop.exp.CouchbaseOutputFormat}
+     * does.
+     */
+    private void updateWithCas(List<HadoopInput<T>> inputs, Map<String, OperationFuture<CASValue<Object>>> casDocs)
+        throws InterruptedException {
+      long t0, t1, t2;
+
+      for (int retry = 0; ; retry++) {
+        List<CasWrite<T>> writes = new ArrayList<CasWrite<T>>(inputs.size());
+
+        t0 = System.currentTimeMillis();
+        for (HadoopInput<T> input : inputs) {
+          String key = input.getCouchbaseKey();
+          CASValue<Object> current = getCasValue(casDocs.get(key));
+
+          // Compute the Couchbase operation and the new output document.
+          t1 = System.currentTimeMillis();
+          idleTimesSum += t1 - t0;
+          CouchbaseAction action = merge(input.getHadoopData(), current == null ? null : current.getValue(), context);
+          t2 = System.currentTimeMillis();
+          mergeTimesSum += t2 - t1;
+
+          CasWrite<T> write = storeWithCas(input, action, current);
+          if (write != null) {
+            writes.add(write);
+          }
+          t0 = System.currentTimeMillis();
+        }
 
-            // Compute the Couchbase operation and the new output document.
-            action = merge(input.getHadoopData(), docs.get(key), context);
+        // Wait for all writes of the bulk and collect the conflicting ones.
+        List<HadoopInput<T>> conflicts = new ArrayList<HadoopInput<T>>();
+        for (int backoffExp = 0; !writes.isEmpty(); backoffExp++) {
+          List<CasWrite<T>> temporaryFailures = new ArrayList<CasWrite<T>>();
+          for (CasWrite<T> write : writes) {
+            // The client can't handle a temporary failure of a CAS write: it reconnects and cancels the writes in
+            // flight, which then have no status, although some of them may have been applied.
+            OperationStatus operationStatus = write.future.getStatus();
+            StatusCode status = operationStatus == null ? StatusCode.ERR_TEMP_FAIL : operationStatus.getStatusCode();
+            if (status == StatusCode.SUCCESS) {
+              continue;
+            }
+            if (status == StatusCode.ERR_TEMP_FAIL && backoffExp < CAS_BACKOFF_MAX_TRIES) {
+              casTemporaryFailures++;
+              temporaryFailures.add(write);
+            } else if (write.conditional && (status == StatusCode.ERR_EXISTS || status == StatusCode.ERR_NOT_FOUND)) {
+              casConflicts++;
+              conflicts.add(write.input);
+            } else {
+              LOGGER.debug("Failed to update document with ID {}: {}", write.input.getCouchbaseKey(),
+                  operationStatus == null ? "cancelled" : operationStatus.getMessage());
+              casFailedWrites++;
+            }
+          }
 
-            // Write the newly updated document back to Couchbase.
-            try {
-              context.write(key, action);
-            } catch (IOException e) {
-              break;
+          // Send again the writes which failed temporarily, with the CAS values they had, after a random delay
+          // between half and the whole back-off interval. The cancelled writes are sent again only if they were not
+          // applied, and checked again later if their documents can't be retrieved either.
+          writes = new ArrayList<CasWrite<T>>(temporaryFailures.size());
+          if (!temporaryFailures.isEmpty()) {
+            int retryInterval = Math.min((int) Math.pow(2, backoffExp), CAS_BACKOFF_MAX_RETRY_INTERVAL);
+            Thread.sleep(retryInterval / 2 + random.nextInt(retryInterval - retryInterval / 2 + 1));
+            for (CasWrite<T> write : temporaryFailures) {
+              if (write.future.getStatus() == null) {
+                OperationFuture<CASValue<Object>> docFuture = couchbaseClient.asyncGets(write.input.getCouchbaseKey());
+                OperationStatus docStatus = docFuture.getStatus();
+                if (docStatus == null) {
+                  writes.add(write);
+                  continue;
+                }
+                if (isApplied(write, docStatus.isSuccess() ? getCasValue(docFuture) : null)) {
+                  continue;
+                }
+              }
+              writes.add(storeWithCas(write.input, write.action, write.current));
             }
           }
-        } catch (InterruptedException e) {
-          // The thread end if interrupted.
+        }
+        writeTimesSum += System.currentTimeMillis() - t0;
+
+        if (conflicts.isEmpty()) {
+          return;
+        }
+        if (retry >= casMaxRetries) {
+          LOGGER.warn("Giving up {} updates after {} retries because of conflicting writes.", conflicts.size(), retry);
+          casGiveUps += conflicts.size();
+          return;
+        }
+
+        // Retrieve and merge again only the conflicting documents.
+        casRetries += conflicts.size();
+        inputs = conflicts;
+        casDocs = fetchWithCas(inputs);
+      }
+    }
+
+    private CASValue<Object> getCasValue(OperationFuture<CASValue<Object>> future) throws InterruptedException {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException("Exception waiting for value", e);
+      }
+    }
+
+    /**
+     * Finds out whether a cancelled write was applied: the document changed since it was retrieved for merging and
+     * holds what was written.
+     *
+     * @param doc the document as retrieved again or null if it doesn't exist
+     */
+    private boolean isApplied(CasWrite<T> write, CASValue<Object> doc) {
+      CASValue<Object> current = write.current;
+      if (current == null ? doc == null : doc != null && doc.getCas() == current.getCas()) {
+        return false;
+      }
+
+      Object value = write.action.getValue();
+      switch (write.action.getOperation()) {
+        case SET:
+        case REPLACE:
+        case ADD:
+          return doc != null && doc.getValue().equals(value);
+        case APPEND:
+          return doc != null && current != null && doc.getValue().equals(String.valueOf(current.getValue()) + value);
+        case PREPEND:
+          return doc != null && current != null && doc.getValue().equals(value + String.valueOf(current.getValue()));
+        case DELETE:
+          return doc == null;
+        default:
+          // Sending the write again does no harm.
+          return false;
+      }
+    }
+
+    /**
+     * Starts writing a document with the CAS value it had when it was retrieved, if the operation supports it.
+     *
+     * @param current the document as retrieved or null if it didn't exist
+     * @return the started write or null if there is nothing to write
+     */
+    private CasWrite<T> storeWithCas(HadoopInput<T> input, CouchbaseAction action, CASValue<Object> current) {
+      String key = input.getCouchbaseKey();
+      long cas = current == null ? 0 : current.getCas();
+
+      OperationFuture<?> future;
+      boolean conditional;
+      switch (action.getOperation()) {
+        case SET:
+          if (current == null) {
+            // Fails if the document was created meanwhile.
+            future = couchbaseClient.add(key, action.getExpiry(), action.getValue());
+          } else {
+            future = couchbaseClient.asyncCAS(key, cas, action.getExpiry(), action.getValue());
+          }
+          conditional = true;
+          break;
+        case REPLACE:
+          if (current == null) {
+            future = couchbaseClient.replace(key, action.getExpiry(), action.getValue());
+          } else {
+            future = couchbaseClient.asyncCAS(key, cas, action.getExpiry(), action.getValue());
+          }
+          conditional = current != null;
           break;
+        case ADD:
+          future = couchbaseClient.add(key, action.getExpiry(), action.getValue());
+          conditional = false;
+          break;
+        case APPEND:
+          future = couchbaseClient.append(cas, key, action.getValue());
+          conditional = current != null;
+          break;
+        case PREPEND:
+          future = couchbaseClient.prepend(cas, key, action.getValue());
+          conditional = current != null;
+          break;
+        case DELETE:
+          if (current == null) {
+            return null;
+          }
+          future = couchbaseClient.delete(key, cas);
+          conditional = true;
+          break;
+        case EXISTS:
+          future = couchbaseClient.touch(key, action.getExpiry());
+          conditional = false;
+          break;
+        default:
+          // Ignore this action.
+          return null;
+      }
+      return new CasWrite<T>(input, action, current, future, conditional);
+    }
+  }
+
+  /**
+   * Waits until the keys of the inputs are no longer pending and marks them as pending.
+   */
+  private void addPendingKeys(List<HadoopInput<T>> inputs) throws InterruptedException {
+    synchronized (pendingKeys) {
+      for (HadoopInput<T> input : inputs) {
+        while (pendingKeys.containsKey(input.getCouchbaseKey())) {
+          pendingKeys.wait();
         }
       }
+      for (HadoopInput<T> input : inputs) {
+        Integer count = pendingKeys.get(input.getCouchbaseKey());
+        pendingKeys.put(input.getCouchbaseKey(), count == null ? 1 : count + 1);
+      }
     }
+  }
 
-    public synchronized void shutdown() {
-      on = false;
+  /**
+   * Notes that the update of an input was passed to the writer.
+   */
+  private void removePendingKey(String key) {
+    synchronized (pendingKeys) {
+      int count = pendingKeys.get(key);
+      if (count > 1) {
+        pendingKeys.put(key, count - 1);
+      } else {
+        pendingKeys.remove(key);
+        pendingKeys.notifyAll();
+      }
     }
+  }
 
-    public synchronized long getBulksCount() {
-      return bulksCount;
+  private void removePendingKeys(List<HadoopInput<T>> inputs) {
+    for (HadoopInput<T> input : inputs) {
+      removePendingKey(input.getCouchbaseKey());
     }
+  }
+
+  /**
+   * Starts a bulk get for the documents of some inputs and records its latency, reporting it to the bulk size
+   * controller too, if any.
+   */
+  private BulkFuture<Map<String, Object>> fetch(List<HadoopInput<T>> inputs) {
+    final int size = inputs.size();
+    final long startTime = System.nanoTime();
+
+    BulkFuture<Map<String, Object>> docs = couchbaseClient.asyncGetBulk(getKeys(inputs));
+    docs.addListener(new BulkGetCompletionListener() {
+      @Override
+      public void onComplete(BulkGetFuture<?> future) {
+        // Timeouts are already reported by the consumer.
+        if (future.isTimeout()) {
+          return;
+        }
 
-    public synchronized long getBulkSizesSum() {
-      return bulkSizesSum;
+        long latency = System.nanoTime() - startTime;
+        synchronized (getBulkLatencyHistogram) {
+          getBulkLatencyHistogram.record(TimeUnit.NANOSECONDS.toMicros(latency));
+        }
+        if (batchSizer != null) {
+          batchSizer.onCompleted(size, TimeUnit.NANOSECONDS.toMillis(latency));
+        }
+      }
+    });
+    return docs;
+  }
+
+  private List<String> getKeys(List<HadoopInput<T>> inputs) {
+    List<String> keys = new ArrayList<String>(inputs.size());
+    for (HadoopInput<T> input : inputs) {
+      keys.add(input.getCouchbaseKey());
     }
+    return keys;
+  }
 
-    public synchronized long getTakeTimesSum() {
-      return takeTimesSum;
+  /**
+   * Starts retrieving the documents of some inputs together with their CAS values.
+   */
+  private Map<String, OperationFuture<CASValue<Object>>> fetchWithCas(List<HadoopInput<T>> inputs) {
+    Map<String, OperationFuture<CASValue<Object>>> casDocs =
+        new HashMap<String, OperationFuture<CASValue<Object>>>(inputs.size() * 2);
+    for (HadoopInput<T> input : inputs) {
+      String key = input.getCouchbaseKey();
+      if (!casDocs.containsKey(key)) {
+        casDocs.put(key, couchbaseClient.asyncGets(key));
+      }
     }
+    return casDocs;
   }
 
+  /**
+   * Extracts the Couchbase key and the data needed by {@link #merge} from an input record. If the
+   * {@value #PROPERTY_QUEUE_TYPE} property is "ring", the returned object is copied into the ring buffer, so an
+   * implementation may return the same object each time, after updating it with {@link HadoopInput#set}.
+   *
+   * @return the input to update a document with or null to skip the record
+   */
   protected abstract HadoopInput<T> transform(KEYIN hKey, VALUEIN hValue, Context context);
 
   protected abstract CouchbaseAction merge(T t, Object cbInputValue, Context context);
@@ -192,17 +801,57 @@ public abstract class CouchbaseUpdateMapper<KEYIN, VALUEIN, T> extends Mapper<KE
     // Create and configure queue.
     int queueSize = conf.getInt(PROPERTY_QUEUE_SIZE, 4096);
     bulkSize = conf.getInt(PROPERTY_BULK_SIZE, 1024);
-    queue = new LinkedBlockingQueue<HadoopInput<T>>(queueSize);
+    bulkTimeout = conf.getLong(PROPERTY_BULK_TIMEOUT, DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT);
+    if (conf.getBoolean(PROPERTY_BULK_ADAPTIVE, false)) {
+      batchSizer = new AdaptiveBatchSizer(bulkSize, conf.getInt(PROPERTY_BULK_MIN_SIZE, 16),
+          conf.getInt(PROPERTY_BULK_MAX_SIZE, 16384), conf.getLong(PROPERTY_BULK_TARGET_LATENCY, 500));
+      LOGGER.info("Adapting bulk sizes, starting with {}.", batchSizer.getSize());
+    }
+    String queueType = conf.get(PROPERTY_QUEUE_TYPE, "blocking");
+    if (queueType.equals("blocking")) {
+      queue = new BlockingInputQueue<T>(queueSize);
+    } else if (queueType.equals("ring")) {
+      RingBufferInputQueue.WaitStrategy waitStrategy;
+      try {
+        waitStrategy = RingBufferInputQueue.WaitStrategy.valueOf(
+            conf.get(PROPERTY_QUEUE_WAIT_STRATEGY, "park").toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid value for " + PROPERTY_QUEUE_WAIT_STRATEGY + ".", e);
+      }
+      RingBufferInputQueue<T> ring = new RingBufferInputQueue<T>(queueSize, waitStrategy);
+      LOGGER.info("Using a ring buffer of {} inputs with wait strategy {}.", ring.getCapacity(), waitStrategy);
+      queue = ring;
+    } else {
+      throw new IllegalArgumentException("Invalid value for " + PROPERTY_QUEUE_TYPE + ": " + queueType + ".");
+    }
+    fetchedBulks = new ArrayBlockingQueue<FetchedBulk<T>>(conf.getInt(PROPERTY_FETCHED_BULKS, 2));
 
-    LOGGER.info("Connecting to Couchbase...");
-    couchbaseClient = new CouchbaseClient(args.getUrls(), args.getBucket(), args.getPassword());
-    LOGGER.info("Connected to Couchbase.");
+    casMode = conf.getBoolean(PROPERTY_CAS, false);
+    casMaxRetries = conf.getInt(PROPERTY_CAS_MAX_RETRIES, 10);
+    if (casMode) {
+      LOGGER.info("Writing documents only if they did not change meanwhile, with at most {} retries.", casMaxRetries);
+    }
 
-    // Start the consumer thread.
-    LOGGER.info("Starting consumer thread...");
-    consumer = new Consumer(context);
-    consumer.start();
-    LOGGER.info("Consumer thread started.");
+    if (!casMode && args.getWriteWindow() == 1) {
+      LOGGER.info("Each write waits for the previous one. Set {} to keep more writes in flight.",
+          ExportArgs.ARG_WRITE_WINDOW.getPropertyName());
+    }
+
+    couchbaseClient = CouchbaseClientPool.acquire(args.getUrls(), args.getBucket(), args.getPassword(),
+        args.getClientIdleTimeout());
+
+    // Start the consumer threads.
+    int consumerThreads = conf.getInt(PROPERTY_CONSUMER_THREADS, 1);
+    LOGGER.info("Starting {} consumer threads...", consumerThreads);
+    consumers = new ArrayList<>(consumerThreads);
+    for (int i = 0; i < consumerThreads; i++) {
+      Consumer consumer = new Consumer(context, i);
+      consumer.start();
+      consumers.add(consumer);
+    }
+    fetcher = new Fetcher(consumerThreads);
+    fetcher.start();
+    LOGGER.info("Consumer threads started.");
   }
 
   @Override
@@ -217,23 +866,87 @@ public abstract class CouchbaseUpdateMapper<KEYIN, VALUEIN, T> extends Mapper<KE
 
     t0 = System.currentTimeMillis();
     // Put processed input into the producer-consumer queue. Wait if the queue is full.
-    queue.put(hadoopInput);
+    while (!queue.offer(hadoopInput, 1, TimeUnit.SECONDS)) {
+      checkConsumers();
+    }
     t1 = System.currentTimeMillis();
     putTimesSum += t1 - t0;
   }
 
+  /**
+   * Fails the task if a pipeline thread failed, because the pipeline might not move anymore.
+   */
+  private void checkConsumers() throws IOException {
+    List<StageThread> threads = new ArrayList<StageThread>(consumers);
+    threads.add(fetcher);
+    for (StageThread thread : threads) {
+      if (thread.getError() != null) {
+        for (StageThread other : threads) {
+          other.interrupt();
+        }
+        throw new IOException("Thread " + thread.getName() + " failed.", thread.getError());
+      }
+    }
+  }
+
   @Override
+  @SuppressWarnings("unchecked")
   protected void cleanup(Context context) throws IOException, InterruptedException {
-    LOGGER.info("Disconnecting from Couchbase...");
-    couchbaseClient.shutdown();
-
-    LOGGER.info("Stopping consumer thread...");
-    consumer.shutdown();
-
-    // Update counters.
+    // Let the pipeline finish the queued inputs and then stop.
+    LOGGER.info("Stopping consumer threads...");
+    while (!queue.close(1, TimeUnit.SECONDS)) {
+      checkConsumers();
+    }
+    List<StageThread> threads = new ArrayList<StageThread>(consumers);
+    threads.add(fetcher);
+    for (StageThread thread : threads) {
+      while (thread.isAlive()) {
+        thread.join(1000);
+        checkConsumers();
+      }
+    }
+    checkConsumers();
+
+    CouchbaseClientPool.release(couchbaseClient);
+
+    // Update counters, aggregated over all consumers.
+    long mergeIdleTimesSum = 0, mergeTimesSum = 0, writeTimesSum = 0, bulkRetries = 0;
+    long casConflicts = 0, casTemporaryFailures = 0, casRetries = 0, casGiveUps = 0, casFailedWrites = 0;
+    for (Consumer consumer : consumers) {
+      mergeIdleTimesSum += consumer.idleTimesSum;
+      mergeTimesSum += consumer.mergeTimesSum;
+      writeTimesSum += consumer.writeTimesSum;
+      bulkRetries += consumer.bulkRetries;
+      casConflicts += consumer.casConflicts;
+      casTemporaryFailures += consumer.casTemporaryFailures;
+      casRetries += consumer.casRetries;
+      casGiveUps += consumer.casGiveUps;
+      casFailedWrites += consumer.casFailedWrites;
+    }
     context.getCounter(Counters.QUEUE_PUT_TIMES_SUM).setValue(putTimesSum);
-    context.getCounter(Counters.BULKS_COUNT).setValue(consumer.getBulksCount());
-    context.getCounter(Counters.BULK_SIZES_SUM).setValue(consumer.getBulkSizesSum());
-    context.getCounter(Counters.QUEUE_TAKE_TIMES_SUM).setValue(consumer.getTakeTimesSum());
+    context.getCounter(Counters.BULKS_COUNT).setValue(fetcher.bulksCount);
+    context.getCounter(Counters.BULK_SIZES_SUM).setValue(fetcher.bulkSizesSum);
+    context.getCounter(Counters.FETCH_STAGE_IDLE_TIMES_SUM).setValue(fetcher.idleTimesSum);
+    context.getCounter(Counters.FETCH_STAGE_BLOCKED_TIMES_SUM).setValue(fetcher.blockedTimesSum);
+    context.getCounter(Counters.MERGE_STAGE_IDLE_TIMES_SUM).setValue(mergeIdleTimesSum);
+    context.getCounter(Counters.MERGE_STAGE_TIMES_SUM).setValue(mergeTimesSum);
+    context.getCounter(Counters.WRITE_STAGE_TIMES_SUM).setValue(writeTimesSum);
+    bulkSizeHistogram.writeToCounters(context, CouchbaseUpdateMapper.class.getName(), "BULK_SIZE", "KEYS");
+    synchronized (getBulkLatencyHistogram) {
+      getBulkLatencyHistogram.writeToCounters(context, CouchbaseUpdateMapper.class.getName(), "GET_BULK_LATENCY", "US");
+    }
+    if (batchSizer != null) {
+      context.getCounter(Counters.BULK_SIZE_INCREASES).setValue(batchSizer.getIncreasesCount());
+      context.getCounter(Counters.BULK_SIZE_DECREASES).setValue(batchSizer.getDecreasesCount());
+      context.getCounter(Counters.BULK_RETRIES).setValue(bulkRetries);
+      LOGGER.info("Final bulk size is {}.", batchSizer.getSize());
+    }
+    if (casMode) {
+      context.getCounter(Counters.CAS_CONFLICTS).setValue(casConflicts);
+      context.getCounter(Counters.CAS_TEMPORARY_FAILURES).setValue(casTemporaryFailures);
+      context.getCounter(Counters.CAS_RETRIES).setValue(casRetries);
+      context.getCounter(Counters.CAS_GIVE_UPS).setValue(casGiveUps);
+      context.getCounter(Counters.CAS_FAILED_WRITES).setValue(casFailedWrites);
+    }
   }
 }
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.update;
+
+import com.avira.couchdoop.update.CouchbaseUpdateMapper.HadoopInput;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands off inputs from {@link CouchbaseUpdateMapper#map} to the thread which groups them in bulks.
+ *
+ * <p>An implementation may keep the inputs it returns in reusable slots. Such an input stays valid until it is
+ * {@link #release released}, after which its slot may be overwritten by a new input.</p>
+ */
+public interface InputQueue<T> {
+
+  /**
+   * Inserts an input, waiting if necessary for space to become available.
+   *
+   * @return false if the timeout elapsed before space was available
+   */
+  boolean offer(HadoopInput<T> input, long timeout, TimeUnit unit) throws InterruptedException;
+
+  /**
+   * Signals that no more inputs will be offered. Inputs already in the queue can still be taken.
+   *
+   * @return false if the timeout elapsed before the end of the input could be queued
+   */
+  boolean close(long timeout, TimeUnit unit) throws InterruptedException;
+
+  /**
+   * Retrieves the next input, waiting if necessary until one is available.
+   *
+   * @return the next input or null if the queue was closed and all inputs were taken
+   */
+  HadoopInput<T> take() throws InterruptedException;
+
+  /**
+   * Retrieves the available inputs without waiting.
+   *
+   * @return number of inputs added to the list
+   */
+  int drainTo(List<HadoopInput<T>> inputs, int maxElements);
+
+  /**
+   * Signals that an input returned by this queue is not used anymore.
+   */
+  void release(HadoopInput<T> input);
+}
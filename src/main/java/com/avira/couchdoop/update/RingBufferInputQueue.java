@@ -0,0 +1,234 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.avira.couchdoop.update;
+
+import com.avira.couchdoop.update.CouchbaseUpdateMapper.HadoopInput;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free {@link InputQueue} for a single producer and any number of consumers, which copies the inputs into a ring
+ * of pre-allocated slots.
+ *
+ * <p>Each slot has a sequence number which tells whether it is free for the producer, holds an input ready to be
+ * taken or is used by a consumer. A slot becomes free again only after its input is {@link #release released}, so
+ * inputs can be released in any order and held for as long as needed. No objects are allocated and no locks are
+ * taken when passing on an input. Waiting threads behave according to the configured {@link WaitStrategy}.</p>
+ */
+public class RingBufferInputQueue<T> implements InputQueue<T> {
+
+  /** Number of attempts during which waiting threads spin before they yield the CPU. */
+  private static final int SPIN_TRIES = 100;
+  /** Number of attempts during which waiting threads yield the CPU before they park. */
+  private static final int YIELD_TRIES = 100;
+  private static final long PARK_NANOS = 50000;
+
+  /**
+   * How a thread waits for a free slot or for an input.
+   */
+  public static enum WaitStrategy {
+    /** Busy spins, for the lowest latency at the cost of keeping a core busy. */
+    SPIN {
+      @Override
+      void idle(int attempt) {
+      }
+    },
+    /** Spins for a while and then yields the CPU to other threads. */
+    YIELD {
+      @Override
+      void idle(int attempt) {
+        if (attempt > SPIN_TRIES) {
+          Thread.yield();
+        }
+      }
+    },
+    /** Spins, yields and then parks the thread for short periods, which uses the least CPU while waiting. */
+    PARK {
+      @Override
+      void idle(int attempt) {
+        if (attempt > SPIN_TRIES + YIELD_TRIES) {
+          LockSupport.parkNanos(PARK_NANOS);
+        } else if (attempt > SPIN_TRIES) {
+          Thread.yield();
+        }
+      }
+    };
+
+    /**
+     * @param attempt how many times the thread already waited for the same condition
+     */
+    abstract void idle(int attempt);
+  }
+
+  private final HadoopInput<T>[] slots;
+  private final int mask;
+
+  /**
+   * Sequence number of each slot. A slot with sequence s is free for the input with sequence s, holds the input with
+   * sequence s - 1 if that input was not released yet and is free for the input with sequence s - 1 + capacity after
+   * its release.
+   */
+  private final AtomicLongArray sequences;
+
+  private final WaitStrategy waitStrategy;
+
+  /** Sequence of the next offered input, only used by the producer. */
+  private long nextOffer = 0;
+  /** Sequence of the next input to be taken. */
+  private final AtomicLong nextTake = new AtomicLong();
+
+  private volatile boolean closed = false;
+
+  /**
+   * @param capacity minimum number of slots, rounded up to a power of two
+   */
+  @SuppressWarnings("unchecked")
+  public RingBufferInputQueue(int capacity, WaitStrategy waitStrategy) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid ring buffer capacity " + capacity + ".");
+    }
+    int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+
+    slots = new HadoopInput[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      slots[i] = new HadoopInput<T>(null, null);
+      sequences.set(i, i);
+    }
+    mask = size - 1;
+    this.waitStrategy = waitStrategy;
+  }
+
+  /**
+   * @return number of slots
+   */
+  public int getCapacity() {
+    return slots.length;
+  }
+
+  /**
+   * Copies the key and the data of the input into a free slot, so the same input object may be offered repeatedly.
+   */
+  @Override
+  public boolean offer(HadoopInput<T> input, long timeout, TimeUnit unit) throws InterruptedException {
+    int index = (int) (nextOffer & mask);
+    if (!await(index, nextOffer, unit.toNanos(timeout))) {
+      return false;
+    }
+
+    HadoopInput<T> slot = slots[index];
+    slot.set(input.getCouchbaseKey(), input.getHadoopData());
+    slot.sequence = nextOffer;
+    // Publish the slot to the consumers.
+    sequences.lazySet(index, nextOffer + 1);
+    nextOffer++;
+    return true;
+  }
+
+  /**
+   * Waits until a slot has the expected sequence.
+   *
+   * @return false if the timeout elapsed
+   */
+  private boolean await(int index, long sequence, long timeoutNanos) throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutNanos;
+    int attempt = 0;
+    while (sequences.get(index) != sequence) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      waitStrategy.idle(attempt);
+      if (attempt < Integer.MAX_VALUE) {
+        attempt++;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean close(long timeout, TimeUnit unit) {
+    closed = true;
+    return true;
+  }
+
+  /**
+   * @return the next input or null if none is available
+   */
+  private HadoopInput<T> poll() {
+    while (true) {
+      long sequence = nextTake.get();
+      int index = (int) (sequence & mask);
+      long slotSequence = sequences.get(index);
+      if (slotSequence < sequence + 1) {
+        // The producer did not publish this slot yet.
+        return null;
+      }
+      if (slotSequence == sequence + 1 && nextTake.compareAndSet(sequence, sequence + 1)) {
+        return slots[index];
+      }
+      // Another consumer took the input meanwhile.
+    }
+  }
+
+  @Override
+  public HadoopInput<T> take() throws InterruptedException {
+    int attempt = 0;
+    while (true) {
+      HadoopInput<T> input = poll();
+      if (input != null) {
+        return input;
+      }
+      if (closed) {
+        // All inputs were published before closing, so this is the last chance to find one.
+        return poll();
+      }
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      waitStrategy.idle(attempt);
+      if (attempt < Integer.MAX_VALUE) {
+        attempt++;
+      }
+    }
+  }
+
+  @Override
+  public int drainTo(List<HadoopInput<T>> inputs, int maxElements) {
+    int count = 0;
+    HadoopInput<T> input;
+    while (count < maxElements && (input = poll()) != null) {
+      inputs.add(input);
+      count++;
+    }
+    return count;
+  }
+
+  @Override
+  public void release(HadoopInput<T> input) {
+    sequences.lazySet((int) (input.sequence & mask), input.sequence + slots.length);
+  }
+}
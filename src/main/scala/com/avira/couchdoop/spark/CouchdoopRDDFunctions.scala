@@ -18,6 +18,7 @@
  */
 package com.avira.couchdoop.spark
 
+import com.avira.couchdoop.CouchbaseClientPool
 import com.avira.couchdoop.exp.{CouchbaseAction, CouchbaseOutputFormat}
 import org.apache.hadoop.mapreduce.Job
 import org.apache.spark.rdd.RDD
@@ -41,6 +42,14 @@ class CouchdoopRDDFunctions(self: RDD[(String, CouchbaseAction)]) {
     CouchbaseOutputFormat.initJob(hadoopJob, cbOutputConf.urls.mkString(","),
       cbOutputConf.bucket, cbOutputConf.password)
     val hadoopConf = hadoopJob.getConfiguration
+    if (hadoopConf.get(CouchbaseClientPool.PROPERTY_IDLE_TIMEOUT) == null) {
+      // Executors outlive their tasks, so let the partitions they write share a Couchbase client.
+      hadoopConf.setLong(CouchbaseClientPool.PROPERTY_IDLE_TIMEOUT, CouchdoopRDDFunctions.DefaultClientIdleTimeout)
+    }
+    if (hadoopConf.get(CouchbaseOutputFormat.PROPERTY_TASKS) == null) {
+      // Spark doesn't set the number of tasks, so share the rate budget, if any, among the partitions.
+      hadoopConf.setInt(CouchbaseOutputFormat.PROPERTY_TASKS, self.partitions.length)
+    }
 
     self.saveAsNewAPIHadoopDataset(hadoopConf)
   }
@@ -54,3 +63,9 @@ class CouchdoopRDDFunctions(self: RDD[(String, CouchbaseAction)]) {
     saveToCouchbase(CouchdoopExportConf(urls, bucket, password))
   }
 }
+
+object CouchdoopRDDFunctions {
+
+  /** Milliseconds to keep an unused Couchbase client open in an executor, unless configured otherwise. */
+  val DefaultClientIdleTimeout = 60000L
+}
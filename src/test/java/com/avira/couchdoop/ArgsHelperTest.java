@@ -0,0 +1,48 @@
+package com.avira.couchdoop;
+
+import com.avira.couchdoop.imp.ImportViewToHBaseArgs;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Durability;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ArgsHelperTest {
+
+  private static final String[] REQUIRED_ARGS = new String[]{
+      "--couchbase-urls", "http://localhost:8091/pools", "--couchbase-bucket", "default",
+      "--couchbase-designdoc-name", "dd", "--couchbase-view-name", "v", "--couchbase-view-keys", "[1]",
+      "--output", "table,cf,cq"
+  };
+
+  private static String[] withArgs(String... args) {
+    String[] all = new String[REQUIRED_ARGS.length + args.length];
+    System.arraycopy(REQUIRED_ARGS, 0, all, 0, REQUIRED_ARGS.length);
+    System.arraycopy(args, 0, all, REQUIRED_ARGS.length, args.length);
+    return all;
+  }
+
+  @Test
+  public void flagWithoutValueTest() throws ArgsException {
+    Configuration conf = new Configuration(false);
+    ArgsHelper.loadCliArgsIntoHadoopConf(conf, ImportViewToHBaseArgs.ARGS_LIST,
+        withArgs("--bulkload", "--bulkload-dir", "/tmp/hfiles", "--hbase-durability", "skip_wal"));
+    ImportViewToHBaseArgs args = new ImportViewToHBaseArgs(conf);
+
+    assertTrue(args.isBulkLoad());
+    assertEquals("/tmp/hfiles", args.getBulkLoadDir());
+    assertEquals("table", args.getTable());
+    assertEquals(Durability.SKIP_WAL, args.getDurability());
+  }
+
+  @Test
+  public void missingFlagTest() throws ArgsException {
+    Configuration conf = new Configuration(false);
+    ArgsHelper.loadCliArgsIntoHadoopConf(conf, ImportViewToHBaseArgs.ARGS_LIST, withArgs());
+    ImportViewToHBaseArgs args = new ImportViewToHBaseArgs(conf);
+
+    assertFalse(args.isBulkLoad());
+    assertNull(args.getBulkLoadDir());
+    assertEquals(Durability.USE_DEFAULT, args.getDurability());
+  }
+}
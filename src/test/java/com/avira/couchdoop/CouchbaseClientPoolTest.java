@@ -0,0 +1,83 @@
+package com.avira.couchdoop;
+
+import com.couchbase.client.CouchbaseClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class CouchbaseClientPoolTest {
+
+  private FakeCouchbaseServer server;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeCouchbaseServer();
+    server.start();
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    server.stop();
+  }
+
+  private Future<CouchbaseClient> acquireLater(final FakeCouchbaseServer server) {
+    return executor.submit(new Callable<CouchbaseClient>() {
+      @Override
+      public CouchbaseClient call() throws Exception {
+        return CouchbaseClientPool.acquire(server.getUrls(), server.getBucket(), server.getPassword(), 0);
+      }
+    });
+  }
+
+  @Test
+  public void concurrentAcquireTest() throws Exception {
+    List<Future<CouchbaseClient>> clients = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      clients.add(acquireLater(server));
+    }
+
+    // All callers for the same bucket share one client.
+    CouchbaseClient client = clients.get(0).get();
+    for (Future<CouchbaseClient> other : clients) {
+      assertSame(client, other.get());
+    }
+    assertEquals(1, CouchbaseClientPool.size());
+
+    for (int i = 0; i < clients.size(); i++) {
+      CouchbaseClientPool.release(client);
+    }
+    assertEquals(0, CouchbaseClientPool.size());
+  }
+
+  @Test
+  public void connectFailureTest() throws Exception {
+    FakeCouchbaseServer stopped = new FakeCouchbaseServer();
+    stopped.start();
+    stopped.stop();
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        acquireLater(stopped).get();
+        fail("Acquiring a client for an unreachable bucket should fail.");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+      // The failed client is not kept, so the next caller tries to connect again.
+      assertEquals(0, CouchbaseClientPool.size());
+    }
+  }
+}
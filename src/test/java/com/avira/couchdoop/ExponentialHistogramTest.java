@@ -0,0 +1,105 @@
+package com.avira.couchdoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ExponentialHistogramTest {
+
+  @Test
+  public void getBucketTest() {
+    long[] values = new long[]{-5, 0, 1, 2, 3, 4, 5, 8, 9, 1000, 1024, 1025};
+    long[] upperBounds = new long[]{0, 0, 1, 2, 4, 4, 8, 8, 16, 1024, 1024, 2048};
+
+    for (int i = 0; i < values.length; i++) {
+      int bucket = ExponentialHistogram.getBucket(values[i]);
+      assertEquals("Wrong bucket for value " + values[i] + "!",
+          upperBounds[i], ExponentialHistogram.getBucketUpperBound(bucket));
+    }
+  }
+
+  @Test
+  public void getBucketMaxValueTest() {
+    // Must not overflow the buckets array.
+    new ExponentialHistogram().record(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void getPercentileTest() {
+    ExponentialHistogram histogram = new ExponentialHistogram();
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(0, histogram.getMax());
+
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(64, histogram.getPercentile(50));
+    assertEquals(128, histogram.getPercentile(95));
+    assertEquals(1, histogram.getPercentile(0));
+    assertEquals(128, histogram.getMax());
+  }
+
+  @Test
+  public void writeToCountersTest() {
+    ExponentialHistogram histogram = new ExponentialHistogram();
+    for (long value : new long[]{0, 1, 2, 3, 5, 1000, 1L << 26, (1L << 26) + 1, 1L << 30, Long.MAX_VALUE}) {
+      histogram.record(value);
+    }
+    assertEquals(3, histogram.getOverflowCount());
+
+    MapContexts.Reporter reporter = new MapContexts.Reporter();
+    TaskAttemptContext context = MapContexts.create(new Configuration(), null, null, reporter);
+    histogram.writeToCounters(context, "group", "SET_LATENCY", "US");
+
+    // Pairs of buckets are merged into buckets whose bounds are powers of 4, up to 4^13, and larger values into the
+    // overflow counter.
+    String[] names = new String[]{"UP_TO_1", "UP_TO_4", "UP_TO_16", "UP_TO_1024", "UP_TO_67108864", "ABOVE_67108864"};
+    long[] expectedCounts = new long[]{2, 2, 1, 1, 1, 3};
+    Counters counters = new Counters();
+    for (int i = 0; i < names.length; i++) {
+      String name = "SET_LATENCY_" + names[i] + "_US";
+      assertEquals(name, expectedCounts[i], reporter.getCounter("group", name).getValue());
+      counters.findCounter("group", name).increment(expectedCounts[i]);
+    }
+    assertEquals(0, reporter.getCounter("group", "SET_LATENCY_UP_TO_2_US").getValue());
+
+    Map<String, ExponentialHistogram> histograms = ExponentialHistogram.readFromCounters(counters.getGroup("group"));
+    assertEquals(1, histograms.size());
+    ExponentialHistogram merged = histograms.get("SET_LATENCY_US");
+    assertEquals(10, merged.getCount());
+    assertEquals(3, merged.getOverflowCount());
+    assertEquals(16, merged.getPercentile(50));
+    assertEquals(1L << 26, merged.getPercentile(70));
+    // The overflows are only known to be above 4^13.
+    assertEquals(Long.MAX_VALUE, merged.getPercentile(71));
+    assertEquals(Long.MAX_VALUE, merged.getMax());
+  }
+
+  @Test
+  public void readFromCountersTest() {
+    Counters counters = new Counters();
+    counters.findCounter("group", "SET_LATENCY_UP_TO_4_US").increment(3);
+    counters.findCounter("group", "SET_LATENCY_UP_TO_1024_US").increment(1);
+    counters.findCounter("group", "BULK_SIZE_UP_TO_0_KEYS").increment(2);
+    counters.findCounter("group", "FAILED_STORE_OPERATIONS").increment(5);
+
+    Map<String, ExponentialHistogram> histograms = ExponentialHistogram.readFromCounters(counters.getGroup("group"));
+    assertEquals(2, histograms.size());
+
+    ExponentialHistogram latency = histograms.get("SET_LATENCY_US");
+    assertEquals(4, latency.getCount());
+    assertEquals(4, latency.getPercentile(50));
+    assertEquals(1024, latency.getPercentile(99));
+    assertEquals(1024, latency.getMax());
+
+    ExponentialHistogram bulkSize = histograms.get("BULK_SIZE_KEYS");
+    assertEquals(2, bulkSize.getCount());
+    assertEquals(0, bulkSize.getMax());
+  }
+}
@@ -0,0 +1,1103 @@
+package com.avira.couchdoop;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a single node Couchbase cluster with a single bucket, against which a 1.4
+ * {@link com.couchbase.client.CouchbaseClient} can bootstrap. It allows testing and benchmarking the readers and
+ * writers without a real cluster.
+ *
+ * <p>The server listens on two local ports:</p>
+ * <ul>
+ *   <li>a memcached binary protocol port, which supports the commands used by the jobs: get and bulk get, set, add,
+ *   replace, delete, touch, append and prepend;</li>
+ *   <li>an HTTP port, which serves the cluster configuration needed by the client to bootstrap, design documents and
+ *   view queries by key, by list of keys or by key range, with limit, skip and include_docs.</li>
+ * </ul>
+ *
+ * <p>Views can't run map functions, so their rows are added with {@link #addViewRow}. Views created with a
+ * {@code _count} reduce function also answer reduced and grouped queries. View keys are sorted like by Couchbase,
+ * except that strings are compared by their UTF-16 code units instead of by Unicode collation.</p>
+ *
+ * <p>Faults can be injected: {@link #setLatency} delays all responses, while {@link #failNextMutations} and
+ * {@link #setMutationFailureRate} make store operations fail with "Temporary failure", like an overloaded cluster.</p>
+ */
+public class FakeCouchbaseServer {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** The client requires a power of two. Requests carry a vBucket ID, but all vBuckets live on this node. */
+  private static final int NUM_VBUCKETS = 64;
+
+  /** Memcached expiry times up to 30 days are relative, larger ones are UNIX timestamps. */
+  private static final int MAX_RELATIVE_EXPIRY = 30 * 24 * 3600;
+
+  private static final byte REQUEST_MAGIC = (byte) 0x80;
+  private static final byte RESPONSE_MAGIC = (byte) 0x81;
+  private static final int HEADER_LENGTH = 24;
+
+  private static final int CMD_GET = 0x00;
+  private static final int CMD_SET = 0x01;
+  private static final int CMD_ADD = 0x02;
+  private static final int CMD_REPLACE = 0x03;
+  private static final int CMD_DELETE = 0x04;
+  private static final int CMD_QUIT = 0x07;
+  private static final int CMD_GETQ = 0x09;
+  private static final int CMD_NOOP = 0x0a;
+  private static final int CMD_VERSION = 0x0b;
+  private static final int CMD_GETK = 0x0c;
+  private static final int CMD_GETKQ = 0x0d;
+  private static final int CMD_APPEND = 0x0e;
+  private static final int CMD_PREPEND = 0x0f;
+  private static final int CMD_SETQ = 0x11;
+  private static final int CMD_ADDQ = 0x12;
+  private static final int CMD_REPLACEQ = 0x13;
+  private static final int CMD_DELETEQ = 0x14;
+  private static final int CMD_APPENDQ = 0x19;
+  private static final int CMD_PREPENDQ = 0x1a;
+  private static final int CMD_TOUCH = 0x1c;
+  private static final int CMD_SASL_LIST_MECHS = 0x20;
+  private static final int CMD_SASL_AUTH = 0x21;
+  private static final int CMD_SASL_STEP = 0x22;
+
+  private static final int STATUS_SUCCESS = 0x00;
+  private static final int STATUS_NOT_FOUND = 0x01;
+  private static final int STATUS_EXISTS = 0x02;
+  private static final int STATUS_NOT_STORED = 0x05;
+  private static final int STATUS_AUTH_ERROR = 0x20;
+  private static final int STATUS_UNKNOWN_COMMAND = 0x81;
+  private static final int STATUS_TEMP_FAIL = 0x86;
+
+  private static final Map<Integer, String> STATUS_MESSAGES = new HashMap<>();
+  static {
+    // The client exposes these messages as the status of failed operations and the writers compare some of them.
+    STATUS_MESSAGES.put(STATUS_NOT_FOUND, "Not found");
+    STATUS_MESSAGES.put(STATUS_EXISTS, "Data exists for key.");
+    STATUS_MESSAGES.put(STATUS_NOT_STORED, "Not stored.");
+    STATUS_MESSAGES.put(STATUS_AUTH_ERROR, "Auth failure");
+    STATUS_MESSAGES.put(STATUS_UNKNOWN_COMMAND, "Unknown command");
+    STATUS_MESSAGES.put(STATUS_TEMP_FAIL, "Temporary failure");
+  }
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FakeCouchbaseServer.class);
+
+  private final String bucket;
+  private final String password;
+
+  private final ConcurrentHashMap<String, Item> items = new ConcurrentHashMap<>();
+  private final Object[] locks = new Object[64];
+  private final AtomicLong casCounter = new AtomicLong();
+
+  private final Map<String, Map<String, View>> designDocs = new ConcurrentHashMap<>();
+
+  private volatile long latencyNanos = 0;
+  private final AtomicInteger mutationsToFail = new AtomicInteger();
+  private volatile double mutationFailureRate = 0;
+  private final AtomicLong temporaryFailures = new AtomicLong();
+
+  private ExecutorService threads;
+  private ServerSocket memcachedSocket;
+  private HttpServer httpServer;
+  private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  /**
+   * A stored document.
+   */
+  private static class Item {
+    private final byte[] value;
+    private final int flags;
+    private final long cas;
+    private final long expiresAt; // ms, 0 if the item doesn't expire
+
+    public Item(byte[] value, int flags, long cas, long expiresAt) {
+      this.value = value;
+      this.flags = flags;
+      this.cas = cas;
+      this.expiresAt = expiresAt;
+    }
+
+    public boolean isExpired() {
+      return expiresAt > 0 && System.currentTimeMillis() >= expiresAt;
+    }
+  }
+
+  /**
+   * A view and its rows, kept sorted by key and document ID.
+   */
+  private static class View {
+    private final boolean countReduce;
+    private final NavigableSet<Row> rows = new ConcurrentSkipListSet<>(ROW_ORDER);
+    private final AtomicInteger size = new AtomicInteger();
+
+    public View(boolean countReduce) {
+      this.countReduce = countReduce;
+    }
+  }
+
+  private static class Row {
+    private final String id;
+    private final JsonNode key;
+    private final String keyJson;
+    private final String valueJson;
+
+    /** Rows with a bound of -1 or 1 are placed before, respectively after, all real rows with the same key. */
+    private final int bound;
+
+    public Row(String id, JsonNode key, String valueJson) {
+      this(id, key, valueJson, 0);
+    }
+
+    private Row(String id, JsonNode key, String valueJson, int bound) {
+      this.id = id;
+      this.key = key;
+      this.keyJson = key.toString();
+      this.valueJson = valueJson;
+      this.bound = bound;
+    }
+
+    public static Row first(JsonNode key) {
+      return new Row(null, key, null, -1);
+    }
+
+    public static Row last(JsonNode key) {
+      return new Row(null, key, null, 1);
+    }
+  }
+
+  private static final Comparator<Row> ROW_ORDER = new Comparator<Row>() {
+    @Override
+    public int compare(Row a, Row b) {
+      int c = compareKeys(a.key, b.key);
+      if (c != 0) {
+        return c;
+      }
+      if (a.bound != 0 || b.bound != 0) {
+        return Integer.compare(a.bound, b.bound);
+      }
+      return a.id.compareTo(b.id);
+    }
+  };
+
+  /**
+   * A memcached response waiting to be written until its delay expires.
+   */
+  private static class Response {
+    private final byte[] bytes;
+    private final long dueTime; // ns, as returned by System.nanoTime()
+
+    public Response(byte[] bytes, long dueTime) {
+      this.bytes = bytes;
+      this.dueTime = dueTime;
+    }
+  }
+
+  private static final Response END_OF_RESPONSES = new Response(null, 0);
+
+  /**
+   * Creates a server for the "default" bucket, which needs no authentication.
+   */
+  public FakeCouchbaseServer() {
+    this("default", "");
+  }
+
+  public FakeCouchbaseServer(String bucket, String password) {
+    this.bucket = bucket;
+    this.password = password == null ? "" : password;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * Starts listening on two free local ports.
+   */
+  public void start() throws IOException {
+    // Only the HTTP bootstrap is implemented, so don't let the client wait for a memcached configuration first.
+    System.setProperty("cbclient.disableCarrierBootstrap", "true");
+
+    threads = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "fake-couchbase-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    memcachedSocket = new ServerSocket(0, 50, localhost);
+    threads.execute(new Runnable() {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    });
+
+    httpServer = HttpServer.create(new InetSocketAddress(localhost, 0), 50);
+    httpServer.setExecutor(threads);
+    httpServer.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          handleHttp(exchange);
+        } catch (IOException | RuntimeException e) {
+          LOGGER.error("Failed to handle request " + exchange.getRequestURI() + ".", e);
+          sendError(exchange, 500, "internal_error", e.toString());
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    httpServer.start();
+  }
+
+  public void stop() {
+    stopped.countDown();
+    if (httpServer != null) {
+      httpServer.stop(0);
+    }
+    try {
+      if (memcachedSocket != null) {
+        memcachedSocket.close();
+      }
+      for (Socket connection : connections) {
+        connection.close();
+      }
+    } catch (IOException e) {
+      // Nothing to do while stopping.
+    }
+    if (threads != null) {
+      threads.shutdownNow();
+    }
+  }
+
+  /**
+   * @return bootstrap URL to pass to the client
+   */
+  public URI getUrl() {
+    return URI.create("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/pools");
+  }
+
+  public List<URI> getUrls() {
+    return Collections.singletonList(getUrl());
+  }
+
+  public String getBucket() {
+    return bucket;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  /**
+   * Delays each memcached and view response by the given time. Memcached responses are still sent in order.
+   */
+  public void setLatency(long latency, TimeUnit unit) {
+    latencyNanos = unit.toNanos(latency);
+  }
+
+  /**
+   * Makes the next mutations fail with "Temporary failure".
+   */
+  public void failNextMutations(int count) {
+    mutationsToFail.set(count);
+  }
+
+  /**
+   * Makes mutations fail with "Temporary failure" with the given probability, between 0 and 1.
+   */
+  public void setMutationFailureRate(double rate) {
+    mutationFailureRate = rate;
+  }
+
+  /**
+   * @return number of mutations which failed with "Temporary failure" so far
+   */
+  public long getTemporaryFailures() {
+    return temporaryFailures.get();
+  }
+
+  /**
+   * Stores a document as the client would with its default transcoder.
+   */
+  public void put(String key, String value) {
+    items.put(key, new Item(value.getBytes(UTF_8), 0, casCounter.incrementAndGet(), 0));
+  }
+
+  /**
+   * @return the document stored for the key decoded as UTF-8 or null if there is none
+   */
+  public String get(String key) {
+    Item item = getLive(key);
+    return item == null ? null : new String(item.value, UTF_8);
+  }
+
+  /**
+   * @return expiry time in milliseconds since the epoch of the document stored for the key, 0 if it doesn't expire
+   * or -1 if there is none
+   */
+  public long getExpiresAt(String key) {
+    Item item = getLive(key);
+    return item == null ? -1 : item.expiresAt;
+  }
+
+  /**
+   * @return number of documents stored, including the expired ones which weren't read since they expired
+   */
+  public int size() {
+    return items.size();
+  }
+
+  /**
+   * Creates an empty view.
+   *
+   * @param countReduce whether the view has the {@code _count} reduce function
+   */
+  public void createView(String designDocName, String viewName, boolean countReduce) {
+    synchronized (designDocs) {
+      Map<String, View> views = designDocs.get(designDocName);
+      if (views == null) {
+        views = new ConcurrentHashMap<>();
+        designDocs.put(designDocName, views);
+      }
+      views.put(viewName, new View(countReduce));
+    }
+  }
+
+  /**
+   * Adds a row to a view as if its map function emitted it for a document.
+   *
+   * @param keyJson   the emitted key as JSON
+   * @param valueJson the emitted value as JSON
+   */
+  public void addViewRow(String designDocName, String viewName, String id, String keyJson, String valueJson)
+      throws IOException {
+    View view = getView(designDocName, viewName);
+    if (view == null) {
+      throw new IllegalArgumentException("There is no view " + designDocName + "/" + viewName + ".");
+    }
+    if (view.rows.add(new Row(id, MAPPER.readTree(keyJson), MAPPER.readTree(valueJson).toString()))) {
+      view.size.incrementAndGet();
+    }
+  }
+
+  private View getView(String designDocName, String viewName) {
+    Map<String, View> views = designDocs.get(designDocName);
+    return views == null ? null : views.get(viewName);
+  }
+
+  /**
+   * Sorts JSON values like view keys: null, false, true, numbers, strings, arrays and objects.
+   */
+  protected static int compareKeys(JsonNode a, JsonNode b) {
+    int typeA = getTypeRank(a);
+    int typeB = getTypeRank(b);
+    if (typeA != typeB) {
+      return typeA < typeB ? -1 : 1;
+    }
+
+    switch (typeA) {
+      case 3:
+        return Double.compare(a.getDoubleValue(), b.getDoubleValue());
+      case 4:
+        return a.getTextValue().compareTo(b.getTextValue());
+      case 5:
+        for (int i = 0; i < a.size() && i < b.size(); i++) {
+          int c = compareKeys(a.get(i), b.get(i));
+          if (c != 0) {
+            return c;
+          }
+        }
+        return Integer.compare(a.size(), b.size());
+      case 6:
+        Iterator<Map.Entry<String, JsonNode>> fieldsA = a.getFields();
+        Iterator<Map.Entry<String, JsonNode>> fieldsB = b.getFields();
+        while (fieldsA.hasNext() && fieldsB.hasNext()) {
+          Map.Entry<String, JsonNode> fieldA = fieldsA.next();
+          Map.Entry<String, JsonNode> fieldB = fieldsB.next();
+          int c = fieldA.getKey().compareTo(fieldB.getKey());
+          if (c == 0) {
+            c = compareKeys(fieldA.getValue(), fieldB.getValue());
+          }
+          if (c != 0) {
+            return c;
+          }
+        }
+        return Integer.compare(a.size(), b.size());
+      default:
+        return 0;
+    }
+  }
+
+  private static int getTypeRank(JsonNode node) {
+    if (node == null || node.isNull() || node.isMissingNode()) {
+      return 0;
+    } else if (node.isBoolean()) {
+      return node.getBooleanValue() ? 2 : 1;
+    } else if (node.isNumber()) {
+      return 3;
+    } else if (node.isTextual()) {
+      return 4;
+    } else if (node.isArray()) {
+      return 5;
+    } else {
+      return 6;
+    }
+  }
+
+  // ---------------------------------------------------------------------------------------------------------------
+  // Memcached binary protocol
+  // ---------------------------------------------------------------------------------------------------------------
+
+  private void acceptConnections() {
+    while (!memcachedSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = memcachedSocket.accept();
+        socket.setTcpNoDelay(true);
+      } catch (IOException e) {
+        // The server was stopped.
+        return;
+      }
+      connections.add(socket);
+
+      final BlockingQueue<Response> responses = new LinkedBlockingQueue<>();
+      threads.execute(new Runnable() {
+        @Override
+        public void run() {
+          readRequests(socket, responses);
+        }
+      });
+      threads.execute(new Runnable() {
+        @Override
+        public void run() {
+          writeResponses(socket, responses);
+        }
+      });
+    }
+  }
+
+  /**
+   * Reads the requests of a connection and queues their responses.
+   */
+  private void readRequests(Socket socket, BlockingQueue<Response> responses) {
+    long lastDueTime = 0;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      byte[] header = new byte[HEADER_LENGTH];
+      while (true) {
+        in.readFully(header);
+        ByteBuffer h = ByteBuffer.wrap(header);
+        if (h.get(0) != REQUEST_MAGIC) {
+          break;
+        }
+        int opcode = h.get(1) & 0xff;
+        int keyLength = h.getShort(2) & 0xffff;
+        int extrasLength = h.get(4) & 0xff;
+        int bodyLength = h.getInt(8);
+        int opaque = h.getInt(12);
+        long cas = h.getLong(16);
+
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+        ByteBuffer extras = ByteBuffer.wrap(body, 0, extrasLength);
+        String key = new String(body, extrasLength, keyLength, UTF_8);
+        byte[] value = new byte[bodyLength - extrasLength - keyLength];
+        System.arraycopy(body, extrasLength + keyLength, value, 0, value.length);
+
+        if (opcode == CMD_QUIT) {
+          break;
+        }
+        byte[] response = execute(opcode, opaque, cas, extras, key, value);
+        if (response != null) {
+          // Keep the responses in order even if the latency changes.
+          lastDueTime = Math.max(lastDueTime, System.nanoTime() + latencyNanos);
+          responses.put(new Response(response, lastDueTime));
+        }
+      }
+    } catch (EOFException e) {
+      // The client closed the connection.
+    } catch (IOException | InterruptedException e) {
+      // The connection was closed or the server was stopped.
+    } finally {
+      responses.offer(END_OF_RESPONSES);
+    }
+  }
+
+  /**
+   * Writes the responses of a connection once they are due, flushing them whenever no other response is waiting.
+   */
+  private void writeResponses(Socket socket, BlockingQueue<Response> responses) {
+    try {
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      while (true) {
+        Response response = responses.take();
+        if (response == END_OF_RESPONSES) {
+          break;
+        }
+        long delay = response.dueTime - System.nanoTime();
+        if (delay > 0) {
+          out.flush();
+          TimeUnit.NANOSECONDS.sleep(delay);
+        }
+        out.write(response.bytes);
+        if (responses.isEmpty()) {
+          out.flush();
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      // The connection was closed or the server was stopped.
+    } finally {
+      connections.remove(socket);
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to do.
+      }
+    }
+  }
+
+  /**
+   * @return the response to a request or null if the request is quiet and succeeded
+   */
+  private byte[] execute(int opcode, int opaque, long cas, ByteBuffer extras, String key, byte[] value) {
+    switch (opcode) {
+      case CMD_GET:
+      case CMD_GETQ:
+      case CMD_GETK:
+      case CMD_GETKQ:
+        boolean quiet = opcode == CMD_GETQ || opcode == CMD_GETKQ;
+        boolean withKey = opcode == CMD_GETK || opcode == CMD_GETKQ;
+        Item item = getLive(key);
+        if (item == null) {
+          return quiet ? null : error(opcode, opaque, STATUS_NOT_FOUND);
+        }
+        byte[] flags = ByteBuffer.allocate(4).putInt(item.flags).array();
+        return response(opcode, STATUS_SUCCESS, opaque, item.cas, flags, withKey ? key : "", item.value);
+
+      case CMD_SET:
+      case CMD_ADD:
+      case CMD_REPLACE:
+      case CMD_SETQ:
+      case CMD_ADDQ:
+      case CMD_REPLACEQ:
+        int flagsValue = extras.getInt();
+        int expiry = extras.getInt();
+        return quietIfSuccess(opcode >= CMD_SETQ, store(opcode, opaque, cas, key, value, flagsValue, expiry));
+
+      case CMD_APPEND:
+      case CMD_PREPEND:
+      case CMD_APPENDQ:
+      case CMD_PREPENDQ:
+        return quietIfSuccess(opcode >= CMD_APPENDQ, concatenate(opcode, opaque, cas, key, value));
+
+      case CMD_DELETE:
+      case CMD_DELETEQ:
+        return quietIfSuccess(opcode == CMD_DELETEQ, delete(opcode, opaque, cas, key));
+
+      case CMD_TOUCH:
+        return touch(opcode, opaque, key, extras.getInt());
+
+      case CMD_NOOP:
+        return response(opcode, STATUS_SUCCESS, opaque, 0, EMPTY, "", EMPTY);
+
+      case CMD_VERSION:
+        return response(opcode, STATUS_SUCCESS, opaque, 0, EMPTY, "", "2.5.1-fake".getBytes(UTF_8));
+
+      case CMD_SASL_LIST_MECHS:
+        return response(opcode, STATUS_SUCCESS, opaque, 0, EMPTY, "", "PLAIN".getBytes(UTF_8));
+
+      case CMD_SASL_AUTH:
+      case CMD_SASL_STEP:
+        // PLAIN credentials are "<authzid>\0<user>\0<password>".
+        String[] credentials = new String(value, UTF_8).split("\0", -1);
+        if (credentials.length != 3 || !credentials[1].equals(bucket) || !credentials[2].equals(password)) {
+          return error(opcode, opaque, STATUS_AUTH_ERROR);
+        }
+        return response(opcode, STATUS_SUCCESS, opaque, 0, EMPTY, "", "Authenticated".getBytes(UTF_8));
+
+      default:
+        return error(opcode, opaque, STATUS_UNKNOWN_COMMAND);
+    }
+  }
+
+  private byte[] store(int opcode, int opaque, long cas, String key, byte[] value, int flags, int expiry) {
+    if (isTemporaryFailure()) {
+      return error(opcode, opaque, STATUS_TEMP_FAIL);
+    }
+
+    synchronized (getLock(key)) {
+      Item old = getLive(key);
+      boolean add = opcode == CMD_ADD || opcode == CMD_ADDQ;
+      boolean replace = opcode == CMD_REPLACE || opcode == CMD_REPLACEQ;
+      if (add && old != null) {
+        return error(opcode, opaque, STATUS_EXISTS);
+      }
+      if ((replace || cas != 0) && old == null) {
+        return error(opcode, opaque, STATUS_NOT_FOUND);
+      }
+      if (cas != 0 && cas != old.cas) {
+        return error(opcode, opaque, STATUS_EXISTS);
+      }
+
+      Item item = new Item(value, flags, casCounter.incrementAndGet(), getExpiresAt(expiry));
+      items.put(key, item);
+      return response(opcode, STATUS_SUCCESS, opaque, item.cas, EMPTY, "", EMPTY);
+    }
+  }
+
+  private byte[] concatenate(int opcode, int opaque, long cas, String key, byte[] value) {
+    if (isTemporaryFailure()) {
+      return error(opcode, opaque, STATUS_TEMP_FAIL);
+    }
+
+    synchronized (getLock(key)) {
+      Item old = getLive(key);
+      if (old == null) {
+        return error(opcode, opaque, STATUS_NOT_STORED);
+      }
+      if (cas != 0 && cas != old.cas) {
+        return error(opcode, opaque, STATUS_EXISTS);
+      }
+
+      boolean append = opcode == CMD_APPEND || opcode == CMD_APPENDQ;
+      byte[] first = append ? old.value : value;
+      byte[] second = append ? value : old.value;
+      byte[] concatenated = new byte[first.length + second.length];
+      System.arraycopy(first, 0, concatenated, 0, first.length);
+      System.arraycopy(second, 0, concatenated, first.length, second.length);
+
+      Item item = new Item(concatenated, old.flags, casCounter.incrementAndGet(), old.expiresAt);
+      items.put(key, item);
+      return response(opcode, STATUS_SUCCESS, opaque, item.cas, EMPTY, "", EMPTY);
+    }
+  }
+
+  private byte[] delete(int opcode, int opaque, long cas, String key) {
+    if (isTemporaryFailure()) {
+      return error(opcode, opaque, STATUS_TEMP_FAIL);
+    }
+
+    synchronized (getLock(key)) {
+      Item old = getLive(key);
+      if (old == null) {
+        return error(opcode, opaque, STATUS_NOT_FOUND);
+      }
+      if (cas != 0 && cas != old.cas) {
+        return error(opcode, opaque, STATUS_EXISTS);
+      }
+      items.remove(key);
+      return response(opcode, STATUS_SUCCESS, opaque, 0, EMPTY, "", EMPTY);
+    }
+  }
+
+  private byte[] touch(int opcode, int opaque, String key, int expiry) {
+    if (isTemporaryFailure()) {
+      return error(opcode, opaque, STATUS_TEMP_FAIL);
+    }
+
+    synchronized (getLock(key)) {
+      Item old = getLive(key);
+      if (old == null) {
+        return error(opcode, opaque, STATUS_NOT_FOUND);
+      }
+      Item item = new Item(old.value, old.flags, casCounter.incrementAndGet(), getExpiresAt(expiry));
+      items.put(key, item);
+      return response(opcode, STATUS_SUCCESS, opaque, item.cas, EMPTY, "", EMPTY);
+    }
+  }
+
+  private boolean isTemporaryFailure() {
+    boolean fail;
+    int toFail;
+    do {
+      toFail = mutationsToFail.get();
+      fail = toFail > 0;
+    } while (fail && !mutationsToFail.compareAndSet(toFail, toFail - 1));
+
+    if (!fail && mutationFailureRate > 0) {
+      fail = ThreadLocalRandom.current().nextDouble() < mutationFailureRate;
+    }
+    if (fail) {
+      temporaryFailures.incrementAndGet();
+    }
+    return fail;
+  }
+
+  private Object getLock(String key) {
+    return locks[(key.hashCode() & 0x7fffffff) % locks.length];
+  }
+
+  /**
+   * @return the item stored for the key or null if there is none or it expired
+   */
+  private Item getLive(String key) {
+    Item item = items.get(key);
+    if (item != null && item.isExpired()) {
+      items.remove(key, item);
+      return null;
+    }
+    return item;
+  }
+
+  private static long getExpiresAt(int expiry) {
+    if (expiry == 0) {
+      return 0;
+    }
+    if (expiry <= MAX_RELATIVE_EXPIRY) {
+      return System.currentTimeMillis() + expiry * 1000L;
+    }
+    return expiry * 1000L;
+  }
+
+  private static byte[] quietIfSuccess(boolean quiet, byte[] response) {
+    boolean success = response[6] == 0 && response[7] == 0;
+    return quiet && success ? null : response;
+  }
+
+  private static byte[] error(int opcode, int opaque, int status) {
+    return response(opcode, status, opaque, 0, EMPTY, "", STATUS_MESSAGES.get(status).getBytes(UTF_8));
+  }
+
+  private static byte[] response(int opcode, int status, int opaque, long cas, byte[] extras, String key,
+                                 byte[] value) {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    int bodyLength = extras.length + keyBytes.length + value.length;
+    ByteBuffer bb = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+    bb.put(RESPONSE_MAGIC);
+    bb.put((byte) opcode);
+    bb.putShort((short) keyBytes.length);
+    bb.put((byte) extras.length);
+    bb.put((byte) 0);
+    bb.putShort((short) status);
+    bb.putInt(bodyLength);
+    bb.putInt(opaque);
+    bb.putLong(cas);
+    bb.put(extras);
+    bb.put(keyBytes);
+    bb.put(value);
+    return bb.array();
+  }
+
+  // ---------------------------------------------------------------------------------------------------------------
+  // HTTP: cluster configuration and views
+  // ---------------------------------------------------------------------------------------------------------------
+
+  private void handleHttp(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    String[] parts = path.substring(1).split("/");
+
+    if (path.equals("/pools")) {
+      ObjectNode pool = MAPPER.createObjectNode();
+      pool.put("name", "default");
+      pool.put("uri", "/pools/default");
+      pool.put("streamingUri", "/poolsStreaming/default");
+      ObjectNode pools = MAPPER.createObjectNode();
+      pools.putArray("pools").add(pool);
+      pools.put("implementationVersion", "2.5.1-fake");
+      sendJson(exchange, 200, pools.toString());
+    } else if (path.equals("/pools/default")) {
+      ObjectNode pool = MAPPER.createObjectNode();
+      pool.put("name", "default");
+      pool.putObject("buckets").put("uri", "/pools/default/buckets");
+      pool.putArray("nodes").add(getNodeConfig());
+      sendJson(exchange, 200, pool.toString());
+    } else if (path.equals("/pools/default/buckets")) {
+      ArrayNode buckets = MAPPER.createArrayNode();
+      buckets.add(getBucketConfig());
+      sendJson(exchange, 200, buckets.toString());
+    } else if (path.equals("/pools/default/buckets/" + bucket)) {
+      sendJson(exchange, 200, getBucketConfig().toString());
+    } else if (path.equals("/pools/default/bucketsStreaming/" + bucket)) {
+      streamBucketConfig(exchange);
+    } else if (parts.length == 3 && parts[0].equals(bucket) && parts[1].equals("_design")) {
+      sleepLatency();
+      sendDesignDoc(exchange, stripDevPrefix(parts[2]));
+    } else if (parts.length == 5 && parts[0].equals(bucket) && parts[1].equals("_design") &&
+        parts[3].equals("_view")) {
+      sleepLatency();
+      View view = getView(stripDevPrefix(parts[2]), parts[4]);
+      if (view == null) {
+        sendError(exchange, 404, "not_found", "missing");
+      } else {
+        queryView(exchange, view);
+      }
+    } else {
+      sendError(exchange, 404, "not_found", "missing");
+    }
+  }
+
+  private String stripDevPrefix(String designDocName) {
+    return designDocName.startsWith("dev_") ? designDocName.substring(4) : designDocName;
+  }
+
+  private ObjectNode getNodeConfig() {
+    ObjectNode node = MAPPER.createObjectNode();
+    node.put("hostname", "127.0.0.1:" + httpServer.getAddress().getPort());
+    node.put("couchApiBase", "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/" + bucket);
+    node.put("status", "healthy");
+    ObjectNode ports = node.putObject("ports");
+    ports.put("direct", memcachedSocket.getLocalPort());
+    ports.put("proxy", 0);
+    return node;
+  }
+
+  private ObjectNode getBucketConfig() {
+    ObjectNode config = MAPPER.createObjectNode();
+    config.put("name", bucket);
+    config.put("bucketType", "membase");
+    config.put("nodeLocator", "vbucket");
+    config.put("saslPassword", password);
+    config.put("uri", "/pools/default/buckets/" + bucket);
+    config.put("streamingUri", "/pools/default/bucketsStreaming/" + bucket);
+    config.putArray("nodes").add(getNodeConfig());
+
+    ObjectNode serverMap = config.putObject("vBucketServerMap");
+    serverMap.put("hashAlgorithm", "CRC");
+    serverMap.put("numReplicas", 0);
+    serverMap.putArray("serverList").add("127.0.0.1:" + memcachedSocket.getLocalPort());
+    ArrayNode vBucketMap = serverMap.putArray("vBucketMap");
+    for (int i = 0; i < NUM_VBUCKETS; i++) {
+      vBucketMap.addArray().add(0);
+    }
+    return config;
+  }
+
+  /**
+   * Sends the bucket configuration and keeps the connection open until the server stops, like Couchbase does in order
+   * to push configuration changes.
+   */
+  private void streamBucketConfig(HttpExchange exchange) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream out = exchange.getResponseBody();
+    // Each flush sends a chunk and the client expects the configuration and the delimiter in separate chunks.
+    out.write(getBucketConfig().toString().getBytes(UTF_8));
+    out.flush();
+    out.write("\n\n\n\n".getBytes(UTF_8));
+    out.flush();
+    try {
+      stopped.await();
+    } catch (InterruptedException e) {
+      // The server was stopped.
+    }
+  }
+
+  private void sendDesignDoc(HttpExchange exchange, String designDocName) throws IOException {
+    Map<String, View> views = designDocs.get(designDocName);
+    if (views == null) {
+      sendError(exchange, 404, "not_found", "missing");
+      return;
+    }
+
+    ObjectNode designDoc = MAPPER.createObjectNode();
+    ObjectNode viewsJson = designDoc.putObject("views");
+    for (Map.Entry<String, View> entry : views.entrySet()) {
+      ObjectNode viewJson = viewsJson.putObject(entry.getKey());
+      viewJson.put("map", "function (doc, meta) {}");
+      if (entry.getValue().countReduce) {
+        viewJson.put("reduce", "_count");
+      }
+    }
+    sendJson(exchange, 200, designDoc.toString());
+  }
+
+  private void queryView(HttpExchange exchange, View view) throws IOException {
+    Map<String, String> params = parseQueryString(exchange.getRequestURI().getRawQuery());
+    if ("true".equals(params.get("reduce")) && !view.countReduce) {
+      sendError(exchange, 400, "query_parse_error", "Invalid URL parameter `reduce` for map view.");
+      return;
+    }
+    boolean reduce = view.countReduce && !"false".equals(params.get("reduce"));
+    int skip = params.containsKey("skip") ? Integer.parseInt(params.get("skip")) : 0;
+    int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+
+    List<Iterable<Row>> ranges = new ArrayList<>();
+    if (params.containsKey("keys")) {
+      for (JsonNode key : MAPPER.readTree(params.get("keys"))) {
+        ranges.add(view.rows.subSet(Row.first(key), true, Row.last(key), true));
+      }
+    } else if (params.containsKey("key")) {
+      // Like startkey and endkey, the key can be combined with startkey_docid and endkey_docid, e.g. for paging.
+      JsonNode key = MAPPER.readTree(params.get("key"));
+      Map<String, String> rangeParams = new HashMap<>(params);
+      rangeParams.put("startkey", params.get("key"));
+      rangeParams.put("endkey", params.get("key"));
+      ranges.add(getRange(view, rangeParams));
+    } else {
+      ranges.add(getRange(view, params));
+    }
+
+    StringBuilder json = new StringBuilder();
+    if (reduce) {
+      json.append("{\"rows\":[");
+      appendReducedRows(json, ranges, "true".equals(params.get("group")), skip, limit);
+    } else {
+      json.append("{\"total_rows\":").append(view.size.get()).append(",\"rows\":[");
+      appendRows(json, ranges, skip, limit);
+    }
+    json.append("]}");
+    sendJson(exchange, 200, json.toString());
+  }
+
+  private NavigableSet<Row> getRange(View view, Map<String, String> params) throws IOException {
+    NavigableSet<Row> range = view.rows;
+    if (params.containsKey("startkey")) {
+      JsonNode startKey = MAPPER.readTree(params.get("startkey"));
+      String startDocId = params.get("startkey_docid");
+      range = range.tailSet(startDocId == null ? Row.first(startKey) : new Row(startDocId, startKey, null), true);
+    }
+    if (params.containsKey("endkey")) {
+      JsonNode endKey = MAPPER.readTree(params.get("endkey"));
+      String endDocId = params.get("endkey_docid");
+      boolean inclusiveEnd = !"false".equals(params.get("inclusive_end"));
+      if (endDocId != null) {
+        range = range.headSet(new Row(endDocId, endKey, null), inclusiveEnd);
+      } else {
+        range = range.headSet(inclusiveEnd ? Row.last(endKey) : Row.first(endKey), false);
+      }
+    }
+    return range;
+  }
+
+  private void appendRows(StringBuilder json, List<Iterable<Row>> ranges, int skip, int limit) throws IOException {
+    int skipped = 0;
+    int count = 0;
+    for (Iterable<Row> range : ranges) {
+      for (Row row : range) {
+        if (count >= limit) {
+          return;
+        }
+        if (skipped < skip) {
+          skipped++;
+          continue;
+        }
+        if (count++ > 0) {
+          json.append(',');
+        }
+        json.append("{\"id\":").append(MAPPER.writeValueAsString(row.id))
+            .append(",\"key\":").append(row.keyJson)
+            .append(",\"value\":").append(row.valueJson).append('}');
+      }
+    }
+  }
+
+  /**
+   * Counts the rows, either in total or for each key if grouped.
+   */
+  private void appendReducedRows(StringBuilder json, List<Iterable<Row>> ranges, boolean group, int skip, int limit) {
+    List<String> keys = new ArrayList<>();
+    List<Long> counts = new ArrayList<>();
+    for (Iterable<Row> range : ranges) {
+      for (Row row : range) {
+        int last = counts.size() - 1;
+        if (last >= 0 && (!group || keys.get(last).equals(row.keyJson))) {
+          counts.set(last, counts.get(last) + 1);
+        } else {
+          keys.add(group ? row.keyJson : "null");
+          counts.add(1L);
+        }
+      }
+    }
+
+    for (int i = skip; i < counts.size() && i - skip < limit; i++) {
+      if (i > skip) {
+        json.append(',');
+      }
+      json.append("{\"key\":").append(keys.get(i)).append(",\"value\":").append(counts.get(i)).append('}');
+    }
+  }
+
+  private static Map<String, String> parseQueryString(String query) throws IOException {
+    Map<String, String> params = new HashMap<>();
+    if (query == null) {
+      return params;
+    }
+    for (String param : query.split("&")) {
+      int eq = param.indexOf('=');
+      if (eq < 0) {
+        params.put(URLDecoder.decode(param, "UTF-8"), "");
+      } else {
+        params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+            URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  private void sleepLatency() {
+    if (latencyNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(latencyNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String error, String reason) throws IOException {
+    ObjectNode json = MAPPER.createObjectNode();
+    json.put("error", error);
+    json.put("reason", reason);
+    sendJson(exchange, status, json.toString());
+  }
+
+  private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] bytes = json.getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+}
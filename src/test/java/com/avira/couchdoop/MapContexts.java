@@ -0,0 +1,74 @@
+package com.avira.couchdoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.counters.GenericCounter;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates mapper contexts which read the input from a record reader and pass the output to a record writer, in order
+ * to run mappers outside of a job.
+ */
+public class MapContexts {
+
+  /**
+   * Keeps counters in memory.
+   */
+  public static class Reporter extends StatusReporter {
+
+    private Map<String, Counter> counters = new HashMap<>();
+
+    @Override
+    public Counter getCounter(Enum<?> name) {
+      return getCounter(name.getDeclaringClass().getName(), name.name());
+    }
+
+    @Override
+    public Counter getCounter(String group, String name) {
+      String key = group + ":" + name;
+      Counter counter = counters.get(key);
+      if (counter == null) {
+        counter = new GenericCounter(name, name);
+        counters.put(key, counter);
+      }
+      return counter;
+    }
+
+    @Override
+    public void progress() {
+    }
+
+    @Override
+    public float getProgress() {
+      return 0;
+    }
+
+    @Override
+    public void setStatus(String status) {
+    }
+  }
+
+  public static <KI, VI, KO, VO> Mapper<KI, VI, KO, VO>.Context create(Configuration conf,
+                                                                       RecordReader<KI, VI> reader,
+                                                                       RecordWriter<KO, VO> writer) {
+    return create(conf, reader, writer, new Reporter());
+  }
+
+  public static <KI, VI, KO, VO> Mapper<KI, VI, KO, VO>.Context create(Configuration conf,
+                                                                       RecordReader<KI, VI> reader,
+                                                                       RecordWriter<KO, VO> writer,
+                                                                       StatusReporter reporter) {
+    MapContextImpl<KI, VI, KO, VO> mapContext =
+        new MapContextImpl<>(conf, new TaskAttemptID(), reader, writer, null, reporter, null);
+    return new WrappedMapper<KI, VI, KO, VO>().getMapContext(mapContext);
+  }
+}
@@ -0,0 +1,46 @@
+package com.avira.couchdoop;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class RawJsonTranscoderTest {
+
+  @Test
+  public void rawJsonTest() {
+    RawJsonTranscoder transcoder = new RawJsonTranscoder();
+    SerializingTranscoder defaultTranscoder = new SerializingTranscoder();
+    byte[] json = "{\"name\":\"Ștefan\"}".getBytes(StandardCharsets.UTF_8);
+
+    // Bytes are stored like strings.
+    CachedData encoded = transcoder.encode(json);
+    assertEquals(0, encoded.getFlags());
+    assertSame(json, encoded.getData());
+    assertEquals("{\"name\":\"Ștefan\"}", defaultTranscoder.decode(encoded));
+
+    // Strings are read as bytes, without copying them.
+    CachedData stored = defaultTranscoder.encode("{\"name\":\"Ștefan\"}");
+    assertSame(stored.getData(), transcoder.decode(stored));
+    assertArrayEquals(json, (byte[]) transcoder.decode(stored));
+  }
+
+  @Test
+  public void otherValuesTest() {
+    RawJsonTranscoder transcoder = new RawJsonTranscoder();
+
+    // Large strings which are not JSON documents are compressed.
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      large.append(i).append(',');
+    }
+    CachedData compressed = new SerializingTranscoder().encode(large.toString());
+    assertNotEquals(0, compressed.getFlags());
+    assertArrayEquals(large.toString().getBytes(StandardCharsets.UTF_8), (byte[]) transcoder.decode(compressed));
+
+    assertEquals(42L, transcoder.decode(transcoder.encode(42L)));
+  }
+}
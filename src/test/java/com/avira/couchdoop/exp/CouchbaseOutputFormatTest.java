@@ -0,0 +1,116 @@
+package com.avira.couchdoop.exp;
+
+import com.avira.couchdoop.FakeCouchbaseServer;
+import com.avira.couchdoop.MapContexts;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CouchbaseOutputFormatTest {
+
+  private static final String GROUP = CouchbaseOutputFormat.class.getName();
+
+  private FakeCouchbaseServer server;
+  private MapContexts.Reporter reporter;
+  private TaskAttemptContext context;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeCouchbaseServer();
+    server.start();
+
+    reporter = new MapContexts.Reporter();
+    context = MapContexts.create(new Configuration(), null, null, reporter);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  private CouchbaseOutputFormat.CouchbaseRecordWriter createWriter(int writeWindow) throws Exception {
+    return new CouchbaseOutputFormat.CouchbaseRecordWriter(server.getUrls(), server.getBucket(), server.getPassword(),
+        writeWindow);
+  }
+
+  private long getCounter(String name) {
+    return reporter.getCounter(GROUP, name).getValue();
+  }
+
+  @Test
+  public void operationsTest() throws Exception {
+    server.put("existing", "{\"a\":1}");
+    server.put("deleted", "{}");
+    server.put("touched", "{}");
+
+    CouchbaseOutputFormat.CouchbaseRecordWriter writer = createWriter(4);
+    writer.write("new", CouchbaseAction.createSetAction("{\"b\":2}"));
+    writer.write("existing", CouchbaseAction.createAddAction("{\"a\":2}"));
+    writer.write("missing", CouchbaseAction.createReplaceAction("{\"c\":3}"));
+    writer.write("new", CouchbaseAction.createAppendAction(" "));
+    writer.write("new", CouchbaseAction.createPrependAction(" "));
+    writer.write("deleted", CouchbaseAction.createDeleteAction());
+    writer.write("touched", new CouchbaseAction(CouchbaseOperation.EXISTS, null, 3600));
+    writer.write("untouched", new CouchbaseAction(CouchbaseOperation.EXISTS, null, 3600));
+    writer.write("ignored", CouchbaseAction.createNoneAction());
+    writer.close(context);
+
+    assertEquals(" {\"b\":2} ", server.get("new"));
+    assertEquals("{\"a\":1}", server.get("existing"));
+    assertNull(server.get("missing"));
+    assertNull(server.get("deleted"));
+    assertTrue(server.getExpiresAt("touched") > System.currentTimeMillis());
+    assertNull(server.get("ignored"));
+    assertEquals(3, server.size());
+
+    assertEquals(3, getCounter("FAILED_STORE_OPERATIONS"));
+    assertEquals(1, getCounter("EXISTANT_KEYS"));
+    assertEquals(1, getCounter("NON_EXISTENT_TOUCHED_KEYS"));
+  }
+
+  @Test
+  public void temporaryFailuresTest() throws Exception {
+    server.failNextMutations(5);
+
+    CouchbaseOutputFormat.CouchbaseRecordWriter writer = createWriter(8);
+    for (int i = 0; i < 100; i++) {
+      writer.write("key" + i, CouchbaseAction.createSetAction("{\"i\":" + i + "}"));
+    }
+    writer.close(context);
+
+    assertEquals(5, server.getTemporaryFailures());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("{\"i\":" + i + "}", server.get("key" + i));
+    }
+    // A retry may be one of the failed mutations too.
+    long retries = 0;
+    for (int i = 0; i < CouchbaseOutputFormat.CouchbaseRecordWriter.EXP_BACKOFF_MAX_TRIES; i++) {
+      retries += getCounter("EXP_BACKOFF_COUNT_FOR_TRY_" + i);
+    }
+    assertEquals(5, retries);
+    // Retries are sent within the window too.
+    assertTrue(getCounter("WRITES_IN_FLIGHT_PEAK") <= 8);
+  }
+
+  @Test
+  public void orderAfterTemporaryFailureTest() throws Exception {
+    for (int writeWindow : new int[]{1, 8}) {
+      server.failNextMutations(1);
+
+      CouchbaseOutputFormat.CouchbaseRecordWriter writer = createWriter(writeWindow);
+      writer.write("key", CouchbaseAction.createSetAction("{\"v\":1}"));
+      writer.write("key", CouchbaseAction.createSetAction("{\"v\":2}"));
+      writer.write("other", CouchbaseAction.createSetAction("{}"));
+      writer.write("key", CouchbaseAction.createAppendAction(" "));
+      writer.close(context);
+
+      // The retry of the first write must not overwrite the later ones.
+      assertEquals("{\"v\":2} ", server.get("key"));
+      assertEquals("{}", server.get("other"));
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package com.avira.couchdoop.exp;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class CsvLineParserTest {
+
+  private static final String[] LINES = {
+      "key\t{\"a\":1}", "key\t", "key", "", "\t", "\t\t", "\tdoc", "key\tdoc\t", "key\tdoc\t\t", "key\t\tdoc",
+      "key\tdoc\tx", "ключ\tдокумент", "a\t\t", "key::doc", "key:::doc", "key::doc::", "key,doc", "a\t\tb\t"
+  };
+
+  private static final String[] DELIMITERS = {"\t", "::", ",", "\\t", "[\\t,]", "\t+", ":+", "\\t?"};
+
+  @Test
+  public void sameAsSplitTest() throws CharacterCodingException {
+    for (String delimiter : DELIMITERS) {
+      CsvLineParser parser = CsvLineParser.create(delimiter);
+      for (String line : LINES) {
+        String message = "line '" + line + "' split by '" + delimiter + "'";
+        String[] fields = line.split(delimiter);
+
+        parser.parse(new Text(line));
+        assertEquals(message, fields.length, parser.getFieldsCount());
+        if (fields.length >= 1) {
+          assertEquals(message, fields[0], parser.getKey());
+        }
+        if (fields.length >= 2) {
+          assertEquals(message, fields[1], parser.getDocument());
+          assertArrayEquals(message, fields[1].getBytes(StandardCharsets.UTF_8), parser.getDocumentBytes());
+        }
+      }
+    }
+  }
+}
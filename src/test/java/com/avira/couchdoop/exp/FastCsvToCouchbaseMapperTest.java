@@ -0,0 +1,162 @@
+package com.avira.couchdoop.exp;
+
+import com.avira.couchdoop.CouchbaseArgs;
+import com.avira.couchdoop.MapContexts;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FastCsvToCouchbaseMapperTest {
+
+  private static final String[] LINES = {
+      "key\t{\"a\":1}", "key\t", "key", "", "\t", "\tdoc", "key\tdoc\t", "key\tdoc\t\t", "key\t\tdoc", "key\tdoc\tx",
+      "ключ\tдокумент", "a\t\t"
+  };
+
+  /**
+   * Reads the test lines.
+   */
+  private static class LinesReader extends RecordReader<LongWritable, Text> {
+    private int index = -1;
+    private LongWritable key = new LongWritable();
+    private Text value = new Text();
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) {
+    }
+
+    @Override
+    public boolean nextKeyValue() {
+      if (++index >= LINES.length) {
+        return false;
+      }
+      key.set(index);
+      value.set(LINES[index]);
+      return true;
+    }
+
+    @Override
+    public LongWritable getCurrentKey() {
+      return key;
+    }
+
+    @Override
+    public Text getCurrentValue() {
+      return value;
+    }
+
+    @Override
+    public float getProgress() {
+      return (float) index / LINES.length;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Collects the written actions as strings, since actions may be reused.
+   */
+  private static class CollectingWriter extends RecordWriter<String, CouchbaseAction> {
+    private List<String> records = new ArrayList<>();
+
+    @Override
+    public void write(String key, CouchbaseAction action) {
+      Object value = action.getValue();
+      if (value instanceof byte[]) {
+        value = new String((byte[]) value, StandardCharsets.UTF_8);
+      }
+      records.add(key + " " + action.getOperation() + " " + value + " " + action.getExpiry());
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+    }
+  }
+
+  private List<String> run(Mapper<LongWritable, Text, String, CouchbaseAction> mapper, Configuration conf)
+      throws IOException, InterruptedException {
+    CollectingWriter writer = new CollectingWriter();
+    MapContexts.Reporter reporter = new MapContexts.Reporter();
+    Mapper<LongWritable, Text, String, CouchbaseAction>.Context context =
+        MapContexts.create(conf, new LinesReader(), writer, reporter);
+
+    mapper.run(context);
+    writer.records.add("errors " +
+        reporter.getCounter(CsvToCouchbaseMapper.Error.LINES_WITH_WRONG_COLUMNS_COUNT).getValue());
+    return writer.records;
+  }
+
+  private void assertSameOutput(Configuration conf) throws IOException, InterruptedException {
+    List<String> expected = run(new CsvToCouchbaseMapper(), conf);
+    assertEquals(expected, run(new FastCsvToCouchbaseMapper(), conf));
+  }
+
+  @Test
+  public void sameAsCsvMapperTest() throws IOException, InterruptedException {
+    Configuration conf = new Configuration(false);
+    conf.set(ExportArgs.ARG_EXPIRY.getPropertyName(), "60");
+    assertSameOutput(conf);
+
+    conf.set(ExportArgs.ARG_OPERATION.getPropertyName(), "DELETE");
+    assertSameOutput(conf);
+
+    conf.set(ExportArgs.ARG_OPERATION.getPropertyName(), "ADD");
+    conf.set(ExportArgs.ARG_DELIMITER_FIELDS.getPropertyName(), "::");
+    assertSameOutput(conf);
+  }
+
+  @Test
+  public void rawDocumentsTest() throws IOException, InterruptedException {
+    Configuration conf = new Configuration(false);
+    List<String> expected = run(new CsvToCouchbaseMapper(), conf);
+
+    conf.setBoolean(CouchbaseArgs.ARG_COUCHBASE_DOCUMENTS_RAW.getPropertyName(), true);
+    assertEquals(expected, run(new FastCsvToCouchbaseMapper(), conf));
+    assertSameOutput(conf);
+
+    conf.set(ExportArgs.ARG_OPERATION.getPropertyName(), "DELETE");
+    assertSameOutput(conf);
+  }
+
+  @Test
+  public void csvMapperRawDocumentsTest() throws IOException, InterruptedException {
+    Configuration conf = new Configuration(false);
+    for (String delimiter : new String[]{"\t", "\\t", "[\t]"}) {
+      conf.set(ExportArgs.ARG_DELIMITER_FIELDS.getPropertyName(), delimiter);
+      for (String operation : new String[]{"SET", "DELETE"}) {
+        conf.set(ExportArgs.ARG_OPERATION.getPropertyName(), operation);
+        conf.setBoolean(CouchbaseArgs.ARG_COUCHBASE_DOCUMENTS_RAW.getPropertyName(), false);
+        List<String> expected = run(new CsvToCouchbaseMapper(), conf);
+
+        // Raw documents don't change how lines are split, whatever the delimiter.
+        conf.setBoolean(CouchbaseArgs.ARG_COUCHBASE_DOCUMENTS_RAW.getPropertyName(), true);
+        assertEquals(expected, run(new CsvToCouchbaseMapper(), conf));
+      }
+    }
+  }
+
+  @Test
+  public void literalDelimiterTest() {
+    assertTrue(FastCsvToCouchbaseMapper.isLiteralDelimiter("\t"));
+    assertTrue(FastCsvToCouchbaseMapper.isLiteralDelimiter(","));
+    assertTrue(FastCsvToCouchbaseMapper.isLiteralDelimiter("::"));
+    assertFalse(FastCsvToCouchbaseMapper.isLiteralDelimiter("\\t"));
+    assertFalse(FastCsvToCouchbaseMapper.isLiteralDelimiter("|"));
+    assertFalse(FastCsvToCouchbaseMapper.isLiteralDelimiter(""));
+  }
+}
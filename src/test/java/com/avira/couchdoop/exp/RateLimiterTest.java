@@ -0,0 +1,110 @@
+package com.avira.couchdoop.exp;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+  /**
+   * Limiter whose clock only moves forward when it sleeps or when the test advances it.
+   */
+  private static class ManualClockRateLimiter extends RateLimiter {
+
+    private long now = 0;
+
+    public ManualClockRateLimiter(double maxOpsRate, double maxBytesRate, boolean adaptive) {
+      super(maxOpsRate, maxBytesRate, adaptive);
+    }
+
+    @Override
+    protected long nanoTime() {
+      return now;
+    }
+
+    @Override
+    protected void sleep(long nanos) {
+      now += nanos;
+    }
+
+    public void advance(long millis) {
+      now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+  }
+
+  @Test
+  public void opsRateTest() throws Exception {
+    ManualClockRateLimiter limiter = new ManualClockRateLimiter(100, 0, false);
+
+    // The first second worth of operations passes right away, then operations are spaced by 10 ms.
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire(1000000);
+    }
+    assertEquals(0, limiter.getThrottledTime());
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire(1000000);
+    }
+    assertEquals(1000, limiter.getThrottledTime());
+
+    // Idle time refills the bucket, but not above one second worth of operations.
+    limiter.advance(5000);
+    for (int i = 0; i < 150; i++) {
+      limiter.acquire(0);
+    }
+    assertEquals(1500, limiter.getThrottledTime());
+  }
+
+  @Test
+  public void bytesRateTest() throws Exception {
+    ManualClockRateLimiter limiter = new ManualClockRateLimiter(0, 1000, false);
+
+    // Values larger than the bucket are delayed until the debt is repaid.
+    limiter.acquire(3000);
+    assertEquals(2000, limiter.getThrottledTime());
+    limiter.acquire(500);
+    assertEquals(2500, limiter.getThrottledTime());
+  }
+
+  @Test
+  public void adaptiveTest() throws Exception {
+    ManualClockRateLimiter limiter = new ManualClockRateLimiter(160, 0, true);
+
+    // Halve the rates after windows with too many temporary failures, down to the minimum.
+    for (int window = 0; window < 6; window++) {
+      for (int i = 0; i < 100; i++) {
+        limiter.onCompleted(i < 10);
+      }
+      limiter.advance(1000);
+    }
+    limiter.onCompleted(false);
+    assertEquals(RateLimiter.MIN_RATE_FACTOR, limiter.getRateFactor(), 0);
+    assertEquals(4, limiter.getDecreasesCount());
+
+    // Operations are spaced according to the decreased rate of 10 ops/s.
+    limiter.advance(10000);
+    for (int i = 0; i < 20; i++) {
+      limiter.acquire(0);
+    }
+    assertEquals(1000, limiter.getThrottledTime());
+
+    // Grow back additively after windows without temporary failures.
+    for (int i = 0; i < 10; i++) {
+      limiter.onCompleted(false);
+    }
+    assertEquals(2 * RateLimiter.RATE_FACTOR_STEP, limiter.getRateFactor(), 1e-9);
+    limiter.advance(1000);
+    for (int i = 0; i < 10; i++) {
+      limiter.onCompleted(false);
+    }
+    assertEquals(3 * RateLimiter.RATE_FACTOR_STEP, limiter.getRateFactor(), 1e-9);
+
+    // Nothing changes if the limiter isn't adaptive.
+    RateLimiter fixed = new ManualClockRateLimiter(100, 0, false);
+    for (int i = 0; i < 100; i++) {
+      fixed.onCompleted(true);
+    }
+    assertEquals(1, fixed.getRateFactor(), 0);
+  }
+}
@@ -0,0 +1,273 @@
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.CouchbaseArgs;
+import com.avira.couchdoop.CouchbaseClientPool;
+import com.avira.couchdoop.FakeCouchbaseServer;
+import com.avira.couchdoop.MapContexts;
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.ViewRow;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CouchbaseViewInputFormatTest {
+
+  private static final String[] VIEW_KEYS = new String[]{"a", "b", "c"};
+  private static final int DOCS_PER_KEY = 7;
+  private static final int DAYS = 30;
+
+  private static FakeCouchbaseServer server;
+
+  @BeforeClass
+  public static void startServer() throws Exception {
+    server = new FakeCouchbaseServer();
+    server.start();
+
+    server.createView("docs", "byType", true);
+    for (String type : VIEW_KEYS) {
+      for (int i = 0; i < DOCS_PER_KEY; i++) {
+        String id = type + i;
+        server.put(id, "{\"type\":\"" + type + "\",\"i\":" + i + "}");
+        server.addViewRow("docs", "byType", id, "\"" + type + "\"", "null");
+      }
+    }
+    // A row whose document was deleted after indexing.
+    server.addViewRow("docs", "byType", "deleted", "\"b\"", "null");
+
+    // Views whose string keys look like numbers or need escaping.
+    server.createView("docs", "byDate", true);
+    server.createView("docs", "byTitle", true);
+    ObjectMapper mapper = new ObjectMapper();
+    for (int day = 1; day <= DAYS; day++) {
+      String id = getDateId(day);
+      server.put(id, "{\"day\":" + day + "}");
+      server.addViewRow("docs", "byDate", id, mapper.writeValueAsString(getDate(day)), "null");
+      server.addViewRow("docs", "byTitle", id, mapper.writeValueAsString(getTitle(day)), "null");
+    }
+  }
+
+  private static String getDate(int day) {
+    return String.format("201404%02d", day);
+  }
+
+  private static String getTitle(int day) {
+    return String.format("say \"%02d\" \\ %02d", day, day);
+  }
+
+  private static String getDateId(int day) {
+    return "day" + getDate(day);
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.stop();
+  }
+
+  private static Configuration createConf() {
+    Configuration conf = new Configuration();
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_URLS.getPropertyName(), server.getUrl().toString());
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_BUCKET.getPropertyName(), server.getBucket());
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_PASSWORD.getPropertyName(), server.getPassword());
+    conf.set(ImportViewArgs.ARG_DESIGNDOC_NAME.getPropertyName(), "docs");
+    conf.set(ImportViewArgs.ARG_VIEW_NAME.getPropertyName(), "byType");
+    conf.setInt(ImportViewArgs.ARG_DOCS_PER_PAGE.getPropertyName(), 3);
+    conf.setInt(ImportViewArgs.ARG_NUM_MAPPERS.getPropertyName(), 2);
+    return conf;
+  }
+
+  /**
+   * Reads all splits like the map tasks of a job would.
+   *
+   * @return the document IDs of the rows read, sorted
+   */
+  private static List<String> readAll(Configuration conf) throws Exception {
+    return readAll(conf, 2);
+  }
+
+  /**
+   * Reads all splits like the map tasks of a job would.
+   *
+   * @param numSplits expected number of splits
+   * @return the document IDs of the rows read, sorted
+   */
+  private static List<String> readAll(Configuration conf, int numSplits) throws Exception {
+    TaskAttemptContext context = MapContexts.create(conf, null, null);
+    CouchbaseViewInputFormat inputFormat = new CouchbaseViewInputFormat();
+
+    List<InputSplit> splits = inputFormat.getSplits(context);
+    assertEquals(numSplits, splits.size());
+
+    List<String> ids = new ArrayList<>();
+    for (InputSplit split : splits) {
+      RecordReader<Text, ViewRow> reader = inputFormat.createRecordReader(split, context);
+      reader.initialize(split, context);
+      while (reader.nextKeyValue()) {
+        String id = reader.getCurrentKey().toString();
+        Object doc = reader.getCurrentValue().getDocument();
+        if (id.equals("deleted")) {
+          assertNull(doc);
+        } else {
+          assertEquals(server.get(id), doc instanceof byte[] ? new String((byte[]) doc, "UTF-8") : doc);
+        }
+        ids.add(id);
+      }
+      assertEquals(1.0f, reader.getProgress(), 0.0f);
+      reader.close();
+    }
+
+    Collections.sort(ids);
+    return ids;
+  }
+
+  private static List<String> getIds(String... keys) {
+    List<String> ids = new ArrayList<>();
+    for (String key : keys) {
+      for (int i = 0; i < DOCS_PER_KEY; i++) {
+        ids.add(key + i);
+      }
+      if (key.equals("b")) {
+        ids.add("deleted");
+      }
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+  @Test
+  public void readKeysTest() throws Exception {
+    Configuration conf = createConf();
+    conf.set(ImportViewArgs.ARG_VIEW_KEYS.getPropertyName(), "\"a\";\"c\";\"missing\"");
+    assertEquals(getIds("a", "c"), readAll(conf));
+  }
+
+  @Test
+  public void readKeysOfReduceViewTest() throws Exception {
+    // The view counts its rows with a reduce function, which key queries must not apply.
+    Configuration conf = createConf();
+    conf.set(ImportViewArgs.ARG_VIEW_KEYS.getPropertyName(), "\"a\";\"b\";\"c\"");
+    conf.setInt(ImportViewArgs.ARG_KEYS_PER_QUERY.getPropertyName(), 1);
+    assertEquals(getIds("a", "b", "c"), readAll(conf));
+  }
+
+  @Test
+  public void readKeysWithBulkGetsTest() throws Exception {
+    Configuration conf = createConf();
+    conf.set(ImportViewArgs.ARG_VIEW_KEYS.getPropertyName(), "\"a\";\"b\";\"c\"");
+    conf.setInt(ImportViewArgs.ARG_KEYS_PER_QUERY.getPropertyName(), 2);
+    conf.setInt(ImportViewArgs.ARG_BULK_GET_PAGES.getPropertyName(), 2);
+    conf.setInt(ImportViewArgs.ARG_PREFETCH_PAGES.getPropertyName(), 1);
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_DOCUMENTS_RAW.getPropertyName(), "true");
+    assertEquals(getIds("a", "b", "c"), readAll(conf));
+  }
+
+  @Test
+  public void readRangeTest() throws Exception {
+    Configuration conf = createConf();
+    conf.set(ImportViewArgs.ARG_VIEW_STARTKEY.getPropertyName(), "\"b\"");
+    conf.set(ImportViewArgs.ARG_VIEW_ENDKEY.getPropertyName(), "\"c\"");
+    assertEquals(getIds("b", "c"), readAll(conf));
+  }
+
+  /**
+   * @return the document IDs of the rows of the "byDate" and "byTitle" views from one day to another, sorted
+   */
+  private static List<String> getDateIds(int fromDay, int toDay) {
+    List<String> ids = new ArrayList<>();
+    for (int day = fromDay; day <= toDay; day++) {
+      ids.add(getDateId(day));
+    }
+    return ids;
+  }
+
+  @Test(timeout = 60000)
+  public void rangeSplitsOfNumericStringKeysTest() throws Exception {
+    // The boundaries and pages must start at string keys, not at the numbers they look like.
+    Configuration conf = createConf();
+    conf.set(ImportViewArgs.ARG_VIEW_NAME.getPropertyName(), "byDate");
+    conf.set(ImportViewArgs.ARG_VIEW_STARTKEY.getPropertyName(), "\"" + getDate(2) + "\"");
+    conf.set(ImportViewArgs.ARG_VIEW_ENDKEY.getPropertyName(), "\"" + getDate(DAYS) + "\"");
+    conf.setInt(ImportViewArgs.ARG_NUM_MAPPERS.getPropertyName(), 4);
+    assertEquals(getDateIds(2, DAYS), readAll(conf, 4));
+  }
+
+  @Test(timeout = 60000)
+  public void rangeSplitsOfEscapedStringKeysTest() throws Exception {
+    Configuration conf = createConf();
+    conf.set(ImportViewArgs.ARG_VIEW_NAME.getPropertyName(), "byTitle");
+    conf.set(ImportViewArgs.ARG_VIEW_STARTKEY.getPropertyName(), new ObjectMapper().writeValueAsString(getTitle(3)));
+    conf.setInt(ImportViewArgs.ARG_NUM_MAPPERS.getPropertyName(), 4);
+    assertEquals(getDateIds(3, DAYS), readAll(conf, 4));
+  }
+
+  @Test
+  public void costBalancedSplitsTest() throws Exception {
+    String[] keys = new String[]{"a", "b", "c", "d", "e", "f"};
+    Map<String, Long> rowCounts = new HashMap<>();
+    rowCounts.put("a", 1000L);
+    rowCounts.put("b", 10L);
+    rowCounts.put("c", 500L);
+    rowCounts.put("d", 490L);
+    rowCounts.put("e", 0L);
+    rowCounts.put("f", 5L);
+
+    List<InputSplit> splits = new CouchbaseViewInputFormat().getCostBalancedSplits(keys, rowCounts, 2);
+    assertEquals(2, splits.size());
+
+    int numKeys = 0;
+    for (InputSplit split : splits) {
+      CouchbaseViewInputFormat.CouchbaseViewInputSplit viewSplit =
+          (CouchbaseViewInputFormat.CouchbaseViewInputSplit) split;
+      numKeys += viewSplit.getKeys().size();
+      assertTrue("Split is not balanced: " + viewSplit.getLength(),
+          viewSplit.getLength() >= 1000 && viewSplit.getLength() <= 1005);
+    }
+    assertEquals(keys.length, numKeys);
+  }
+
+  @Test
+  public void estimateRowCountsTest() throws Exception {
+    CouchbaseClient client = CouchbaseClientPool.acquire(server.getUrls(), server.getBucket(), server.getPassword(), 0);
+    try {
+      ViewKeyCostEstimator estimator = new ViewKeyCostEstimator(client, client.getView("docs", "byType"));
+      Map<String, Long> counts = estimator.estimateRowCounts(Arrays.asList("\"a\"", "\"b\"", "\"missing\""));
+      assertEquals(3, counts.size());
+      assertEquals(DOCS_PER_KEY, (long) counts.get("\"a\""));
+      assertEquals(DOCS_PER_KEY + 1, (long) counts.get("\"b\""));
+      assertEquals(0, (long) counts.get("\"missing\""));
+
+      // String keys which look like numbers or need escaping.
+      String title = new ObjectMapper().writeValueAsString(getTitle(2));
+      estimator = new ViewKeyCostEstimator(client, client.getView("docs", "byTitle"));
+      assertEquals(1, (long) estimator.estimateRowCounts(Collections.singletonList(title)).get(title));
+      String date = "\"" + getDate(2) + "\"";
+      estimator = new ViewKeyCostEstimator(client, client.getView("docs", "byDate"));
+      assertEquals(1, (long) estimator.estimateRowCounts(Collections.singletonList(date)).get(date));
+    } finally {
+      CouchbaseClientPool.release(client);
+    }
+  }
+
+  @Test
+  public void toRowKeyTest() {
+    assertEquals("[\"2014 07\",1]", ViewRowKeys.toRowKey(" [ \"2014 07\", 1 ]"));
+    assertEquals("a\" b", ViewRowKeys.toRowKey("\"a\\\" b\""));
+    assertEquals("20140401", ViewRowKeys.toRowKey("\"20140401\""));
+    assertNull(ViewRowKeys.toRowKey("null"));
+    assertEquals("[\"a/b\"]", ViewRowKeys.normalizeRowKey("[\"a\\/b\"]"));
+  }
+}
@@ -0,0 +1,53 @@
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.MapContexts;
+import com.couchbase.client.protocol.views.ViewRowWithDocs;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CouchbaseViewToFileMapperTest {
+
+  /**
+   * Collects the output as "key=value" strings.
+   */
+  private static class CollectingWriter extends RecordWriter<Text, Text> {
+    private List<String> output = new ArrayList<>();
+
+    @Override
+    public void write(Text key, Text value) {
+      output.add(key + "=" + value);
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+    }
+  }
+
+  @Test
+  public void mapTest() throws Exception {
+    CollectingWriter writer = new CollectingWriter();
+    MapContexts.Reporter reporter = new MapContexts.Reporter();
+    CouchbaseViewToFileMapper.Context context = MapContexts.create(new Configuration(), null, writer, reporter);
+
+    CouchbaseViewToFileMapper mapper = new CouchbaseViewToFileMapper();
+    mapper.map(new Text("a"), new ViewRowWithDocs("a", "\"k\"", null, "{\"a\":1}"), context);
+    // Deleted after the view was indexed.
+    mapper.map(new Text("b"), new ViewRowWithDocs("b", "\"k\"", null, null), context);
+    mapper.map(new Text("c"), new ViewRowWithDocs("c", "\"k\"", null, "{}".getBytes(StandardCharsets.UTF_8)), context);
+
+    List<String> expected = new ArrayList<>();
+    expected.add("a={\"a\":1}");
+    expected.add("c={}");
+    assertEquals(expected, writer.output);
+    assertEquals(1, reporter.getCounter(CouchbaseViewToFileMapper.Counters.MISSING_DOCUMENTS).getValue());
+  }
+}
@@ -0,0 +1,82 @@
+package com.avira.couchdoop.imp;
+
+import com.avira.couchdoop.ArgsException;
+import org.apache.avro.generic.GenericRecord;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DocumentSchemaTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private JsonNode json(String json) throws IOException {
+    return objectMapper.readTree(json);
+  }
+
+  @Test
+  public void inferTest() throws IOException {
+    DocumentSchema schema = DocumentSchema.infer(Arrays.asList(
+        json("{\"user\":{\"id\":1,\"name\":\"a\"},\"score\":1,\"tags\":[\"x\"],\"ok\":true,\"note\":null}"),
+        json("{\"user\":{\"id\":2},\"score\":0.5,\"ok\":\"yes\",\"extra\":3}")));
+
+    assertEquals("user.id:long,user.name:string,score:double,tags:string,ok:string,note:string,extra:long",
+        schema.toString());
+    assertEquals("user_id", schema.getAvroSchema().getFields().get(1).name());
+  }
+
+  @Test
+  public void parseTest() throws ArgsException {
+    DocumentSchema schema = DocumentSchema.parse("user.id:long, score:DOUBLE");
+    assertEquals("user.id:long,score:double", schema.toString());
+    assertEquals(DocumentSchema.parse(schema.toString()).getAvroSchema(), schema.getAvroSchema());
+
+    try {
+      DocumentSchema.parse("score:float");
+      fail("Unknown type was accepted.");
+    } catch (ArgsException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void escapedFieldNamesTest() throws ArgsException, IOException {
+    JsonNode doc = json("{\"a.b\":1,\"c,d\":{\"e:f\":\"x\"},\"g\\\\h\":true,\"i\":{\"j\":2.5}}");
+    DocumentSchema schema = DocumentSchema.infer(Arrays.asList(doc));
+
+    String spec = schema.toString();
+    assertEquals("a\\.b:long,c\\,d.e\\:f:string,g\\\\h:boolean,i.j:double", spec);
+    DocumentSchema parsed = DocumentSchema.parse(spec);
+    assertEquals(spec, parsed.toString());
+    assertEquals(schema.getAvroSchema(), parsed.getAvroSchema());
+
+    GenericRecord record = parsed.createRecord();
+    assertEquals(0, parsed.fill(record, "doc1", doc));
+    assertEquals(1L, record.get(1));
+    assertEquals("x", record.get(2));
+    assertEquals(true, record.get(3));
+    assertEquals(2.5, record.get(4));
+  }
+
+  @Test
+  public void fillTest() throws ArgsException, IOException {
+    DocumentSchema schema = DocumentSchema.parse("user.id:long,user.name:string,score:double,tags:string,ok:boolean");
+    GenericRecord record = schema.createRecord();
+
+    int mismatches = schema.fill(record, "doc1",
+        json("{\"user\":{\"id\":\"x\",\"name\":\"a\"},\"score\":2,\"tags\":[1,2]}"));
+
+    assertEquals(1, mismatches);
+    assertEquals("doc1", record.get(DocumentSchema.ID_COLUMN));
+    assertNull(record.get("user_id"));
+    assertEquals("a", record.get("user_name"));
+    assertEquals(2.0, record.get("score"));
+    assertEquals("[1,2]", record.get("tags"));
+    assertNull(record.get("ok"));
+  }
+}
@@ -0,0 +1,77 @@
+package com.avira.couchdoop.imp;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ImportCheckpointTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void saveAndLoadTest() throws Exception {
+    Configuration conf = new Configuration();
+    String dir = folder.getRoot().getAbsolutePath();
+
+    ImportCheckpoint checkpoint = ImportCheckpoint.load(conf, dir);
+    assertEquals(0, checkpoint.getCommittedBelow());
+    assertNull(checkpoint.getLastDocId("[\"20140401\",0]"));
+
+    checkpoint.pageWritten("[\"20140401\",0]", "[\"20140401\",0]", "doc\t1", 3);
+    checkpoint.pageWritten("[\"20140401\",1]", "[\"20140401\",1]", "doc2", 1);
+    checkpoint.queryFinished("[\"20140401\",1]");
+
+    ImportCheckpoint loaded = ImportCheckpoint.load(conf, dir);
+    assertEquals(0, loaded.getCommittedBelow());
+    assertTrue(loaded.isCommitted(1));
+    assertTrue(loaded.isCommitted(3));
+    assertFalse(loaded.isCommitted(0));
+    assertFalse(loaded.isCommitted(2));
+    assertFalse(loaded.isFinished("[\"20140401\",0]"));
+    assertEquals("[\"20140401\",0]", loaded.getLastRowKey("[\"20140401\",0]"));
+    assertEquals("doc\t1", loaded.getLastDocId("[\"20140401\",0]"));
+    assertTrue(loaded.isFinished("[\"20140401\",1]"));
+
+    loaded.delete();
+    assertFalse(new File(dir, ImportCheckpoint.FILE_NAME).exists());
+  }
+
+  @Test
+  public void outOfOrderPagesTest() throws Exception {
+    Configuration conf = new Configuration();
+    String dir = folder.getRoot().getAbsolutePath();
+
+    // Pages 0 to 4 are allocated to two queries and committed out of order; page 2 never is.
+    ImportCheckpoint checkpoint = ImportCheckpoint.load(conf, dir);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i, checkpoint.allocatePage());
+    }
+    checkpoint.pageWritten("a", "\"a\"", "a3", 1);
+    assertEquals(0, checkpoint.getCommittedBelow());
+    checkpoint.pageWritten("a", "\"a\"", "a1", 0);
+    assertEquals(2, checkpoint.getCommittedBelow());
+    checkpoint.pageWritten("b", "\"b\"", "b9", 4);
+    // A page without rows doesn't change the query state.
+    checkpoint.pageWritten("b", null, null, 3);
+    assertEquals("b9", checkpoint.getLastDocId("b"));
+
+    ImportCheckpoint loaded = ImportCheckpoint.load(conf, dir);
+    assertEquals(2, loaded.getCommittedBelow());
+    assertFalse(loaded.isCommitted(2));
+    assertTrue(loaded.isCommitted(3));
+    assertTrue(loaded.isCommitted(4));
+
+    // Resumed pages fill the gap first.
+    assertEquals(2, loaded.allocatePage());
+    assertEquals(5, loaded.allocatePage());
+    loaded.pageWritten("a", "\"a\"", "a5", 2);
+    assertEquals(5, loaded.getCommittedBelow());
+    assertEquals(6, loaded.allocatePage());
+  }
+}
@@ -1,6 +1,8 @@
 package com.avira.couchdoop.imp;
 
+import com.avira.couchdoop.ArgsException;
 import com.google.common.collect.Lists;
+import org.apache.hadoop.conf.Configuration;
 import org.junit.Test;
 
 import java.util.Arrays;
@@ -56,6 +58,27 @@ public class ImportViewArgsTest {
   }
 
 
+  @Test
+  public void rangeScanTest() throws ArgsException {
+    Configuration conf = new Configuration(false);
+    conf.set(ImportViewArgs.ARG_VIEW_STARTKEY.getPropertyName(), "[\"20140401\",0]");
+    conf.set(ImportViewArgs.ARG_VIEW_ENDKEY.getPropertyName(), "[\"20140430\",1]");
+
+    ImportViewArgs importViewArgs = new ImportViewArgs(conf);
+    assertTrue(importViewArgs.isRangeScan());
+    assertEquals("No keys should be used for a range scan!", 0, importViewArgs.getViewKeys().length);
+    assertEquals("A range scan should use a single mapper by default!", 1, importViewArgs.getNumMappers());
+  }
+
+  @Test(expected = ArgsException.class)
+  public void rangeScanWithKeysTest() throws ArgsException {
+    Configuration conf = new Configuration(false);
+    conf.set(ImportViewArgs.ARG_VIEW_KEYS.getPropertyName(), "[\"20140401\",0]");
+    conf.set(ImportViewArgs.ARG_VIEW_STARTKEY.getPropertyName(), "[\"20140401\",0]");
+
+    new ImportViewArgs(conf);
+  }
+
   @Test
   public void parseViewKeysTest2() {
     String keysString = "\"2014-07-07\";\"2014-07-08\"";
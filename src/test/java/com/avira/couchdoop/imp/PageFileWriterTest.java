@@ -0,0 +1,107 @@
+package com.avira.couchdoop.imp;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class PageFileWriterTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void writeTest() throws Exception {
+    Configuration conf = new Configuration();
+    String dir = folder.getRoot().getAbsolutePath();
+
+    PageFileWriter writer = new PageFileWriter(conf, dir, "part", 3);
+    writer.write("key1", "{\"a\":\"ä€\"}");
+    writer.setKeyDocumentDelimiter(",");
+    writer.write("key2", "{}");
+    writer.close();
+
+    String content = IOUtils.toString(new FileInputStream(new File(dir, "part-00003")), "UTF-8");
+    assertEquals("key1\t{\"a\":\"ä€\"}\nkey2,{}\n", content);
+  }
+
+  @Test
+  public void writeCompressedTest() throws Exception {
+    Configuration conf = new Configuration();
+    String dir = folder.getRoot().getAbsolutePath();
+    CompressionCodec codec = ReflectionUtils.newInstance(GzipCodec.class, conf);
+
+    PageFileWriter writer = new PageFileWriter(conf, dir, "part", 0, codec, 16);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      writer.write("key" + i, "{\"i\":" + i + "}");
+      expected.append("key").append(i).append("\t{\"i\":").append(i).append("}\n");
+    }
+    writer.close();
+
+    InputStream in = codec.createInputStream(new FileInputStream(new File(dir, "part-00000.gz")));
+    assertEquals(expected.toString(), IOUtils.toString(in, "UTF-8"));
+  }
+
+  /**
+   * Codec whose streams fail when finishing the compressed data, like a full disk would.
+   */
+  public static class FailingCodec extends DefaultCodec {
+    @Override
+    public CompressionOutputStream createOutputStream(OutputStream out, Compressor compressor) {
+      return new CompressionOutputStream(out) {
+        @Override
+        public void write(int b) throws IOException {
+          out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+          throw new IOException("No space left on device");
+        }
+
+        @Override
+        public void resetState() {
+        }
+      };
+    }
+  }
+
+  @Test
+  public void closeFailureTest() throws Exception {
+    Configuration conf = new Configuration();
+    String dir = folder.getRoot().getAbsolutePath();
+    CompressionCodec codec = ReflectionUtils.newInstance(FailingCodec.class, conf);
+
+    PageFileWriter writer = new PageFileWriter(conf, dir, "part", 0, codec, 16);
+    writer.write("key", "{}");
+    try {
+      writer.close();
+      fail("The failure to write the end of the file was ignored.");
+    } catch (IOException e) {
+      assertEquals("No space left on device", e.getMessage());
+    }
+    // Closing again, e.g. in a finally block, does nothing.
+    writer.close();
+  }
+}
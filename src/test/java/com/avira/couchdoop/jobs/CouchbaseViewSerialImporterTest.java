@@ -0,0 +1,161 @@
+package com.avira.couchdoop.jobs;
+
+import com.avira.couchdoop.FakeCouchbaseServer;
+import com.avira.couchdoop.imp.ImportCheckpoint;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CouchbaseViewSerialImporterTest {
+
+  private static final int[] VIEW_KEYS = new int[]{1, 2, 3};
+  private static final int DOCS_PER_KEY = 7;
+  private static final int DAYS = 20;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeCouchbaseServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeCouchbaseServer();
+    server.start();
+
+    server.createView("docs", "byType", false);
+    for (int type : VIEW_KEYS) {
+      for (int i = 0; i < DOCS_PER_KEY; i++) {
+        String id = "doc" + type + "_" + i;
+        server.put(id, "{\"type\":" + type + ",\"i\":" + i + "}");
+        server.addViewRow("docs", "byType", id, String.valueOf(type), "null");
+      }
+    }
+
+    // String keys which look like numbers, some of them followed by quotes.
+    server.createView("docs", "byDate", false);
+    for (int day = 1; day <= DAYS; day++) {
+      String id = "day" + day;
+      server.put(id, "{\"day\":" + day + "}");
+      server.addViewRow("docs", "byDate", id, new ObjectMapper().writeValueAsString(getDate(day)), "null");
+    }
+  }
+
+  private static String getDate(int day) {
+    return String.format(day % 2 == 0 ? "201404%02d" : "201404%02d \"%d\"", day, day);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  /**
+   * Dies like a process killed after renaming a page file but before recording it in the checkpoint.
+   */
+  private static class CrashingImporter extends CouchbaseViewSerialImporter {
+
+    private final int crashPageNo;
+
+    public CrashingImporter(int crashPageNo) {
+      this.crashPageNo = crashPageNo;
+    }
+
+    @Override
+    protected void commitPageFile(Path tmpPath, int pageNo) throws IOException {
+      super.commitPageFile(tmpPath, pageNo);
+      if (pageNo == crashPageNo) {
+        throw new IOException("Crashed after committing page " + pageNo + ".");
+      }
+    }
+  }
+
+  private String[] getArgs(String output) {
+    return new String[]{
+        "-h", server.getUrl().toString(), "-b", server.getBucket(), "-p", server.getPassword(),
+        "-d", "docs", "-v", "byType", "-k", "1;2;3", "-o", output, "-P", "3", "-t", "3"
+    };
+  }
+
+  /**
+   * @return arguments for importing all rows with string keys, which sort before objects
+   */
+  private String[] getRangeArgs(String output) {
+    return new String[]{
+        "-h", server.getUrl().toString(), "-b", server.getBucket(), "-p", server.getPassword(),
+        "-d", "docs", "-v", "byDate", "-e", "{}", "-o", output, "-P", "3"
+    };
+  }
+
+  /**
+   * @return the document IDs of all page files, sorted
+   */
+  private static List<String> readPageFiles(File dir) throws IOException {
+    List<String> ids = new ArrayList<>();
+    for (File file : dir.listFiles()) {
+      if (!file.getName().startsWith("part-")) {
+        continue;
+      }
+      for (String line : FileUtils.readLines(file, StandardCharsets.UTF_8.name())) {
+        ids.add(line.substring(0, line.indexOf('\t')));
+      }
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+  @Test
+  public void resumeTest() throws Exception {
+    File dir = folder.getRoot();
+
+    // The key which gets page 1 stops, the others are imported in parallel with it and after it.
+    new CrashingImporter(1).start(getArgs(dir.getAbsolutePath()));
+    assertTrue(new File(dir, ImportCheckpoint.FILE_NAME).exists());
+    assertTrue(new File(dir, "part-00001").exists());
+
+    new CouchbaseViewSerialImporter().start(getArgs(dir.getAbsolutePath()));
+    assertFalse(new File(dir, ImportCheckpoint.FILE_NAME).exists());
+
+    // Every document is imported exactly once.
+    List<String> expected = new ArrayList<>();
+    for (int type : VIEW_KEYS) {
+      for (int i = 0; i < DOCS_PER_KEY; i++) {
+        expected.add("doc" + type + "_" + i);
+      }
+    }
+    Collections.sort(expected);
+    assertEquals(expected, readPageFiles(dir));
+  }
+
+  @Test(timeout = 60000)
+  public void resumeRangeTest() throws Exception {
+    File dir = folder.getRoot();
+
+    new CrashingImporter(2).start(getRangeArgs(dir.getAbsolutePath()));
+    assertTrue(new File(dir, ImportCheckpoint.FILE_NAME).exists());
+
+    // The range is resumed after the last row of page 1, whose key is a string which looks like a number.
+    new CouchbaseViewSerialImporter().start(getRangeArgs(dir.getAbsolutePath()));
+    assertFalse(new File(dir, ImportCheckpoint.FILE_NAME).exists());
+
+    List<String> expected = new ArrayList<>();
+    for (int day = 1; day <= DAYS; day++) {
+      expected.add("day" + day);
+    }
+    Collections.sort(expected);
+    assertEquals(expected, readPageFiles(dir));
+  }
+}
@@ -0,0 +1,35 @@
+package com.avira.couchdoop.update;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveBatchSizerTest {
+
+  @Test
+  public void aimdTest() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 10, 125, 500);
+    assertEquals(100, sizer.getSize());
+
+    // Increase additively while latency is under the target and bulks are full.
+    sizer.onCompleted(100, 100);
+    assertEquals(110, sizer.getSize());
+    sizer.onCompleted(50, 100);
+    assertEquals(110, sizer.getSize());
+    sizer.onCompleted(110, 100);
+    sizer.onCompleted(120, 100);
+    assertEquals(125, sizer.getSize());
+
+    // Decrease multiplicatively on latency spikes and timeouts, down to the minimum.
+    sizer.onCompleted(125, 1000);
+    assertEquals(62, sizer.getSize());
+    sizer.onTimeout();
+    sizer.onTimeout();
+    sizer.onTimeout();
+    sizer.onTimeout();
+    assertEquals(10, sizer.getSize());
+
+    assertEquals(3, sizer.getIncreasesCount());
+    assertEquals(4, sizer.getDecreasesCount());
+  }
+}
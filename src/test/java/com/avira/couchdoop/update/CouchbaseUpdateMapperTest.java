@@ -0,0 +1,348 @@
+package com.avira.couchdoop.update;
+
+import com.avira.couchdoop.CouchbaseArgs;
+import com.avira.couchdoop.CouchbaseClientPool;
+import com.avira.couchdoop.FakeCouchbaseServer;
+import com.avira.couchdoop.MapContexts;
+import com.avira.couchdoop.exp.CouchbaseAction;
+import net.spy.memcached.OperationTimeoutException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CouchbaseUpdateMapperTest {
+
+  private static final int KEYS = 500;
+
+  private FakeCouchbaseServer server;
+  private Configuration conf;
+  private MapContexts.Reporter reporter;
+
+  /**
+   * Appends the input value to the current document.
+   */
+  private static class AppendingMapper extends CouchbaseUpdateMapper<String, String, String> {
+
+    @Override
+    protected HadoopInput<String> transform(String hKey, String hValue, Context context) {
+      return new HadoopInput<>(hKey, hValue);
+    }
+
+    @Override
+    protected CouchbaseAction merge(String value, Object cbInputValue, Context context) {
+      return CouchbaseAction.createSetAction((cbInputValue == null ? "" : cbInputValue) + value);
+    }
+  }
+
+  /**
+   * Appends the input value to the current document, returning the same input object for all records.
+   */
+  private static class ReusingMapper extends AppendingMapper {
+    private HadoopInput<String> input = new HadoopInput<>(null, null);
+
+    @Override
+    protected HadoopInput<String> transform(String hKey, String hValue, Context context) {
+      input.set(hKey, hValue);
+      return input;
+    }
+  }
+
+  /**
+   * Appends "+" to the current document while another client changes some documents right after they are read,
+   * as many times as given for their keys.
+   */
+  private class ConflictingMapper extends CouchbaseUpdateMapper<String, String, String> {
+    private Map<String, Integer> conflicts = new HashMap<>();
+
+    @Override
+    protected HadoopInput<String> transform(String hKey, String hValue, Context context) {
+      return new HadoopInput<>(hKey, hKey);
+    }
+
+    @Override
+    protected CouchbaseAction merge(String key, Object cbInputValue, Context context) {
+      Integer remaining = conflicts.get(key);
+      if (remaining != null && remaining > 0) {
+        conflicts.put(key, remaining - 1);
+        server.put(key, "{\"changed\":" + remaining + "}");
+      }
+      return CouchbaseAction.createSetAction(cbInputValue + "+");
+    }
+  }
+
+  /**
+   * Collects the written documents, failing for one key if set.
+   */
+  private static class CollectingWriter extends RecordWriter<String, CouchbaseAction> {
+    private Map<String, Object> output = new ConcurrentHashMap<>();
+    private String failingKey;
+
+    @Override
+    public void write(String key, CouchbaseAction action) throws IOException {
+      if (key.equals(failingKey)) {
+        throw new IOException("Cannot write " + key);
+      }
+      if (output.put(key, action.getValue()) != null) {
+        fail("Document " + key + " written twice.");
+      }
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+    }
+  }
+
+  /**
+   * Writes the documents to the server right away.
+   */
+  private class ServerWriter extends RecordWriter<String, CouchbaseAction> {
+
+    @Override
+    public void write(String key, CouchbaseAction action) {
+      server.put(key, (String) action.getValue());
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeCouchbaseServer();
+    server.start();
+
+    conf = new Configuration();
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_URLS.getPropertyName(), server.getUrl().toString());
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_BUCKET.getPropertyName(), server.getBucket());
+    conf.set(CouchbaseArgs.ARG_COUCHBASE_PASSWORD.getPropertyName(), server.getPassword());
+    conf.setInt(CouchbaseUpdateMapper.PROPERTY_BULK_SIZE, 16);
+    conf.setInt(CouchbaseUpdateMapper.PROPERTY_QUEUE_SIZE, 64);
+
+    reporter = new MapContexts.Reporter();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  /**
+   * Runs the mapper over the inputs "key0"..."key{KEYS-1}", with the values "+0"..."+{KEYS-1}".
+   */
+  private void run(CouchbaseUpdateMapper<String, String, String> mapper, CollectingWriter writer) throws Exception {
+    Mapper<String, String, String, CouchbaseAction>.Context context = MapContexts.create(conf, null, writer, reporter);
+    mapper.setup(context);
+    try {
+      for (int i = 0; i < KEYS; i++) {
+        mapper.map("key" + i, "+" + i, context);
+      }
+      mapper.cleanup(context);
+    } catch (IOException e) {
+      CouchbaseClientPool.release(mapper.couchbaseClient);
+      throw e;
+    }
+  }
+
+  private void assertMerged(CollectingWriter writer) {
+    assertEquals(KEYS, writer.output.size());
+    for (int i = 0; i < KEYS; i++) {
+      String expected = (i % 2 == 0 ? "{\"i\":" + i + "}" : "") + "+" + i;
+      assertEquals(expected, writer.output.get("key" + i));
+    }
+  }
+
+  @Test
+  public void consumersTest() throws Exception {
+    for (int i = 0; i < KEYS; i += 2) {
+      server.put("key" + i, "{\"i\":" + i + "}");
+    }
+    conf.setInt(CouchbaseUpdateMapper.PROPERTY_CONSUMER_THREADS, 4);
+
+    CollectingWriter writer = new CollectingWriter();
+    run(new AppendingMapper(), writer);
+
+    assertMerged(writer);
+    assertEquals(KEYS, reporter.getCounter(CouchbaseUpdateMapper.Counters.BULK_SIZES_SUM).getValue());
+  }
+
+  /**
+   * Runs the mapper over the inputs "key{i % numKeys}", with the values "+i", writing the documents to the server.
+   */
+  private void runRepeatedKeys(int numKeys) throws Exception {
+    AppendingMapper mapper = new AppendingMapper();
+    Mapper<String, String, String, CouchbaseAction>.Context context =
+        MapContexts.create(conf, null, new ServerWriter(), reporter);
+    mapper.setup(context);
+    for (int i = 0; i < KEYS; i++) {
+      mapper.map("key" + (i % numKeys), "+" + i, context);
+    }
+    mapper.cleanup(context);
+  }
+
+  /**
+   * Checks that all updates of {@link #runRepeatedKeys} were applied in order.
+   */
+  private void assertRepeatedKeysMerged(int numKeys) {
+    for (int k = 0; k < numKeys; k++) {
+      StringBuilder expected = new StringBuilder();
+      for (int i = k; i < KEYS; i += numKeys) {
+        expected.append('+').append(i);
+      }
+      assertEquals(expected.toString(), server.get("key" + k));
+    }
+  }
+
+  @Test
+  public void repeatedKeysTest() throws Exception {
+    // Every bulk repeats keys of the previous one, which must be merged with the documents written for them.
+    runRepeatedKeys(20);
+    assertRepeatedKeysMerged(20);
+  }
+
+  @Test
+  public void repeatedKeysConsumersTest() throws Exception {
+    // Consecutive bulks with the same keys go to different consumers, which must not reorder their writes.
+    conf.setInt(CouchbaseUpdateMapper.PROPERTY_CONSUMER_THREADS, 4);
+    conf.setInt(CouchbaseUpdateMapper.PROPERTY_BULK_SIZE, 4);
+    runRepeatedKeys(6);
+    assertRepeatedKeysMerged(6);
+  }
+
+  @Test
+  public void ringQueueTest() throws Exception {
+    for (int i = 0; i < KEYS; i += 2) {
+      server.put("key" + i, "{\"i\":" + i + "}");
+    }
+    conf.set(CouchbaseUpdateMapper.PROPERTY_QUEUE_TYPE, "ring");
+    conf.setInt(CouchbaseUpdateMapper.PROPERTY_CONSUMER_THREADS, 4);
+
+    for (RingBufferInputQueue.WaitStrategy waitStrategy : RingBufferInputQueue.WaitStrategy.values()) {
+      conf.set(CouchbaseUpdateMapper.PROPERTY_QUEUE_WAIT_STRATEGY, waitStrategy.name().toLowerCase());
+
+      // The inputs are copied into the ring, so reusing the same object doesn't mix them up.
+      CollectingWriter writer = new CollectingWriter();
+      run(new ReusingMapper(), writer);
+      assertMerged(writer);
+    }
+  }
+
+  @Test
+  public void writeFailureTest() throws Exception {
+    conf.setInt(CouchbaseUpdateMapper.PROPERTY_CONSUMER_THREADS, 2);
+
+    CollectingWriter writer = new CollectingWriter();
+    writer.failingKey = "key100";
+    try {
+      run(new AppendingMapper(), writer);
+      fail("The task should fail if a document cannot be written.");
+    } catch (IOException e) {
+      assertTrue(e.getCause().getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void bulkTimeoutTest() throws Exception {
+    conf.setBoolean(CouchbaseUpdateMapper.PROPERTY_BULK_ADAPTIVE, true);
+    conf.setInt(CouchbaseUpdateMapper.PROPERTY_BULK_MIN_SIZE, 4);
+    conf.setLong(CouchbaseUpdateMapper.PROPERTY_BULK_TIMEOUT, 400);
+    // The server answers in order, so the bulk gets sent again wait only for the first ones.
+    server.setLatency(600, TimeUnit.MILLISECONDS);
+
+    CollectingWriter writer = new CollectingWriter();
+    AppendingMapper mapper = new AppendingMapper();
+    Mapper<String, String, String, CouchbaseAction>.Context context = MapContexts.create(conf, null, writer, reporter);
+    mapper.setup(context);
+    for (int i = 0; i < 32; i++) {
+      mapper.map("key" + i, "+" + i, context);
+    }
+    // Let the fetcher send the first bulk gets before the server becomes fast again.
+    Thread.sleep(100);
+    server.setLatency(0, TimeUnit.MILLISECONDS);
+    mapper.cleanup(context);
+
+    assertEquals(32, writer.output.size());
+    for (int i = 0; i < 32; i++) {
+      assertEquals("+" + i, writer.output.get("key" + i));
+    }
+    assertTrue(reporter.getCounter(CouchbaseUpdateMapper.Counters.BULK_RETRIES).getValue() > 0);
+    assertTrue(reporter.getCounter(CouchbaseUpdateMapper.Counters.BULK_SIZE_DECREASES).getValue() > 0);
+  }
+
+  @Test
+  public void bulkTimeoutFailureTest() throws Exception {
+    conf.setBoolean(CouchbaseUpdateMapper.PROPERTY_BULK_ADAPTIVE, true);
+    conf.setLong(CouchbaseUpdateMapper.PROPERTY_BULK_TIMEOUT, 100);
+    server.setLatency(1, TimeUnit.SECONDS);
+
+    try {
+      run(new AppendingMapper(), new CollectingWriter());
+      fail("The task should fail if the keys of a bulk time out repeatedly.");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof OperationTimeoutException);
+    }
+  }
+
+  @Test
+  public void casConflictsTest() throws Exception {
+    for (int i = 0; i < KEYS; i++) {
+      server.put("key" + i, "{}");
+    }
+    conf.setBoolean(CouchbaseUpdateMapper.PROPERTY_CAS, true);
+    conf.setInt(CouchbaseUpdateMapper.PROPERTY_CAS_MAX_RETRIES, 3);
+
+    ConflictingMapper mapper = new ConflictingMapper();
+    mapper.conflicts.put("key0", 1);
+    mapper.conflicts.put("key1", 100);
+    CollectingWriter writer = new CollectingWriter();
+    run(mapper, writer);
+
+    // The conflicting update is merged again with the changed document.
+    assertEquals("{\"changed\":1}+", server.get("key0"));
+    // The other client always wins, so the update is abandoned after 3 retries.
+    assertEquals("{\"changed\":97}", server.get("key1"));
+    for (int i = 2; i < KEYS; i++) {
+      assertEquals("{}+", server.get("key" + i));
+    }
+    assertTrue(writer.output.isEmpty());
+
+    assertEquals(5, reporter.getCounter(CouchbaseUpdateMapper.Counters.CAS_CONFLICTS).getValue());
+    assertEquals(4, reporter.getCounter(CouchbaseUpdateMapper.Counters.CAS_RETRIES).getValue());
+    assertEquals(1, reporter.getCounter(CouchbaseUpdateMapper.Counters.CAS_GIVE_UPS).getValue());
+    assertEquals(0, reporter.getCounter(CouchbaseUpdateMapper.Counters.CAS_FAILED_WRITES).getValue());
+  }
+
+  @Test
+  public void casTemporaryFailuresTest() throws Exception {
+    for (int i = 0; i < KEYS; i++) {
+      server.put("key" + i, "{}");
+    }
+    conf.setBoolean(CouchbaseUpdateMapper.PROPERTY_CAS, true);
+    server.failNextMutations(20);
+
+    CollectingWriter writer = new CollectingWriter();
+    run(new ConflictingMapper(), writer);
+
+    // The writes which failed are sent again, without merging the documents again.
+    for (int i = 0; i < KEYS; i++) {
+      assertEquals("{}+", server.get("key" + i));
+    }
+    // Writes cancelled by the client when it reconnects after a temporary failure are counted too.
+    assertTrue(reporter.getCounter(CouchbaseUpdateMapper.Counters.CAS_TEMPORARY_FAILURES).getValue() >= 20);
+    assertEquals(0, reporter.getCounter(CouchbaseUpdateMapper.Counters.CAS_CONFLICTS).getValue());
+    assertEquals(0, reporter.getCounter(CouchbaseUpdateMapper.Counters.CAS_RETRIES).getValue());
+    assertEquals(0, reporter.getCounter(CouchbaseUpdateMapper.Counters.CAS_FAILED_WRITES).getValue());
+  }
+}
@@ -0,0 +1,88 @@
+package com.avira.couchdoop.update;
+
+import com.avira.couchdoop.update.CouchbaseUpdateMapper.HadoopInput;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingBufferInputQueueTest {
+
+  @Test
+  public void reuseSlotsTest() throws InterruptedException {
+    RingBufferInputQueue<Integer> ring = new RingBufferInputQueue<>(3, RingBufferInputQueue.WaitStrategy.PARK);
+    assertEquals(4, ring.getCapacity());
+
+    // The same input object is copied into each slot.
+    HadoopInput<Integer> input = new HadoopInput<>(null, null);
+    for (int i = 0; i < 4; i++) {
+      input.set("key" + i, i);
+      assertTrue(ring.offer(input, 1, TimeUnit.SECONDS));
+    }
+    input.set("key4", 4);
+    assertFalse(ring.offer(input, 10, TimeUnit.MILLISECONDS));
+
+    HadoopInput<Integer> first = ring.take();
+    assertEquals("key0", first.getCouchbaseKey());
+    List<HadoopInput<Integer>> inputs = new ArrayList<>();
+    assertEquals(2, ring.drainTo(inputs, 2));
+    assertEquals(Integer.valueOf(2), inputs.get(1).getHadoopData());
+
+    // Taking an input does not free its slot, releasing it does.
+    assertFalse(ring.offer(input, 10, TimeUnit.MILLISECONDS));
+    ring.release(inputs.get(1));
+    assertFalse(ring.offer(input, 10, TimeUnit.MILLISECONDS));
+    ring.release(first);
+    assertTrue(ring.offer(input, 1, TimeUnit.SECONDS));
+    assertEquals("key2", inputs.get(1).getCouchbaseKey());
+
+    ring.close(1, TimeUnit.SECONDS);
+    assertEquals("key3", ring.take().getCouchbaseKey());
+    assertEquals("key4", ring.take().getCouchbaseKey());
+    assertNull(ring.take());
+  }
+
+  @Test
+  public void handOffTest() throws InterruptedException {
+    final int count = 100000;
+    final RingBufferInputQueue<Integer> ring =
+        new RingBufferInputQueue<>(64, RingBufferInputQueue.WaitStrategy.YIELD);
+
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        HadoopInput<Integer> input = new HadoopInput<>(null, null);
+        try {
+          for (int i = 0; i < count; i++) {
+            input.set(Integer.toString(i), i);
+            ring.offer(input, 10, TimeUnit.SECONDS);
+          }
+          ring.close(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          // The test fails by missing inputs.
+        }
+      }
+    };
+    producer.start();
+
+    int expected = 0;
+    List<HadoopInput<Integer>> inputs = new ArrayList<>();
+    HadoopInput<Integer> input;
+    while ((input = ring.take()) != null) {
+      inputs.add(input);
+      ring.drainTo(inputs, 16);
+      for (HadoopInput<Integer> taken : inputs) {
+        assertEquals(Integer.valueOf(expected), taken.getHadoopData());
+        assertEquals(Integer.toString(expected), taken.getCouchbaseKey());
+        expected++;
+        ring.release(taken);
+      }
+      inputs.clear();
+    }
+    producer.join();
+    assertEquals(count, expected);
+  }
+}